@@ -0,0 +1,506 @@
+/*
+ * DecodeServer.java
+ *
+ * A long-running decode service on loopback HTTP, so other programs can
+ * decode lattices without starting a JVM (or having it exit) per request.
+ *
+ *     POST /decode?lmScale=8.0[&nbest=N]    body: a lattice file, as text or
+ *                                            in the LatticeBinary format
+ *     GET  /metrics                          request, latency and batch statistics
+ *
+ * A successful decode answers 200 with text/plain lines
+ *
+ *     utterance <utteranceID>
+ *     hypothesis <words>
+ *     score <path score>
+ *     nbest <rank> <path score> <words>      (only with nbest=N, N lines)
+ *
+ * Every error is an HTTP response whose body is the error message: 400 for
+ * a bad request, an unparsable lattice or one whose new labels would take
+ * the process-wide Vocabulary (which never shrinks) past MAX_VOCABULARY
+ * words, 413 for a body over maxBodyMegabytes,
+ * 422 for a lattice that cannot be decoded (cycle, unreachable end), 503
+ * when the queue is full, memory runs out or the decode takes over five
+ * minutes, and 500 for anything else.
+ * Nothing the client sends can stop the server.
+ *
+ * Connection threads put each request on a queue, and a batcher thread
+ * hands it to the workers as soon as it arrives, together with up to
+ * maxBatch - 1 others already waiting (it never waits for more: the
+ * requests of a batch share no work, so waiting would only add latency).
+ * Each request is its own worker task, so concurrent requests are decoded
+ * in parallel.
+ *
+ * No thread waits for a decode: the HTTP dispatcher thread answers /metrics
+ * itself and passes each /decode exchange to a bounded pool of connection
+ * threads, which read the body, queue the request and return; the reply is
+ * sent when the request's future completes.  So up to QUEUE_CAPACITY
+ * requests can be in flight, and past that (or when the connection pool's
+ * own queue is full) a request is answered 503 at once.
+ *
+ * ----------------------------------------------------------------------------
+ *
+ * usage:
+ *
+ * java DecodeServer [port [numWorkers [maxBatch [maxBodyMegabytes]]]]
+ *
+ * where port 0 picks a free port; the defaults are 8241, the number of
+ * processors, 32 and 64
+ *
+*/
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class DecodeServer {
+    private static final int QUEUE_CAPACITY = 4096;        // Requests waiting for a batch, or for a worker
+    private static final int PENDING_CONNECTIONS = 256;    // Exchanges waiting for a connection thread
+    private static final int MAX_NBEST = 1000;
+    private static final int MAX_VOCABULARY = 1 << 20;     // Labels requests may intern, in all
+    private static final long REPLY_TIMEOUT_SECONDS = 300;  // Longest a request waits for its decode
+
+    private final HttpServer server;
+    private final ExecutorService connections;             // Reads request bodies and queues the jobs
+    private final ThreadPoolExecutor workers;              // Decodes requests, one Task each
+    private final Thread batcher;
+    private final ArrayBlockingQueue<Job> queue = new ArrayBlockingQueue<Job>(QUEUE_CAPACITY);
+    private final int maxBatch;
+    private final int maxBodyBytes;                        // Largest request body accepted
+    private volatile boolean running = true;
+    private final Metrics metrics = new Metrics();
+
+    /* Job - one decode request on its way through the queue */
+    private static final class Job {
+    	final byte[] body;
+    	final double lmScale;
+    	final int nbest;
+    	final long arrived = System.nanoTime();
+    	final CompletableFuture<Reply> reply = new CompletableFuture<Reply>();
+
+    	Job(byte[] body, double lmScale, int nbest) {
+    		this.body = body;
+    		this.lmScale = lmScale;
+    		this.nbest = nbest;
+    	} // END Job() CONSTRUCTOR
+    } // END Job class
+
+    /* Task - the worker task decoding one job */
+    private final class Task implements Runnable {
+    	final Job job;
+
+    	Task(Job job) {
+    		this.job = job;
+    	} // END Task() CONSTRUCTOR
+
+    	public void run() {
+    		DecodeServer.this.run(this.job);
+    	} // END run()
+    } // END Task class
+
+    /* Reply - an HTTP status and text body */
+    private static final class Reply {
+    	final int status;
+    	final String text;
+
+    	Reply(int status, String text) {
+    		this.status = status;
+    		this.text = text;
+    	} // END Reply() CONSTRUCTOR
+    } // END Reply class
+
+    /* DecodeServer
+    // Pre-conditions:
+    //    - 0 <= port < 65536, numWorkers >= 1, maxBatch >= 1,
+    //      0 <= maxBodyBytes < Integer.MAX_VALUE
+    // Post-conditions:
+    //    - The server is bound to the loopback address but not yet started
+    //    - Throws IOException if the port cannot be bound */
+    public DecodeServer(int port, int numWorkers, int maxBatch, int maxBodyBytes) throws IOException {
+    	this.maxBatch = maxBatch;
+    	this.maxBodyBytes = maxBodyBytes;
+    	this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    	int numConnections = Math.max(4, 2 * numWorkers);
+    	this.connections = new ThreadPoolExecutor(numConnections, numConnections, 0L, TimeUnit.MILLISECONDS,
+    	                                          new ArrayBlockingQueue<Runnable>(PENDING_CONNECTIONS));
+    	this.workers = new ThreadPoolExecutor(numWorkers, numWorkers, 0L, TimeUnit.MILLISECONDS,
+    	                                      new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY));
+    	this.server.setExecutor(Runnable::run);   // handlers run on the dispatcher thread and never block
+    	this.server.createContext("/decode", this::handleDecode);
+    	this.server.createContext("/metrics", this::handleMetrics);
+    	this.batcher = new Thread(this::batchLoop, "DecodeServer-batcher");
+    	this.batcher.setDaemon(true);
+    } // END DecodeServer() CONSTRUCTOR
+
+    /* start / stop / getPort
+    // Pre-conditions:
+    //    - start is called once; stop after start
+    // Post-conditions:
+    //    - start begins serving; stop stops accepting, answers queued requests
+    //      503, lets decodes already running finish and shuts the thread
+    //      pools down; getPort is the bound port */
+    public void start() {
+    	this.batcher.start();
+    	this.server.start();
+    } // END start()
+
+    public void stop() {
+    	this.running = false;
+    	this.batcher.interrupt();
+    	Job job;
+    	while ((job = this.queue.poll()) != null) {
+    		job.reply.complete(new Reply(503, "Error: server shutting down"));
+    	} // END while loop
+    	this.workers.shutdown();
+    	ArrayList<Runnable> waiting = new ArrayList<Runnable>();
+    	this.workers.getQueue().drainTo(waiting);
+    	for (Runnable task : waiting) {
+    		((Task) task).job.reply.complete(new Reply(503, "Error: server shutting down"));
+    	} // END for loop
+    	this.server.stop(1);          // gives the replies being sent a second to finish
+    	this.connections.shutdown();
+    } // END stop()
+
+    public int getPort() {
+    	return this.server.getAddress().getPort();
+    } // END getPort()
+
+    /* handleDecode
+    // Pre-conditions:
+    //    - exchange is a request to /decode; runs on the dispatcher thread
+    // Post-conditions:
+    //    - The exchange is handed to a connection thread, or answered 503 if
+    //      all of them are busy and their queue is full */
+    private void handleDecode(HttpExchange exchange) {
+    	long start = System.nanoTime();
+    	try {
+    		this.connections.execute(() -> accept(exchange, start));
+    	} // END try
+    	catch (RejectedExecutionException e) {
+    		finish(exchange, new Reply(503, this.running ? "Error: server busy" : "Error: server shutting down"), start);
+    	} // END catch
+    } // END handleDecode()
+
+    /* accept
+    // Pre-conditions:
+    //    - Runs on a connection thread; exchange is a request to /decode
+    // Post-conditions:
+    //    - The request is queued and its reply is sent when the job completes
+    //      (or after REPLY_TIMEOUT_SECONDS), or an error is sent at once; the
+    //      thread does not wait for the decode */
+    private void accept(HttpExchange exchange, long start) {
+    	Reply reply;
+    	try {
+    		if (!exchange.getRequestMethod().equals("POST")) {
+    			reply = new Reply(405, "Error: use POST");
+    		} // END if
+    		else {
+    			String lmScaleText = parameter(exchange, "lmScale", null);
+    			if (lmScaleText == null) {
+    				throw new IllegalArgumentException();
+    			} // END if MISSING
+    			double lmScale = Double.parseDouble(lmScaleText);
+    			int nbest = Integer.parseInt(parameter(exchange, "nbest", "0"));
+    			if (nbest < 0 || nbest > MAX_NBEST || !(lmScale >= 0)) {
+    				throw new IllegalArgumentException();
+    			} // END if
+    			byte[] body = readBody(exchange);
+    			Job job = body == null ? null : new Job(body, lmScale, nbest);
+    			if (job == null) {
+    				reply = new Reply(413, "Error: request body over " + this.maxBodyBytes + " bytes");
+    			} // END if TOO LARGE
+    			else if (!this.running || !this.queue.offer(job)) {
+    				reply = new Reply(503, "Error: server busy");
+    			} // END if FULL
+    			else if (!this.running && this.queue.remove(job)) {
+    				reply = new Reply(503, "Error: server shutting down");   // stop() drained the queue before the offer
+    			} // END if STOPPED
+    			else {
+    				job.reply.completeOnTimeout(new Reply(503, "Error: timed out"), REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+    				         .thenAccept(r -> finish(exchange, r, start));
+    				return;
+    			} // END else
+    		} // END else
+    	} // END try
+    	catch (IllegalArgumentException e) {
+    		reply = new Reply(400, "Error: expected lmScale >= 0 and 0 <= nbest <= " + MAX_NBEST);
+    	} // END catch
+    	catch (IOException e) {
+    		reply = new Reply(400, e.getMessage() != null ? e.getMessage() : "Error: " + e);
+    	} // END catch
+    	catch (OutOfMemoryError e) {
+    		reply = new Reply(503, "Error: out of memory");
+    	} // END catch
+    	catch (Exception e) {
+    		reply = new Reply(500, "Error: " + e);
+    	} // END catch
+    	finish(exchange, reply, start);
+    } // END accept()
+
+    /* finish
+    // Pre-conditions:
+    //    - exchange has not been answered; start is when it arrived
+    // Post-conditions:
+    //    - reply is sent (a client that has gone away is ignored) and the
+    //      request is counted in the metrics */
+    private void finish(HttpExchange exchange, Reply reply, long start) {
+    	try {
+    		send(exchange, reply);
+    	} // END try
+    	catch (IOException e) {
+    		exchange.close();
+    	} // END catch
+    	this.metrics.record(reply.status, System.nanoTime() - start);
+    } // END finish()
+
+    /* readBody
+    // Pre-conditions:
+    //    - exchange is a request whose body has not been read
+    // Post-conditions:
+    //    - Returns the request body, or null if its Content-Length or its
+    //      actual length is over maxBodyBytes; at most maxBodyBytes + 1 bytes
+    //      are ever read */
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+    	String length = exchange.getRequestHeaders().getFirst("Content-Length");
+    	if (length != null) {
+    		try {
+    			if (Long.parseLong(length.trim()) > this.maxBodyBytes) {
+    				return null;
+    			} // END if
+    		} // END try
+    		catch (NumberFormatException e) {
+    			throw new IOException("Error: bad Content-Length " + length);
+    		} // END catch
+    	} // END if DECLARED
+    	byte[] body = exchange.getRequestBody().readNBytes(this.maxBodyBytes + 1);
+    	return body.length > this.maxBodyBytes ? null : body;
+    } // END readBody()
+
+    /* handleMetrics
+    // Pre-conditions:
+    //    - exchange is a request to /metrics; runs on the dispatcher thread,
+    //      so it is answered even when every connection thread is busy
+    // Post-conditions:
+    //    - The current metrics are sent as text */
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+    	send(exchange, new Reply(200, this.metrics.report(this.queue.size())));
+    } // END handleMetrics()
+
+    /* parameter
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the value of the query parameter name, or fallback if the
+    //      query does not have it */
+    private static String parameter(HttpExchange exchange, String name, String fallback) {
+    	String query = exchange.getRequestURI().getRawQuery();
+    	if (query != null) {
+    		for (String pair : query.split("&")) {
+    			int eq = pair.indexOf('=');
+    			if (eq > 0 && pair.substring(0, eq).equals(name)) {
+    				return java.net.URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+    			} // END if
+    		} // END for loop
+    	} // END if
+    	return fallback;
+    } // END parameter()
+
+    /* send
+    // Pre-conditions:
+    //    - exchange has not been answered
+    // Post-conditions:
+    //    - reply is sent as UTF-8 text and the exchange closed */
+    private static void send(HttpExchange exchange, Reply reply) throws IOException {
+    	byte[] bytes = reply.text.getBytes(StandardCharsets.UTF_8);
+    	exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    	exchange.sendResponseHeaders(reply.status, bytes.length);
+    	OutputStream out = exchange.getResponseBody();
+    	out.write(bytes);
+    	out.close();
+    } // END send()
+
+    /* batchLoop
+    // Pre-conditions:
+    //    - Runs on the batcher thread
+    // Post-conditions:
+    //    - Until stopped, waits for a queued job, takes it with up to
+    //      maxBatch - 1 jobs already queued behind it, and submits each job to
+    //      the workers as its own task
+    //    - A job the workers refuse (their queue is full, or they have shut
+    //      down) or that is collected when the batcher is interrupted is
+    //      answered 503 at once, so no handler is left waiting on it */
+    private void batchLoop() {
+    	ArrayList<Job> batch = new ArrayList<Job>();
+    	while (this.running) {
+    		batch.clear();
+    		try {
+    			batch.add(this.queue.take());
+    			this.queue.drainTo(batch, this.maxBatch - 1);
+    		} // END try
+    		catch (InterruptedException e) {
+    			for (Job job : batch) {
+    				job.reply.complete(new Reply(503, "Error: server shutting down"));
+    			} // END for loop
+    			return;
+    		} // END catch
+    		this.metrics.recordBatch(batch.size());
+    		for (Job job : batch) {
+    			try {
+    				this.workers.execute(new Task(job));
+    			} // END try
+    			catch (RejectedExecutionException e) {
+    				job.reply.complete(new Reply(503, this.running ? "Error: server busy" : "Error: server shutting down"));
+    			} // END catch
+    		} // END for loop
+    	} // END while loop
+    } // END batchLoop()
+
+    /* run
+    // Pre-conditions:
+    //    - Runs on a worker thread
+    // Post-conditions:
+    //    - job is decoded and its reply completed, unless it has already been
+    //      answered */
+    private void run(Job job) {
+    	if (job.reply.isDone()) {
+    		return;   // its handler timed out
+    	} // END if
+    	this.metrics.recordQueueWait(System.nanoTime() - job.arrived);
+    	job.reply.complete(decode(job));
+    } // END run()
+
+    /* decode
+    // Pre-conditions:
+    //    - job holds a request body and its parameters
+    // Post-conditions:
+    //    - Returns the reply for job: the decode result, or the error */
+    private static Reply decode(Job job) {
+    	try {
+    		byte[] body = job.body;
+    		boolean binary = body.length >= 4 && body[0] == 'L' && body[1] == 'A' && body[2] == 'T' && body[3] == 'B';
+    		Lattice lattice = binary ? LatticeBinary.read(ByteBuffer.wrap(body), "<request>", MAX_VOCABULARY)
+    		                         : LatticeParser.parse(body, MAX_VOCABULARY);
+
+    		Hypothesis best = lattice.decode(job.lmScale);
+    		StringBuilder s = new StringBuilder();
+    		s.append("utterance ").append(lattice.getUtteranceID()).append('\n');
+    		s.append("hypothesis ").append(best.getHypothesisString().trim()).append('\n');
+    		s.append("score ").append(best.getPathScore()).append('\n');
+    		if (job.nbest > 0) {
+    			ArrayList<Hypothesis> list = lattice.decodeNBest(job.lmScale, job.nbest);
+    			for (int k = 0; k < list.size(); k++) {
+    				s.append("nbest ").append(k + 1).append(' ').append(list.get(k).getPathScore()).append(' ')
+    				 .append(list.get(k).getHypothesisString().trim()).append('\n');
+    			} // END for loop
+    		} // END if NBEST
+    		return new Reply(200, s.toString());
+    	} // END try
+    	catch (IOException e) {
+    		return new Reply(400, e.getMessage() != null ? e.getMessage() : "Error: " + e);
+    	} // END catch
+    	catch (IllegalStateException e) {
+    		return new Reply(422, e.getMessage() != null ? e.getMessage() : "Error: " + e);
+    	} // END catch
+    	catch (RuntimeException | OutOfMemoryError e) {
+    		return new Reply(500, "Error: " + e);
+    	} // END catch
+    } // END decode()
+
+    /* Metrics - counters and a latency Histogram, safe to update from any thread
+    // Notes:
+    //    - Percentiles are upper bounds within 2x (see Histogram) */
+    private static final class Metrics {
+    	final long started = System.nanoTime();
+    	final AtomicLong requests = new AtomicLong();
+    	final AtomicLong errors = new AtomicLong();
+    	final AtomicLong batches = new AtomicLong();
+    	final AtomicLong batchedJobs = new AtomicLong();
+    	final AtomicLong maxBatch = new AtomicLong();
+    	final AtomicLong queueNanos = new AtomicLong();
+    	final AtomicLong queued = new AtomicLong();
+    	final Histogram latency = new Histogram();          // ns
+
+    	void record(int status, long nanos) {
+    		this.requests.incrementAndGet();
+    		if (status != 200) {
+    			this.errors.incrementAndGet();
+    		} // END if
+    		this.latency.record(nanos);
+    	} // END record()
+
+    	void recordBatch(int size) {
+    		this.batches.incrementAndGet();
+    		this.batchedJobs.addAndGet(size);
+    		this.maxBatch.accumulateAndGet(size, Math::max);
+    	} // END recordBatch()
+
+    	void recordQueueWait(long nanos) {
+    		this.queued.incrementAndGet();
+    		this.queueNanos.addAndGet(nanos);
+    	} // END recordQueueWait()
+
+    	String report(int queueLength) {
+    		long n = this.requests.get();
+    		double seconds = (System.nanoTime() - this.started) / 1e9;
+    		long b = this.batches.get();
+    		long q = this.queued.get();
+    		return "requests " + n + "\n"
+    		       + "errors " + this.errors.get() + "\n"
+    		       + "uptime_seconds " + String.format("%.3f", seconds) + "\n"
+    		       + "throughput_per_second " + String.format("%.3f", n / seconds) + "\n"
+    		       + "latency_mean_ms " + String.format("%.3f", this.latency.getMean() / 1e6) + "\n"
+    		       + "latency_p50_ms " + this.latency.quantile(0.50) / 1e6 + "\n"
+    		       + "latency_p99_ms " + this.latency.quantile(0.99) / 1e6 + "\n"
+    		       + "latency_max_ms " + this.latency.getMax() / 1e6 + "\n"
+    		       + "queue_wait_mean_ms " + String.format("%.3f", q == 0 ? 0.0 : this.queueNanos.get() / 1e6 / q) + "\n"
+    		       + "queue_length " + queueLength + "\n"
+    		       + "batches " + b + "\n"
+    		       + "batch_mean_size " + String.format("%.3f", b == 0 ? 0.0 : (double) this.batchedJobs.get() / b) + "\n"
+    		       + "batch_max_size " + this.maxBatch.get() + "\n";
+    	} // END report()
+    } // END Metrics class
+
+    public static void main(String[] args) {
+        int[] settings = {8241, Runtime.getRuntime().availableProcessors(), 32, 64};
+        if( args.length > settings.length ) {
+            System.err.println("Error: Wrong number of arguments.");
+            System.exit(2);
+        }
+        try {
+            for( int k=0; k<args.length; k++ ) {
+                settings[k] = Integer.parseInt(args[k]);
+            }
+        } catch( NumberFormatException e ) {
+            System.err.println("Error: arguments must be integers.");
+            System.exit(2);
+        }
+        if( settings[0] < 0 || settings[1] < 1 || settings[2] < 1 || settings[3] < 0 || settings[3] > 2047 ) {
+            System.err.println("Error: invalid port, numWorkers, maxBatch or maxBodyMegabytes.");
+            System.exit(2);
+        }
+
+        DecodeServer server = null;
+        try {
+            server = new DecodeServer(settings[0], settings[1], settings[2], settings[3] << 20);
+        } catch( IOException e ) {
+            System.err.println("Error: Unable to listen on port " + settings[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+        final DecodeServer running = server;
+        Runtime.getRuntime().addShutdownHook(new Thread(running::stop));
+        running.start();
+        System.out.println("Listening on http://127.0.0.1:" + running.getPort() + "/");
+    }
+} // END DecodeServer class
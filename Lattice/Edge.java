@@ -7,6 +7,9 @@
  * Note that the Edge type is immutable: after the fields are initialized
  * in the constructor, they cannot be modified.
  *
+ * A Lattice keeps its edges in parallel primitive arrays rather than as
+ * Edge objects; Lattice.getEdge creates an Edge on demand as a view of one.
+ *
  * This class has been implemented for you
  * 
  * Brian Hutchinson
@@ -15,7 +18,7 @@
  */
 
 public class Edge {
-    private String label;          // The word associated with the edge
+    private int labelId;           // Vocabulary id of the word associated with the edge
     private int amScore, lmScore;  // The acoustic and language model scores
                                    // (A speech recognizer trades off scores of
                                    //  these two models to find the best path)
@@ -27,11 +30,23 @@ public class Edge {
     //     - label, amScore and lmScore contain the label and two weights
     //       associated with the edge to be constructed
     // Post-conditions
-    //     - Field this.label is set to label
+    //     - Field this.labelId is set to label's Vocabulary id
     //     - Field this.amScore is set to amScore
     //     - Field this.lmScore is set to lmScore
     public Edge(String label, int amScore, int lmScore) {
-        this.label = label;
+        this(Vocabulary.intern(label), amScore, lmScore);
+    }
+
+    // Edge
+    // Preconditions:
+    //     - labelId was returned by Vocabulary.intern, and amScore and lmScore
+    //       are the two weights associated with the edge to be constructed
+    // Post-conditions
+    //     - Field this.labelId is set to labelId
+    //     - Field this.amScore is set to amScore
+    //     - Field this.lmScore is set to lmScore
+    public Edge(int labelId, int amScore, int lmScore) {
+        this.labelId = labelId;
         this.amScore = amScore;
         this.lmScore = lmScore;
         return;
@@ -41,11 +56,11 @@ public class Edge {
     // Preconditions:
     //     - e is an Edge to be copied
     // Post-conditions
-    //     - this.label initialized to e's label
+    //     - this.labelId initialized to e's labelId
     //     - this.lmScore initialized to e's lmScore
     //     - this.amScore initialized to e's amScore
     public Edge(Edge e) {
-        this.label = e.getLabel();
+        this.labelId = e.getLabelId();
         this.amScore = e.getAmScore();
         this.lmScore = e.getLmScore();
     }
@@ -56,9 +71,18 @@ public class Edge {
     // Preconditions:
     //     - None
     // Post-conditions
-    //     - Return's this.label
+    //     - Return's the word with id this.labelId
     public String getLabel() {
-        return this.label;
+        return Vocabulary.word(this.labelId);
+    }
+
+    // getLabelId
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Return's this.labelId
+    public int getLabelId() {
+        return this.labelId;
     }
 
     // getLmScore
@@ -0,0 +1,248 @@
+/*
+ * EdgeIntervalIndex.java
+ *
+ * A static index over the time spans of a lattice's edges, answering
+ * "which edges overlap time t" (or a time range) in O(log E + k) for k
+ * answers, where scanning every edge costs O(E).
+ *
+ * Edge k spans the closed interval [start[k], end[k]], i.e. from the time
+ * of its source node to the time of its target node.  The index is a
+ * centered interval tree: each tree node stores a center time, the spans
+ * containing it (sorted once by start and once by end), and subtrees for
+ * the spans entirely before and entirely after it.  All of it lives in
+ * primitive arrays.
+ *
+ */
+import java.util.Arrays;
+
+public final class EdgeIntervalIndex {
+    private final double[] start, end;    // Span of each edge, indexed by edge id
+    private final int[] byStart;          // All edge ids sorted by start time
+    private final double[] sortedStarts;  // start[byStart[k]], for binary search
+
+    private final double[] center;        // Tree nodes: center time,
+    private final int[] left, right;      //   subtrees (-1 if empty), and the slice
+    private final int[] midFrom, midTo;   //   [midFrom, midTo) of midByStart/midByEnd
+    private final int[] midByStart;       // Spans containing each center, start ascending
+    private final int[] midByEnd;         // The same spans, end descending
+    private final int root;
+    private int nodes, midCount;          // Fill counters, used only while building
+
+    /* EdgeIntervalIndex
+    // Pre-conditions:
+    //    - start and end have equal length, start[k] <= end[k]
+    // Post-conditions:
+    //    - The index over the spans [start[k], end[k]] is built, in O(E log E) */
+    public EdgeIntervalIndex(double[] start, double[] end) {
+    	this.start = start;
+    	this.end = end;
+    	int edges = start.length;
+
+    	this.byStart = new int[edges];
+    	for (int k = 0; k < edges; k++) {
+    		this.byStart[k] = k;
+    	} // END for loop
+    	IndexSort.sort(this.byStart, start);
+    	this.sortedStarts = new double[edges];
+    	for (int k = 0; k < edges; k++) {
+    		this.sortedStarts[k] = start[this.byStart[k]];
+    	} // END for loop
+
+    	int capacity = Math.max(edges, 1);  // every tree node holds at least one span
+    	this.center = new double[capacity];
+    	this.left = new int[capacity];
+    	this.right = new int[capacity];
+    	this.midFrom = new int[capacity];
+    	this.midTo = new int[capacity];
+    	this.midByStart = new int[edges];
+    	this.midByEnd = new int[edges];
+    	this.root = build(this.byStart.clone());
+    } // END EdgeIntervalIndex() CONSTRUCTOR
+
+    /* build
+    // Pre-conditions:
+    //    - ids holds edge ids sorted by start time
+    // Post-conditions:
+    //    - Returns the tree node for ids (-1 if ids is empty)
+    // Notes:
+    //    - The center is the start of the median span, so it belongs to the
+    //      node and each subtree gets at most half of the spans */
+    private int build(int[] ids) {
+    	if (ids.length == 0) {
+    		return -1;
+    	} // END if EMPTY
+    	double c = this.start[ids[ids.length / 2]];
+
+    	int before = 0;
+    	int after = 0;
+    	for (int id : ids) {
+    		if (this.end[id] < c) {
+    			before++;
+    		} // END if
+    		else if (this.start[id] > c) {
+    			after++;
+    		} // END if
+    	} // END for loop
+    	int[] lefts = new int[before];
+    	int[] rights = new int[after];
+    	int node = this.nodes;
+    	this.nodes++;
+    	this.center[node] = c;
+    	this.midFrom[node] = this.midCount;
+
+    	before = 0;
+    	after = 0;
+    	for (int id : ids) {
+    		if (this.end[id] < c) {
+    			lefts[before] = id;
+    			before++;
+    		} // END if BEFORE THE CENTER
+    		else if (this.start[id] > c) {
+    			rights[after] = id;
+    			after++;
+    		} // END if AFTER THE CENTER
+    		else {
+    			this.midByStart[this.midCount] = id;
+    			this.midByEnd[this.midCount] = id;
+    			this.midCount++;
+    		} // END else CONTAINS THE CENTER
+    	} // END for loop
+    	this.midTo[node] = this.midCount;
+
+    	// end descending: sort ascending, then reverse the slice
+    	int from = this.midFrom[node];
+    	int[] slice = Arrays.copyOfRange(this.midByEnd, from, this.midCount);
+    	IndexSort.sort(slice, this.end);
+    	for (int k = 0; k < slice.length; k++) {
+    		this.midByEnd[this.midCount - 1 - k] = slice[k];
+    	} // END for loop
+
+    	this.left[node] = build(lefts);
+    	this.right[node] = build(rights);
+    	return node;
+    } // END build()
+
+    /* size
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of indexed edges */
+    public int size() {
+    	return this.start.length;
+    } // END size()
+
+    /* edgesAt - point query
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the ids of the edges whose span contains time, in no
+    //      particular order */
+    public int[] edgesAt(double time) {
+    	Hits hits = new Hits();
+    	stab(time, hits);
+    	return hits.toArray();
+    } // END edgesAt()
+
+    /* edgesAt - batch point query
+    // Pre-conditions:
+    //    - times holds the query times, typically sorted ascending
+    // Post-conditions:
+    //    - Returns one array of edge ids per query time, in the order of times */
+    public int[][] edgesAt(double[] times) {
+    	int[][] result = new int[times.length][];
+    	Hits hits = new Hits();
+    	for (int q = 0; q < times.length; q++) {
+    		hits.count = 0;
+    		stab(times[q], hits);
+    		result[q] = hits.toArray();
+    	} // END for loop
+    	return result;
+    } // END edgesAt()
+
+    /* edgesOverlapping - range query
+    // Pre-conditions:
+    //    - from <= to
+    // Post-conditions:
+    //    - Returns the ids of the edges whose span intersects [from, to]
+    // Notes:
+    //    - Such a span either contains from, or starts inside (from, to];
+    //      the two cases are disjoint and the second is a binary search */
+    public int[] edgesOverlapping(double from, double to) {
+    	Hits hits = new Hits();
+    	stab(from, hits);
+    	int k = upperBound(this.sortedStarts, from);
+    	while (k < this.sortedStarts.length && this.sortedStarts[k] <= to) {
+    		hits.add(this.byStart[k]);
+    		k++;
+    	} // END while loop
+    	return hits.toArray();
+    } // END edgesOverlapping()
+
+    /* stab
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Adds to hits every edge whose span contains time */
+    private void stab(double time, Hits hits) {
+    	int node = this.root;
+    	while (node >= 0) {
+    		double c = this.center[node];
+    		if (time < c) {
+    			for (int m = this.midFrom[node]; m < this.midTo[node] && this.start[this.midByStart[m]] <= time; m++) {
+    				hits.add(this.midByStart[m]);
+    			} // END for loop
+    			node = this.left[node];
+    		} // END if LEFT OF CENTER
+    		else if (time > c) {
+    			for (int m = this.midFrom[node]; m < this.midTo[node] && this.end[this.midByEnd[m]] >= time; m++) {
+    				hits.add(this.midByEnd[m]);
+    			} // END for loop
+    			node = this.right[node];
+    		} // END if RIGHT OF CENTER
+    		else {
+    			for (int m = this.midFrom[node]; m < this.midTo[node]; m++) {
+    				hits.add(this.midByStart[m]);
+    			} // END for loop
+    			node = -1;  // spans in the subtrees cannot contain the center
+    		} // END else AT CENTER
+    	} // END while loop
+    } // END stab()
+
+    /* upperBound
+    // Pre-conditions:
+    //    - a is sorted ascending
+    // Post-conditions:
+    //    - Returns the first index whose value is greater than v (a.length if none) */
+    private static int upperBound(double[] a, double v) {
+    	int lo = 0;
+    	int hi = a.length;
+    	while (lo < hi) {
+    		int mid = (lo + hi) >>> 1;
+    		if (a[mid] <= v) {
+    			lo = mid + 1;
+    		} // END if
+    		else {
+    			hi = mid;
+    		} // END else
+    	} // END while loop
+    	return lo;
+    } // END upperBound()
+
+    /* Hits - growable int buffer for query results */
+    private static final class Hits {
+    	int[] ids = new int[16];
+    	int count;
+
+    	void add(int id) {
+    		if (this.count == this.ids.length) {
+    			this.ids = Arrays.copyOf(this.ids, 2 * this.count);
+    		} // END if GROW
+    		this.ids[this.count] = id;
+    		this.count++;
+    	} // END add()
+
+    	int[] toArray() {
+    		return Arrays.copyOf(this.ids, this.count);
+    	} // END toArray()
+    } // END Hits class
+} // END EdgeIntervalIndex class
@@ -0,0 +1,104 @@
+/*
+ * Histogram.java
+ *
+ * A histogram of non-negative long values (latencies in nanoseconds, node
+ * counts, byte counts) in power-of-two buckets: bucket 0 counts zeros and
+ * bucket b counts values in [2^(b-1), 2^b).  Quantiles are therefore upper
+ * bounds within a factor of two, which is enough to tell where time goes,
+ * and recording is a few atomic adds, cheap enough to leave on.
+ *
+ * A Histogram may be updated from several threads at once.  The getters
+ * read the counters one at a time, so a reading taken during updates may
+ * be slightly inconsistent; one taken afterwards is exact.
+ *
+ */
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class Histogram {
+    public static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /* record
+    // Pre-conditions:
+    //    - value >= 0 (negative values are counted as 0)
+    // Post-conditions:
+    //    - value is added to the histogram */
+    public void record(long value) {
+    	value = Math.max(0, value);
+    	this.buckets.incrementAndGet(bucket(value));
+    	this.count.incrementAndGet();
+    	this.sum.addAndGet(value);
+    	if (value > this.max.get()) {
+    		this.max.accumulateAndGet(value, Math::max);
+    	} // END if
+    } // END record()
+
+    /* bucket / upperBound
+    // Pre-conditions:
+    //    - value >= 0; 0 <= b < BUCKETS
+    // Post-conditions:
+    //    - bucket returns the bucket value falls in; upperBound returns the
+    //      exclusive upper bound of bucket b (Long.MAX_VALUE for the last) */
+    public static int bucket(long value) {
+    	return 64 - Long.numberOfLeadingZeros(value);
+    } // END bucket()
+
+    public static long upperBound(int b) {
+    	return b >= 63 ? Long.MAX_VALUE : 1L << b;
+    } // END upperBound()
+
+    /* getCount / getSum / getMax / getMean / getBucketCount
+    // Pre-conditions:
+    //    - 0 <= b < BUCKETS
+    // Post-conditions:
+    //    - Return the number of values recorded, their sum, the largest, their
+    //      mean (0 if none) and the count in bucket b */
+    public long getCount() {
+    	return this.count.get();
+    } // END getCount()
+
+    public long getSum() {
+    	return this.sum.get();
+    } // END getSum()
+
+    public long getMax() {
+    	return this.max.get();
+    } // END getMax()
+
+    public double getMean() {
+    	long n = this.count.get();
+    	return n == 0 ? 0.0 : (double) this.sum.get() / n;
+    } // END getMean()
+
+    public long getBucketCount(int b) {
+    	return this.buckets.get(b);
+    } // END getBucketCount()
+
+    /* quantile
+    // Pre-conditions:
+    //    - 0 <= q <= 1
+    // Post-conditions:
+    //    - Returns an upper bound on the q'th quantile of the recorded values:
+    //      the top of the bucket holding it, capped at the largest value seen
+    //      (0 if nothing was recorded) */
+    public long quantile(double q) {
+    	long total = 0;
+    	for (int b = 0; b < BUCKETS; b++) {
+    		total += this.buckets.get(b);
+    	} // END for loop
+    	long rank = Math.max(1, (long) Math.ceil(q * total));
+    	long seen = 0;
+    	for (int b = 0; b < BUCKETS; b++) {
+    		seen += this.buckets.get(b);
+    		if (seen >= rank) {
+    			return Math.min(b == 0 ? 0 : upperBound(b) - 1, this.max.get());
+    		} // END if
+    	} // END for loop
+    	return 0;
+    } // END quantile()
+} // END Histogram class
@@ -13,7 +13,8 @@
 
 public class Hypothesis {
     private double pathScore;                  // Stores the cumulative path score
-    private java.util.ArrayList<String> words; // Array of words in the path
+    private int[] words;                       // Vocabulary ids of the words in the path
+    private int numWords;                      // Number of words in the path
 
     // Constructor
 
@@ -21,10 +22,10 @@ public class Hypothesis {
     // Preconditions:
     //     - None
     // Post-conditions
-    //     - this.words points to a new, empty, ArrayList object
+    //     - this.words points to a new, empty, array of words
     //     - this.pathScore == 0
     public Hypothesis() {
-        words = new java.util.ArrayList<String>();
+        words = new int[16];
     }
 
     // Mutator/Modifier
@@ -51,12 +52,24 @@ public class Hypothesis {
     // Hints:
     //     - To split a word into individual words, see String's split method
     public void addWord(String word, double combinedScore) {
+        addWord(Vocabulary.intern(word), combinedScore);
+    }
+
+    // addWord
+    // Preconditions:
+    //     - labelId is the Vocabulary id of another word to add to the path
+    //     - combinedScore is the weight on the corresponding edge
+    // Post-conditions
+    //     - As addWord(Vocabulary.word(labelId), combinedScore), using the
+    //       split the Vocabulary made when the word was interned
+    public void addWord(int labelId, double combinedScore) {
         pathScore += combinedScore;
-        if( !word.equals("-silence-") ) {
-            String[] parts = word.split("_");
-            for( int i=0; i<parts.length; i++ ) {
-                words.add(parts[i]);
-            }
+        int[] parts = Vocabulary.hypothesisWords(labelId);
+        if( numWords + parts.length > words.length ) {
+            words = java.util.Arrays.copyOf(words, Math.max(2*words.length, numWords + parts.length));
+        }
+        for( int i=0; i<parts.length; i++ ) {
+            words[numWords++] = parts[i];
         }
     }
 
@@ -79,11 +92,11 @@ public class Hypothesis {
     //       is returned, obtained by concatenating the individual words
     //       in the hypothesis (with spaces in-between)
     public String getHypothesisString() {
-        String result = "";
-        for( int i=0; i<words.size(); i++ ) {
-            result += words.get(i) + " ";
+        StringBuilder result = new StringBuilder();
+        for( int i=0; i<numWords; i++ ) {
+            result.append(Vocabulary.word(words[i])).append(' ');
         }    
-        return result;
+        return result.toString();
     }
 
     // computeWER
@@ -97,52 +110,78 @@ public class Hypothesis {
     //        the hypothesis and reference word sequences.  Given that, WER
     //          is simply the minimum edit distance divided by the number of words
     //        in the reference sequence
+    // Notes:
+    //     - The reference is read through Reference's cache, so scoring many
+    //       hypotheses against one file reads it once
     public double computeWER(String referenceFilename) {
-        java.util.Scanner input = null;
+        Reference reference = null;
         try {
-            input = new java.util.Scanner(new java.io.File(referenceFilename));
+            reference = Reference.load(referenceFilename);
         } catch( java.io.FileNotFoundException e ) {
             System.out.println("Error: File " + referenceFilename + " not found");
             System.exit(1);
         }
+        return computeWordErrors(reference).getWER();
+    }
 
-        java.util.ArrayList<String> reference = new java.util.ArrayList<String>();
-        while( input.hasNext() ) {
-            reference.add(input.next());
-        }
-        
-        double[][] d = new double[words.size()+1][reference.size()+1];
-        for( int i=0; i<=words.size(); i++ ) {
-            d[i][0] = i;
-        }
-        for( int j=0; j<=reference.size(); j++ ) {
-            d[0][j] = j;
+    // computeWordErrors
+    // Preconditions:
+    //     - reference is the reference transcript
+    //     - The hypothesis has already been created via calls to addWord
+    // Post-conditions
+    //     - The substitutions, insertions and deletions of a minimum edit
+    //       distance alignment of the hypothesis to the reference are returned
+    // Notes:
+    //     - Words are compared by their Vocabulary ids, and only two rows of the
+    //       edit distance table are kept, so this is O(words * reference)
+    //       time but O(reference) space
+    //     - Among equally short alignments, substitutions are preferred to
+    //       deletions, and deletions to insertions
+    public WordErrorCounts computeWordErrors(Reference reference) {
+        int n = reference.size();
+
+        // row[j] is the distance from the first i hypothesis words to the
+        // first j reference words, and subs/ins/dels split it by error kind
+        int[] row = new int[n+1], subs = new int[n+1], ins = new int[n+1], dels = new int[n+1];
+        int[] prev = new int[n+1], prevSubs = new int[n+1], prevIns = new int[n+1], prevDels = new int[n+1];
+        for( int j=0; j<=n; j++ ) {
+            row[j] = j;
+            dels[j] = j;
         }
-        for( int j=1; j<=reference.size(); j++ ) {
-            for( int i=1; i<=words.size(); i++ ) {
-                if( words.get(i-1).equals(reference.get(j-1)) ) {
-                    d[i][j] = d[i-1][j-1];
+        for( int i=1; i<=numWords; i++ ) {
+            int[] t = prev; prev = row; row = t;
+            t = prevSubs; prevSubs = subs; subs = t;
+            t = prevIns; prevIns = ins; ins = t;
+            t = prevDels; prevDels = dels; dels = t;
+
+            row[0] = i;
+            subs[0] = 0;
+            ins[0] = i;
+            dels[0] = 0;
+            for( int j=1; j<=n; j++ ) {
+                int match = words[i-1] == reference.getWordId(j-1) ? 0 : 1;
+                int diagonal = prev[j-1] + match;
+                int deletion = row[j-1] + 1;
+                int insertion = prev[j] + 1;
+                if( diagonal <= deletion && diagonal <= insertion ) {
+                    row[j] = diagonal;
+                    subs[j] = prevSubs[j-1] + match;
+                    ins[j] = prevIns[j-1];
+                    dels[j] = prevDels[j-1];
+                } else if( deletion <= insertion ) {
+                    row[j] = deletion;
+                    subs[j] = subs[j-1];
+                    ins[j] = ins[j-1];
+                    dels[j] = dels[j-1] + 1;
                 } else {
-                    d[i][j] = 1+min3(d[i-1][j],d[i][j-1],d[i-1][j-1]);
+                    row[j] = insertion;
+                    subs[j] = prevSubs[j];
+                    ins[j] = prevIns[j] + 1;
+                    dels[j] = prevDels[j];
                 }
             }
         }
 
-        return d[words.size()][reference.size()]/reference.size();
-    }
-
-    // min3
-    // Preconditions:
-    //     - a, b and c are values to be compared
-    // Post-conditions
-    //     - The smallest value out of a, b and c is returned
-    private double min3(double a, double b, double c) {
-        if( a<b && a<c ) {
-            return a;
-        } else if( b<a && b<c ) {
-            return b;
-        } else {
-            return c;
-        }
+        return new WordErrorCounts(subs[n], ins[n], dels[n], n);
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * IndexSort.java
+ *
+ * Sorts arrays of ids (edge ids, node ids) by a primitive key without
+ * boxing them into Integer objects for a Comparator.
+ *
+ */
+
+final class IndexSort {
+
+    private IndexSort() {
+    } // END IndexSort() CONSTRUCTOR
+
+    /* sort
+    // Pre-conditions:
+    //    - every entry of ids is a valid index into key
+    // Post-conditions:
+    //    - ids is sorted ascending by key[id]; ids with equal keys keep their
+    //      relative order (the sort is stable)
+    // Notes:
+    //    - Bottom-up merge sort: O(n log n) time, one scratch array */
+    static void sort(int[] ids, double[] key) {
+    	int n = ids.length;
+    	int[] from = ids;
+    	int[] to = new int[n];
+    	for (int width = 1; width < n; width *= 2) {
+    		for (int lo = 0; lo < n; lo += 2 * width) {
+    			int mid = Math.min(lo + width, n);
+    			int hi = Math.min(lo + 2 * width, n);
+    			int a = lo;
+    			int b = mid;
+    			for (int k = lo; k < hi; k++) {
+    				if (b >= hi || (a < mid && key[from[a]] <= key[from[b]])) {
+    					to[k] = from[a];
+    					a++;
+    				} // END if TAKE LEFT
+    				else {
+    					to[k] = from[b];
+    					b++;
+    				} // END else TAKE RIGHT
+    			} // END for loop MERGE
+    		} // END for loop RUNS
+    		int[] t = from;
+    		from = to;
+    		to = t;
+    	} // END for loop WIDTHS
+    	if (from != ids) {
+    		System.arraycopy(from, 0, ids, 0, n);
+    	} // END if
+    } // END sort()
+} // END IndexSort class
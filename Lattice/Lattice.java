@@ -5,7 +5,10 @@
  * compactly represents a very large space of speech recognition hypotheses
  *
  * Note that the Lattice type is immutable: after the fields are initialized
- * in the constructor, they cannot be modified.
+ * in the constructor, they cannot be modified.  The only later writes fill
+ * the caches built on first use (topological order, time and word
+ * indexes), each published whole through a volatile field, so a Lattice
+ * can be shared between threads (as LatticeCache does).
  *
  * Students may only use functionality provided in the packages
  *     java.lang
@@ -23,12 +26,9 @@ import java.lang.StringBuilder;
 import java.math.BigInteger;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.Scanner;
 import java.util.Stack;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.NoSuchElementException;
 import java.util.HashSet;
 
@@ -36,12 +36,19 @@ public class Lattice {
     private String utteranceID;       // A unique ID for the sentence
     private int startIdx, endIdx;     // Indices of the special start and end tokens
     private int numNodes, numEdges;   // The number of nodes and edges, respectively
-    private Edge[][] adjMatrix;       // Adjacency matrix representing the lattice
-                                      //   Two dimensional array of Edge objects
-                                      //   adjMatrix[i][j] == null means no edge (i,j)
+    private int[] labelIds;           // Edges, as parallel arrays in compressed sparse row
+    private int[] amScores;           //   (CSR) order, sorted by source node, then by target
+    private int[] lmScores;           //   node: Vocabulary id of the label and the two scores
+    private int[] outOffsets;         // Out-edges of node i are the edge ids outOffsets[i] up
+                                      //   to (but not including) outOffsets[i+1]
+    private int[] inOffsets;          // Reverse index: incoming edges of node j are the edge
+    private int[] inEdges;            //   ids inEdges[inOffsets[j]] .. inEdges[inOffsets[j+1]-1]
     private double[] nodeTimes;       // Stores the timestamp for each node
-    private int[] iCoor;              // Stores coordinates of filled matrix in i
-    private int[] jCoor;			  // Stores coordinates of filled matrix in j
+    private int[] iCoor;              // Stores the source node of each edge (CSR order)
+    private int[] jCoor;			  // Stores the target node of each edge (CSR order)
+    private volatile int[] topoOrder;              // Cached topological ordering, computed on first use
+    private volatile EdgeIntervalIndex timeIndex;  // Index of edge time spans, built on first use
+    private volatile WordIndex wordIndex;          // Inverted index of edge labels, built on first use
 
     // Constructor
     /* Lattice
@@ -53,13 +60,14 @@ public class Lattice {
     //     - Field endIdx contains the node number for the end node
     //     - Field numNodes contains the number of nodes in the lattice
     //     - Field numEdges contains the number of edges in the lattice
-    //     - Field adjMatrix encodes the edges in the lattice:
-    //        If an edge exists from node i to node j, adjMatrix[i][j] contains
-    //        the address of an Edge object, which itself contains
-    //           1) The edge's label (word)
-    //           2) The edge's acoustic model score (amScore)
-    //           3) The edge's language model score (lmScore)
-    //        If no edge exists from node i to node j, adjMatrix[i][j] == null
+    //     - Fields outOffsets, iCoor, jCoor, labelIds, amScores and lmScores
+    //        encode the edges in the lattice as compressed sparse rows: the
+    //        out-edges of node i are the edge ids outOffsets[i] ..
+    //        outOffsets[i+1]-1, and edge k runs from iCoor[k] to jCoor[k] with
+    //           1) The edge's label (word), as a Vocabulary id: labelIds[k]
+    //           2) The edge's acoustic model score (amScore): amScores[k]
+    //           3) The edge's language model score (lmScore): lmScores[k]
+    //     - Fields inOffsets and inEdges index the incoming edges of each node
     //     - Field nodeTimes is allocated and populated with the timestamps for each node
     // Notes:
     //     - If you encounter a FileNotFoundException, print to standard error
@@ -94,12 +102,14 @@ public class Lattice {
         			case "numNodes": 
         		           this.numNodes = latticeReader.nextInt();
         		           this.nodeTimes = new double[this.endIdx + 1];
-        		           this.adjMatrix = new Edge[this.endIdx + 1][this.endIdx + 1];
         		           break;
         			case "numEdges": 
         		           this.numEdges = latticeReader.nextInt();
         		           this.iCoor = new int[getNumEdges()];
         		           this.jCoor = new int[getNumEdges()];
+        		           this.labelIds = new int[getNumEdges()];
+        		           this.amScores = new int[getNumEdges()];
+        		           this.lmScores = new int[getNumEdges()];
         		           break;
         			case "node": 
         		           this.nodeTimes[latticeReader.nextInt()] = latticeReader.nextDouble();
@@ -110,13 +120,17 @@ public class Lattice {
         		           j = latticeReader.nextInt();
         		           this.iCoor[z] = i;
         		           this.jCoor[z] = j; 
-        		           this.adjMatrix[i][j] = new Edge(latticeReader.next(), latticeReader.nextInt(), latticeReader.nextInt());
+        		           this.labelIds[z] = Vocabulary.intern(latticeReader.next());
+        		           this.amScores[z] = latticeReader.nextInt();
+        		           this.lmScores[z] = latticeReader.nextInt();
         		           z++;
         		           break;
         		  default: System.out.println("Error: hit default case.");
         		           break;
         		} // END switch statement
         	} // END while loop
+        	
+        	buildAdjacency();
         } // END try 
 
 		catch (FileNotFoundException e) {
@@ -130,6 +144,118 @@ public class Lattice {
         } // END catch KILL
     } // END Lattice() obj CONSTRUCTOR 
     
+    /* Lattice - build a lattice from already parsed fields
+    // Pre-conditions:
+    //    - nodeTimes has length endIdx+1
+    //    - iCoor, jCoor, labelIds, amScores and lmScores each hold numEdges
+    //      entries, in any order; labelIds are Vocabulary ids
+    // Post-conditions:
+    //    - The fields are initialized exactly as the file constructor would;
+    //      the arrays are taken over, not copied
+    // Notes:
+    //    - Used by the alternative loaders (e.g. LatticeParser) */
+    Lattice(String utteranceID, int startIdx, int endIdx, int numNodes, double[] nodeTimes,
+    		int[] iCoor, int[] jCoor, int[] labelIds, int[] amScores, int[] lmScores) {
+    	this.utteranceID = utteranceID;
+    	this.startIdx = startIdx;
+    	this.endIdx = endIdx;
+    	this.numNodes = numNodes;
+    	this.numEdges = labelIds.length;
+    	this.nodeTimes = nodeTimes;
+    	this.iCoor = iCoor;
+    	this.jCoor = jCoor;
+    	this.labelIds = labelIds;
+    	this.amScores = amScores;
+    	this.lmScores = lmScores;
+    	buildAdjacency();
+    } // END Lattice() field CONSTRUCTOR
+    
+    /* buildAdjacency
+    // Pre-conditions:
+    //    - the edge arrays hold the numEdges edges in any order
+    //    - endIdx is the largest node index
+    // Post-conditions:
+    //    - the edge arrays are reordered into CSR order (by source,
+    //      then by target; edges with equal endpoints keep their file order)
+    //    - outOffsets, inOffsets and inEdges are allocated and populated
+    // Notes:
+    //    - Two stable counting-sort passes, so this runs in O(V + E) */
+    private void buildAdjacency() {
+    	int nodes = this.endIdx + 1;
+    	int edgeCount = getNumEdges();
+    	
+    	// sorting edge ids by target, then stably by source
+    	int[] byTarget = countingSort(identity(edgeCount), this.jCoor, nodes);
+    	int[] order = countingSort(byTarget, this.iCoor, nodes);
+    	
+    	this.iCoor = permute(this.iCoor, order);
+    	this.jCoor = permute(this.jCoor, order);
+    	this.labelIds = permute(this.labelIds, order);
+    	this.amScores = permute(this.amScores, order);
+    	this.lmScores = permute(this.lmScores, order);
+    	
+    	this.outOffsets = offsets(this.iCoor, nodes);
+    	this.inOffsets = offsets(this.jCoor, nodes);
+    	this.inEdges = countingSort(identity(edgeCount), this.jCoor, nodes);
+    } // END buildAdjacency()
+    
+    /* identity
+    // Pre-conditions:
+    //    - n >= 0
+    // Post-conditions:
+    //    - Returns the array {0, 1, ..., n-1} */
+    private static int[] identity(int n) {
+    	int[] ar = new int[n];
+    	for (int k = 0; k < n; k++) {
+    		ar[k] = k;
+    	} // END for loop
+    	return ar;
+    } // END identity()
+    
+    /* permute
+    // Pre-conditions:
+    //    - order is a permutation of the indices of values
+    // Post-conditions:
+    //    - Returns the array whose k'th entry is values[order[k]] */
+    private static int[] permute(int[] values, int[] order) {
+    	int[] ar = new int[order.length];
+    	for (int k = 0; k < order.length; k++) {
+    		ar[k] = values[order[k]];
+    	} // END for loop
+    	return ar;
+    } // END permute()
+    
+    /* offsets
+    // Pre-conditions:
+    //    - every entry of keys lies in [0, nodes)
+    // Post-conditions:
+    //    - Returns an array of length nodes+1 whose entry n is the number of
+    //      keys smaller than n (i.e. the row offsets of a CSR structure) */
+    private static int[] offsets(int[] keys, int nodes) {
+    	int[] off = new int[nodes + 1];
+    	for (int k = 0; k < keys.length; k++) {
+    		off[keys[k] + 1]++;
+    	} // END for loop
+    	for (int n = 0; n < nodes; n++) {
+    		off[n + 1] += off[n];
+    	} // END for loop
+    	return off;
+    } // END offsets()
+    
+    /* countingSort
+    // Pre-conditions:
+    //    - ids holds edge ids, keys[id] lies in [0, nodes) for each of them
+    // Post-conditions:
+    //    - Returns ids stably sorted by keys[id] */
+    private static int[] countingSort(int[] ids, int[] keys, int nodes) {
+    	int[] next = offsets(keys, nodes);
+    	int[] sorted = new int[ids.length];
+    	for (int k = 0; k < ids.length; k++) {
+    		sorted[next[keys[ids[k]]]++] = ids[k];
+    	} // END for loop
+    	return sorted;
+    } // END countingSort()
+    
     // ACCESSORS 
     /* getUtteranceID
     // Pre-conditions:
@@ -158,6 +284,124 @@ public class Lattice {
         return this.numEdges;
     } // END getNumEdges() ACCESSOR
     
+    /* getStartIdx
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the index of the start node */
+    int getStartIdx() {
+        return this.startIdx;
+    } // END getStartIdx() ACCESSOR
+    
+    /* getEndIdx
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the index of the end node, which is also the largest node index */
+    int getEndIdx() {
+        return this.endIdx;
+    } // END getEndIdx() ACCESSOR
+    
+    /* getNodeTime
+    // Pre-conditions:
+    //    - 0 <= n <= endIdx
+    // Post-conditions:
+    //    - Returns the timestamp of node n */
+    double getNodeTime(int n) {
+        return this.nodeTimes[n];
+    } // END getNodeTime() ACCESSOR
+    
+    /* getEdgeSource / getEdgeTarget / getEdgeLabelId / getEdgeLabel /
+    // getEdgeAmScore / getEdgeLmScore / getEdgeCombinedScore - edge view
+    // Pre-conditions:
+    //    - 0 <= k < numEdges; edge ids follow CSR order (by source, then target),
+    //      which is also the order toString writes them in
+    // Post-conditions:
+    //    - Return the fields of edge k, read straight from the edge arrays;
+    //      getEdgeCombinedScore is computed exactly as Edge.getCombinedScore
+    // Notes:
+    //    - None of these allocate, so a loop over 0 .. getNumEdges()-1 (or
+    //      over getFirstOutEdge .. getEndOutEdge of a node) visits every edge
+    //      without creating objects */
+    public int getEdgeSource(int k) {
+        return this.iCoor[k];
+    } // END getEdgeSource() ACCESSOR
+    
+    public int getEdgeTarget(int k) {
+        return this.jCoor[k];
+    } // END getEdgeTarget() ACCESSOR
+    
+    public int getEdgeLabelId(int k) {
+        return this.labelIds[k];
+    } // END getEdgeLabelId() ACCESSOR
+    
+    public String getEdgeLabel(int k) {
+        return Vocabulary.word(this.labelIds[k]);
+    } // END getEdgeLabel() ACCESSOR
+    
+    public int getEdgeAmScore(int k) {
+        return this.amScores[k];
+    } // END getEdgeAmScore() ACCESSOR
+    
+    public int getEdgeLmScore(int k) {
+        return this.lmScores[k];
+    } // END getEdgeLmScore() ACCESSOR
+    
+    public int getEdgeCombinedScore(int k, double lmScale) {
+        return this.amScores[k] + (int)(lmScale * this.lmScores[k]);
+    } // END getEdgeCombinedScore() ACCESSOR
+    
+    /* getFirstOutEdge / getEndOutEdge
+    // Pre-conditions:
+    //    - 0 <= n <= endIdx
+    // Post-conditions:
+    //    - The out-edges of node n are the edge ids getFirstOutEdge(n) up to
+    //      (but not including) getEndOutEdge(n), in order of target node */
+    public int getFirstOutEdge(int n) {
+        return this.outOffsets[n];
+    } // END getFirstOutEdge() ACCESSOR
+    
+    public int getEndOutEdge(int n) {
+        return this.outOffsets[n + 1];
+    } // END getEndOutEdge() ACCESSOR
+    
+    /* getEdge
+    // Pre-conditions:
+    //    - 0 <= k < numEdges
+    // Post-conditions:
+    //    - Returns a new Edge holding the label and scores of edge k
+    // Notes:
+    //    - Kept for callers that want an Edge object; the lattice does not
+    //      store them, so prefer the allocation-free accessors above */
+    public Edge getEdge(int k) {
+        return new Edge(this.labelIds[k], this.amScores[k], this.lmScores[k]);
+    } // END getEdge() ACCESSOR
+
+    /* estimateHeapBytes
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns an estimate of the heap this lattice occupies: its node and
+    //      edge arrays (and cached topological order), with 16 bytes of header
+    //      per object; labels are shared through the Vocabulary and not counted
+    // Notes:
+    //    - Time and word indexes are built on first use and not included */
+    public long estimateHeapBytes() {
+    	long nodes = this.endIdx + 1;
+    	long edges = getNumEdges();
+    	long bytes = 64;                            // the Lattice object and its ID
+    	bytes += 16 + 8 * nodes;                    // nodeTimes
+    	bytes += 2 * (16 + 4 * (nodes + 1));        // outOffsets, inOffsets
+    	bytes += 6 * (16 + 4 * edges);              // iCoor, jCoor, labelIds, amScores, lmScores, inEdges
+    	if (this.topoOrder != null) {
+    		bytes += 16 + 4L * this.topoOrder.length;
+    	} // END if ORDER CACHED
+    	if (this.utteranceID != null) {
+    		bytes += 40 + this.utteranceID.length();
+    	} // END if
+    	return bytes;
+    } // END estimateHeapBytes()
+    
     /* toString
     // Pre-conditions:
     //    - None
@@ -174,42 +418,97 @@ public class Lattice {
     //    - You can use the String.format method to print a floating point value 
     //      to two decimal places
     //    - A StringBuilder is asymptotically more efficient for accumulating a
-    //      String than repeated concatenation */
+    //      String than repeated concatenation
+    //    - Shares its formatting with write, which streams the same text */
     public String toString() {
-        int edges = getNumEdges();
-    	StringBuilder s = new StringBuilder()
-                   .append("id " + getUtteranceID() + "\n")
-                   .append("start " + this.startIdx + "\n")
-                   .append("end " + this.endIdx + "\n")
-                   .append("numNodes " + getNumNodes() + "\n")
-                   .append("numEdges " + edges + "\n");
-                   
-        // appending nodes  
-        for (int i = this.startIdx; i <= this.endIdx; i++) {
-        	s.append("node " + i + " " + this.nodeTimes[i] + "\n"); 
-        } // END for loop 
-        
-        // appending edges
-        int i = 0;
-        int j = 0;
-        for (int t = 0; t < edges; t++) {
-        	if (t == edges - 1) {
-        		i = this.iCoor[t];
-            	j = this.jCoor[t];
-            	Edge e = new Edge(this.adjMatrix[i][j]);
-        		s.append("edge " + i + " " + j + " " + e.getLabel() + " " + e.getAmScore() + " " + e.getLmScore());
-        		break;
-        	} // END if 
-            i = this.iCoor[t];
-            j = this.jCoor[t];
-            Edge e = new Edge(this.adjMatrix[i][j]);
-        	s.append("edge " + i + " " + j + " " + e.getLabel() + " " + e.getAmScore() + " " + e.getLmScore() + "\n");
-        } // END for loop
-                   
-        String ns = s.toString(); 
-        return ns;
+    	// sized for typical records, so the builder rarely has to grow
+    	long estimate = 64 + 16L * (this.endIdx - this.startIdx + 1) + 32L * getNumEdges();
+    	TextSink sink = new TextSink(null, (int) Math.min(estimate, Integer.MAX_VALUE - 16));
+    	try {
+    		appendText(sink);
+    	} // END try
+    	catch (java.io.IOException e) {
+    		throw new java.io.UncheckedIOException(e);   // cannot happen: nothing is written
+    	} // END catch
+    	return sink.s.toString();
     } // END toString()
 
+    /* write - stream the lattice in the input file format
+    // Pre-conditions:
+    //    - out is open (it is not closed)
+    // Post-conditions:
+    //    - Exactly the characters of toString() are written to out, a chunk
+    //      at a time, without building the whole text or a String per line
+    //    - Throws IOException if out does */
+    public void write(java.io.Writer out) throws java.io.IOException {
+    	TextSink sink = new TextSink(out, TextSink.CHUNK + 256);
+    	appendText(sink);
+    	sink.flush();
+    } // END write()
+
+    /* appendText
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - The toString() text is appended to sink, one record at a time */
+    private void appendText(TextSink sink) throws java.io.IOException {
+    	int edges = getNumEdges();
+    	StringBuilder s = sink.s;
+    	s.append("id ").append(getUtteranceID()).append('\n')
+    	 .append("start ").append(this.startIdx).append('\n')
+    	 .append("end ").append(this.endIdx).append('\n')
+    	 .append("numNodes ").append(getNumNodes()).append('\n')
+    	 .append("numEdges ").append(edges).append('\n');
+
+    	// appending nodes (append(double) prints as Double.toString does)
+    	for (int i = this.startIdx; i <= this.endIdx; i++) {
+    		s.append("node ").append(i).append(' ').append(this.nodeTimes[i]).append('\n');
+    		sink.endRecord();
+    	} // END for loop
+
+    	// appending edges (already in CSR order: by start node, then end node),
+    	// with no newline after the last one
+    	for (int t = 0; t < edges; t++) {
+    		s.append("edge ").append(this.iCoor[t]).append(' ').append(this.jCoor[t]).append(' ')
+    		 .append(getEdgeLabel(t)).append(' ').append(this.amScores[t]).append(' ').append(this.lmScores[t]);
+    		if (t < edges - 1) {
+    			s.append('\n');
+    		} // END if
+    		sink.endRecord();
+    	} // END for loop
+    } // END appendText()
+
+    /* TextSink - a StringBuilder that is written out whenever it passes CHUNK
+    // characters, or (with no Writer) just keeps growing, so one formatting
+    // routine serves both toString and the streaming writers */
+    private static final class TextSink {
+    	static final int CHUNK = 1 << 13;
+    	final StringBuilder s;
+    	private final java.io.Writer out;   // null: keep everything in s
+    	private char[] buf;
+
+    	TextSink(java.io.Writer out, int capacity) {
+    		this.out = out;
+    		this.s = new StringBuilder(capacity);
+    	} // END TextSink() CONSTRUCTOR
+
+    	void endRecord() throws java.io.IOException {
+    		if (this.out != null && this.s.length() >= CHUNK) {
+    			flush();
+    		} // END if
+    	} // END endRecord()
+
+    	void flush() throws java.io.IOException {
+    		int n = this.s.length();
+    		if (this.buf == null || this.buf.length < n) {
+    			this.buf = new char[Math.max(n, CHUNK + 256)];
+    		} // END if GROW
+    		this.s.getChars(0, n, this.buf, 0);
+    		this.out.write(this.buf, 0, n);
+    		this.s.setLength(0);
+    	} // END flush()
+    } // END TextSink class
+
     /* decode
     // Pre-conditions:
     //    - lmScale specifies how much lmScore should be weighted
@@ -223,28 +522,31 @@ public class Lattice {
     //      weights, but this needs to be done in order (first to last word)
     //      Backtracking will give you words in reverse order.
     //    - java.lang.Double.POSITIVE_INFINITY represents positive infinity
+    //    - If the end node cannot be reached from the start node an
+    //      IllegalStateException is thrown
     // Notes:
-    //    - It is okay if this algorithm has time complexity O(V^2) */
+    //    - Only actual successors are visited, so this runs in O(V + E) once
+    //      the topological order is known */
     public Hypothesis decode(double lmScale) {
         Hypothesis hypothesis = new Hypothesis();
     	double[] d = new double[this.endIdx + 1];
-    	int[] p = new int[this.endIdx + 1];
+    	int[] p = new int[this.endIdx + 1];  // edge id of the best incoming edge
     	
     	for (int k = 0; k <= this.endIdx; k++) {
     		d[k] = java.lang.Double.POSITIVE_INFINITY;
-    		p[k] = 0;
+    		p[k] = -1;
     	} // END for loop
     
     	d[this.startIdx] = 0;
-    	int[] sorted = this.topologicalSort();
+    	int[] sorted = this.order();
     	for (int i : sorted) {
-    		for (int j = 0; j <= this.endIdx; j++) {
-    			if (this.adjMatrix[i][j] != null) {
-    				if (d[i] + this.adjMatrix[i][j].getCombinedScore(lmScale) < d[j]) {
-    					d[j] = d[i] + this.adjMatrix[i][j].getCombinedScore(lmScale);
-    					p[j] = i;
-    				} // END if SHORTER PATH
-    			} // END if NON NULL
+    		for (int e = this.outOffsets[i]; e < this.outOffsets[i + 1]; e++) {
+    			int j = this.jCoor[e];
+    			int score = getEdgeCombinedScore(e, lmScale);
+    			if (d[i] + score < d[j]) {
+    				d[j] = d[i] + score;
+    				p[j] = e;
+    			} // END if SHORTER PATH
     		} // END for ADJSET(n)
     	} // END for NODES IN PLAUSIBLE ORDERINGS
     	
@@ -252,24 +554,809 @@ public class Lattice {
     	int n = this.endIdx;
     	
     	while (n != this.startIdx) {
-    		s.push(n);
-    		n = p[n];
+    		if (p[n] < 0) {
+    			throw new IllegalStateException("Error: end node unreachable in lattice " + getUtteranceID());
+    		} // END if NO PATH
+    		s.push(p[n]);
+    		n = this.iCoor[p[n]];
     	} // END while loop
     	
-    	s.push(this.startIdx);
-    	
-    	int i = 0;
-    	int j = 0;
-    	while (j != this.endIdx) {
-    		i = s.peek();
-    		s.pop();
-    		j = s.peek();
-    		hypothesis.addWord(this.adjMatrix[i][j].getLabel(), this.adjMatrix[i][j].getCombinedScore(lmScale));
+    	while (!s.isEmpty()) {
+    		int e = s.pop();
+    		hypothesis.addWord(this.labelIds[e], getEdgeCombinedScore(e, lmScale));
     	} // END while loop
     	
         return hypothesis;
     } // END decode()
     
+    /* decodeNBest
+    // Pre-conditions:
+    //    - lmScale specifies how much lmScore should be weighted, as in decode
+    //    - n >= 0 is the number of hypotheses wanted
+    // Post-conditions:
+    //    - Returns the (up to) n lowest-scoring distinct paths from startIdx to
+    //      endIdx as Hypothesis objects, best first; fewer are returned if the
+    //      lattice has fewer paths.  Paths are distinct as edge sequences, so
+    //      two paths may still spell the same words
+    //    - Each Hypothesis's path score is the sum of getCombinedScore(lmScale)
+    //      over its edges, exactly as for decode
+    // Notes:
+    //    - Eppstein's k-shortest-paths algorithm.  A backward pass gives every
+    //      node its best score to the end node and its best outgoing edge (the
+    //      shortest path tree).  Any other edge u -> v is a "sidetrack" costing
+    //      delta = score + best(v) - best(u) >= 0, and every path is the tree
+    //      path plus a sequence of sidetracks.  Each node u gets a persistent
+    //      leftist heap of the sidetracks available on its tree path to the
+    //      end, sharing structure with the heap of its tree successor
+    //    - Each path popped from the candidate queue creates at most three
+    //      new candidates, so after O(E + V log V) preprocessing the n paths
+    //      cost O(n log n) plus the time to spell them out */
+    public java.util.ArrayList<Hypothesis> decodeNBest(double lmScale, int n) {
+    	java.util.ArrayList<Hypothesis> result = new java.util.ArrayList<Hypothesis>();
+    	int[] sorted = this.order();
+    	double[] best = new double[this.endIdx + 1];  // best score to the end node
+    	int[] next = new int[this.endIdx + 1];        // edge id of the tree edge
+    	
+    	for (int k = 0; k <= this.endIdx; k++) {
+    		best[k] = java.lang.Double.POSITIVE_INFINITY;
+    		next[k] = -1;
+    	} // END for loop
+    	best[this.endIdx] = 0;
+    	for (int t = sorted.length - 1; t >= 0; t--) {
+    		int i = sorted[t];
+    		if (i == this.endIdx) {
+    			continue;
+    		} // END if PATHS STOP AT THE END NODE
+    		for (int e = this.outOffsets[i]; e < this.outOffsets[i + 1]; e++) {
+    			double score = getEdgeCombinedScore(e, lmScale) + best[this.jCoor[e]];
+    			if (score < best[i]) {
+    				best[i] = score;
+    				next[i] = e;
+    			} // END if SHORTER
+    		} // END for loop SUCCESSORS
+    	} // END for loop REVERSE ORDER
+    	if (n <= 0 || best[this.startIdx] == java.lang.Double.POSITIVE_INFINITY) {
+    		return result;
+    	} // END if NOTHING TO FIND
+    	
+    	// sidetrack heaps, built from the end node backwards along the tree
+    	SidetrackHeap heaps = new SidetrackHeap(getNumEdges());
+    	int[] root = new int[this.endIdx + 1];
+    	for (int t = sorted.length - 1; t >= 0; t--) {
+    		int u = sorted[t];
+    		root[u] = -1;
+    		if (best[u] == java.lang.Double.POSITIVE_INFINITY || u == this.endIdx) {
+    			continue;
+    		} // END if NOT ON ANY PATH
+    		int own = -1;
+    		for (int e = this.outOffsets[u]; e < this.outOffsets[u + 1]; e++) {
+    			int v = this.jCoor[e];
+    			if (e != next[u] && best[v] != java.lang.Double.POSITIVE_INFINITY) {
+    				double delta = getEdgeCombinedScore(e, lmScale) + best[v] - best[u];
+    				own = heaps.merge(own, heaps.leaf(delta, e));
+    			} // END if SIDETRACK
+    		} // END for loop SUCCESSORS
+    		root[u] = heaps.merge(own, root[this.jCoor[next[u]]]);
+    	} // END for loop REVERSE ORDER
+    	
+    	// candidates: a sidetrack heap node, the candidate that chose the earlier
+    	// sidetracks (-1 for none), and the total path score
+    	int capacity = 64;
+    	int[] node = new int[capacity];
+    	int[] parent = new int[capacity];
+    	double[] cost = new double[capacity];
+    	int[] queue = new int[capacity];
+    	int size = 0;
+    	int count = 0;
+    	
+    	result.add(spellPath(-1, node, parent, heaps, next, lmScale));
+    	if (root[this.startIdx] >= 0) {
+    		node[0] = root[this.startIdx];
+    		parent[0] = -1;
+    		cost[0] = best[this.startIdx] + heaps.key[node[0]];
+    		size = keyedPush(queue, size, 0, cost);
+    		count = 1;
+    	} // END if ANY SIDETRACK
+    	
+    	while (size > 0 && result.size() < n) {
+    		int c = queue[0];
+    		size = keyedPop(queue, size, cost);
+    		result.add(spellPath(c, node, parent, heaps, next, lmScale));
+    		
+    		int x = node[c];
+    		int[] children = {heaps.left[x], heaps.right[x], root[this.jCoor[heaps.edge[x]]]};
+    		for (int k = 0; k < children.length; k++) {
+    			int y = children[k];
+    			if (y < 0) {
+    				continue;
+    			} // END if NO CHILD
+    			if (count + 1 > capacity) {
+    				capacity *= 2;
+    				node = Arrays.copyOf(node, capacity);
+    				parent = Arrays.copyOf(parent, capacity);
+    				cost = Arrays.copyOf(cost, capacity);
+    				queue = Arrays.copyOf(queue, capacity);
+    			} // END if GROW
+    			node[count] = y;
+    			if (k < 2) {
+    				parent[count] = parent[c];            // swap this sidetrack for a worse one
+    				cost[count] = cost[c] - heaps.key[x] + heaps.key[y];
+    			} // END if SIBLING
+    			else {
+    				parent[count] = c;                    // add one more sidetrack
+    				cost[count] = cost[c] + heaps.key[y];
+    			} // END else
+    			size = keyedPush(queue, size, count, cost);
+    			count++;
+    		} // END for loop CHILDREN
+    	} // END while loop
+    	
+    	return result;
+    } // END decodeNBest()
+    
+    /* spellPath
+    // Pre-conditions:
+    //    - c is a candidate of decodeNBest (or -1 for the best path)
+    // Post-conditions:
+    //    - Returns the Hypothesis for the tree path from startIdx with the
+    //      candidate's sidetracks taken in order */
+    private Hypothesis spellPath(int c, int[] node, int[] parent, SidetrackHeap heaps, int[] next, double lmScale) {
+    	Stack<Integer> sidetracks = new Stack<Integer>();
+    	for (int q = c; q >= 0; q = parent[q]) {
+    		sidetracks.push(heaps.edge[node[q]]);
+    	} // END for loop
+    	
+    	Hypothesis hypothesis = new Hypothesis();
+    	int u = this.startIdx;
+    	while (u != this.endIdx) {
+    		int e = next[u];
+    		if (!sidetracks.isEmpty() && this.iCoor[sidetracks.peek()] == u) {
+    			e = sidetracks.pop();
+    		} // END if TAKE SIDETRACK
+    		hypothesis.addWord(this.labelIds[e], getEdgeCombinedScore(e, lmScale));
+    		u = this.jCoor[e];
+    	} // END while loop
+    	return hypothesis;
+    } // END spellPath()
+    
+    /* computeEdgePosteriors
+    // Pre-conditions:
+    //    - lmScale specifies how much lmScore should be weighted, as in decode
+    // Post-conditions:
+    //    - Returns computeEdgePosteriors(lmScale, 1.0) */
+    public double[] computeEdgePosteriors(double lmScale) {
+    	return computeEdgePosteriors(lmScale, 1.0);
+    } // END computeEdgePosteriors()
+    
+    /* computeEdgePosteriors
+    // Pre-conditions:
+    //    - lmScale specifies how much lmScore should be weighted, as in decode
+    //    - posteriorScale > 0 scales the scores into negative natural-log
+    //      probabilities: a path's probability is proportional to
+    //      exp(-posteriorScale * (sum of getCombinedScore(lmScale)))
+    // Post-conditions:
+    //    - Returns an array with one entry per edge, indexed by edge id (the
+    //      order in which toString writes the edges), holding the posterior
+    //      probability that a path from startIdx to endIdx uses that edge
+    //    - Edges on no complete path get posterior 0
+    //    - Throws an IllegalStateException if endIdx is unreachable
+    // Notes:
+    //    - Forward-backward in the log domain over the cached topological
+    //      order: O(V + E) time and no per-edge objects */
+    public double[] computeEdgePosteriors(double lmScale, double posteriorScale) {
+    	int[] sorted = this.order();
+    	double[] alpha = new double[this.endIdx + 1];
+    	double[] beta = new double[this.endIdx + 1];
+    	double[] cost = new double[getNumEdges()];
+    	for (int k = 0; k <= this.endIdx; k++) {
+    		alpha[k] = java.lang.Double.NEGATIVE_INFINITY;
+    		beta[k] = java.lang.Double.NEGATIVE_INFINITY;
+    	} // END for loop
+    	for (int e = 0; e < getNumEdges(); e++) {
+    		cost[e] = posteriorScale * getEdgeCombinedScore(e, lmScale);
+    	} // END for loop
+    	
+    	// forward: log of the summed probability of all paths start -> node
+    	alpha[this.startIdx] = 0;
+    	for (int i : sorted) {
+    		if (i == this.endIdx) {
+    			continue;
+    		} // END if PATHS STOP AT THE END NODE
+    		for (int e = this.outOffsets[i]; e < this.outOffsets[i + 1]; e++) {
+    			alpha[this.jCoor[e]] = logAdd(alpha[this.jCoor[e]], alpha[i] - cost[e]);
+    		} // END for loop SUCCESSORS
+    	} // END for loop
+    	
+    	// backward: log of the summed probability of all paths node -> end
+    	beta[this.endIdx] = 0;
+    	for (int t = sorted.length - 1; t >= 0; t--) {
+    		int i = sorted[t];
+    		if (i == this.endIdx) {
+    			continue;
+    		} // END if
+    		for (int e = this.outOffsets[i]; e < this.outOffsets[i + 1]; e++) {
+    			beta[i] = logAdd(beta[i], beta[this.jCoor[e]] - cost[e]);
+    		} // END for loop SUCCESSORS
+    	} // END for loop REVERSE ORDER
+    	
+    	double total = alpha[this.endIdx];
+    	if (total == java.lang.Double.NEGATIVE_INFINITY) {
+    		throw new IllegalStateException("Error: end node unreachable in lattice " + getUtteranceID());
+    	} // END if NO PATH
+    	
+    	double[] posterior = cost;  // reused: each cost is read once, then replaced
+    	for (int e = 0; e < getNumEdges(); e++) {
+    		int i = this.iCoor[e];
+    		double through = (i == this.endIdx) ? java.lang.Double.NEGATIVE_INFINITY
+    		                                    : alpha[i] - cost[e] + beta[this.jCoor[e]];
+    		posterior[e] = Math.exp(through - total);
+    	} // END for loop
+    	return posterior;
+    } // END computeEdgePosteriors()
+    
+    /* prune
+    // Pre-conditions:
+    //    - lmScale specifies how much lmScore should be weighted, as in decode
+    //    - beam >= 0 (POSITIVE_INFINITY disables beam pruning)
+    // Post-conditions:
+    //    - Returns prune(lmScale, beam, 0.0, 1.0) */
+    public Lattice prune(double lmScale, double beam) {
+    	return prune(lmScale, beam, 0.0, 1.0);
+    } // END prune()
+    
+    /* prune - remove unlikely edges, returning a new, smaller Lattice
+    // Pre-conditions:
+    //    - lmScale specifies how much lmScore should be weighted, as in decode
+    //    - beam >= 0 (POSITIVE_INFINITY disables beam pruning)
+    //    - minPosterior is a posterior threshold (0 disables posterior pruning)
+    //      with posteriors computed as computeEdgePosteriors(lmScale, posteriorScale)
+    // Post-conditions:
+    //    - Returns a new Lattice (this one is unchanged) that keeps an edge if
+    //      the best path through it scores at most beam worse than the best path
+    //      and its posterior is at least minPosterior.  The edges of decode's
+    //      best path are always kept, so decode(lmScale) gives the same result
+    //    - Nodes and edges left off every start-to-end path are dropped and the
+    //      remaining nodes renumbered from 0 in their original order (the end
+    //      node last), so saveAsFile and writeAsDot write the compact lattice
+    //    - Throws an IllegalStateException if endIdx is unreachable */
+    public Lattice prune(double lmScale, double beam, double minPosterior, double posteriorScale) {
+    	int[] sorted = this.order();
+    	double[] forward = new double[this.endIdx + 1];
+    	double[] backward = new double[this.endIdx + 1];
+    	int[] p = new int[this.endIdx + 1];
+    	for (int k = 0; k <= this.endIdx; k++) {
+    		forward[k] = java.lang.Double.POSITIVE_INFINITY;
+    		backward[k] = java.lang.Double.POSITIVE_INFINITY;
+    		p[k] = -1;
+    	} // END for loop
+    	
+    	// best score from the start node, with decode's backpointers
+    	forward[this.startIdx] = 0;
+    	for (int i : sorted) {
+    		for (int e = this.outOffsets[i]; e < this.outOffsets[i + 1]; e++) {
+    			int j = this.jCoor[e];
+    			int score = getEdgeCombinedScore(e, lmScale);
+    			if (forward[i] + score < forward[j]) {
+    				forward[j] = forward[i] + score;
+    				p[j] = e;
+    			} // END if SHORTER PATH
+    		} // END for loop SUCCESSORS
+    	} // END for loop
+    	
+    	// best score to the end node
+    	backward[this.endIdx] = 0;
+    	for (int t = sorted.length - 1; t >= 0; t--) {
+    		int i = sorted[t];
+    		if (i == this.endIdx) {
+    			continue;
+    		} // END if
+    		for (int e = this.outOffsets[i]; e < this.outOffsets[i + 1]; e++) {
+    			double score = getEdgeCombinedScore(e, lmScale) + backward[this.jCoor[e]];
+    			if (score < backward[i]) {
+    				backward[i] = score;
+    			} // END if SHORTER
+    		} // END for loop SUCCESSORS
+    	} // END for loop REVERSE ORDER
+    	
+    	double best = forward[this.endIdx];
+    	if (best == java.lang.Double.POSITIVE_INFINITY) {
+    		throw new IllegalStateException("Error: end node unreachable in lattice " + getUtteranceID());
+    	} // END if NO PATH
+    	double[] posterior = minPosterior > 0 ? computeEdgePosteriors(lmScale, posteriorScale) : null;
+    	
+    	boolean[] keep = new boolean[getNumEdges()];
+    	for (int e = 0; e < getNumEdges(); e++) {
+    		double through = forward[this.iCoor[e]] + getEdgeCombinedScore(e, lmScale) + backward[this.jCoor[e]];
+    		keep[e] = this.iCoor[e] != this.endIdx && through - best <= beam
+    		          && (posterior == null || posterior[e] >= minPosterior);
+    	} // END for loop
+    	for (int n = this.endIdx; n != this.startIdx; n = this.iCoor[p[n]]) {
+    		keep[p[n]] = true;
+    	} // END for loop BEST PATH
+    	
+    	return subLattice(keep);
+    } // END prune()
+    
+    /* subLattice
+    // Pre-conditions:
+    //    - keep[e] says whether edge e may be kept
+    // Post-conditions:
+    //    - Returns a new Lattice with the kept edges that still lie on some
+    //      path from startIdx to endIdx, and only the nodes they touch (plus
+    //      the start and end nodes), renumbered from 0 in their original
+    //      order with the end node last */
+    private Lattice subLattice(boolean[] keep) {
+    	int[] sorted = this.order();
+    	boolean[] fromStart = new boolean[this.endIdx + 1];
+    	boolean[] toEnd = new boolean[this.endIdx + 1];
+    	
+    	fromStart[this.startIdx] = true;
+    	for (int i : sorted) {
+    		if (fromStart[i] && i != this.endIdx) {
+    			for (int e = this.outOffsets[i]; e < this.outOffsets[i + 1]; e++) {
+    				if (keep[e]) {
+    					fromStart[this.jCoor[e]] = true;
+    				} // END if
+    			} // END for loop SUCCESSORS
+    		} // END if
+    	} // END for loop
+    	toEnd[this.endIdx] = true;
+    	for (int t = sorted.length - 1; t >= 0; t--) {
+    		int i = sorted[t];
+    		if (i == this.endIdx) {
+    			continue;
+    		} // END if
+    		for (int e = this.outOffsets[i]; e < this.outOffsets[i + 1]; e++) {
+    			if (keep[e] && toEnd[this.jCoor[e]]) {
+    				toEnd[i] = true;
+    			} // END if
+    		} // END for loop SUCCESSORS
+    	} // END for loop REVERSE ORDER
+    	
+    	// renumbering the surviving nodes, end node last
+    	int[] newId = new int[this.endIdx + 1];
+    	int nodes = 0;
+    	for (int n = 0; n <= this.endIdx; n++) {
+    		newId[n] = -1;
+    		if (n != this.endIdx && ((fromStart[n] && toEnd[n]) || n == this.startIdx)) {
+    			newId[n] = nodes;
+    			nodes++;
+    		} // END if ALIVE
+    	} // END for loop
+    	newId[this.endIdx] = nodes;
+    	nodes++;
+    	
+    	double[] times = new double[nodes];
+    	for (int n = 0; n <= this.endIdx; n++) {
+    		if (newId[n] >= 0) {
+    			times[newId[n]] = this.nodeTimes[n];
+    		} // END if
+    	} // END for loop
+    	
+    	int count = 0;
+    	for (int e = 0; e < getNumEdges(); e++) {
+    		keep[e] = keep[e] && fromStart[this.iCoor[e]] && toEnd[this.jCoor[e]];
+    		if (keep[e]) {
+    			count++;
+    		} // END if
+    	} // END for loop
+    	int[] is = new int[count];
+    	int[] js = new int[count];
+    	int[] labels = new int[count];
+    	int[] ams = new int[count];
+    	int[] lms = new int[count];
+    	count = 0;
+    	for (int e = 0; e < getNumEdges(); e++) {
+    		if (keep[e]) {
+    			is[count] = newId[this.iCoor[e]];
+    			js[count] = newId[this.jCoor[e]];
+    			labels[count] = this.labelIds[e];
+    			ams[count] = this.amScores[e];
+    			lms[count] = this.lmScores[e];
+    			count++;
+    		} // END if
+    	} // END for loop
+    	
+    	return new Lattice(this.utteranceID, newId[this.startIdx], nodes - 1, nodes, times, is, js, labels, ams, lms);
+    } // END subLattice()
+    
+    /* minimize
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns minimize(true) */
+    public Lattice minimize() {
+    	return minimize(true);
+    } // END minimize()
+    
+    /* minimize - merge equivalent nodes, returning a new, smaller Lattice
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns a new Lattice (this one is unchanged) in which nodes with
+    //      identical outgoing (label, amScore, lmScore, target) multisets are
+    //      merged, and, if mergePrefixes is true, so are nodes with identical
+    //      incoming (label, amScore, lmScore, source) multisets, repeating
+    //      until no more nodes can be merged
+    //    - Nodes off every start-to-end path are dropped first
+    //    - The paths from start to end, with their labels and scores, are
+    //      exactly those of this lattice, so countAllPaths and the scores
+    //      found by decode are unchanged (decode may break exact ties
+    //      differently)
+    //    - A merged node keeps the timestamp of its representative: the
+    //      latest of the merged nodes for suffix merges, the earliest for
+    //      prefix merges, so edges still run forward in node order
+    // Notes:
+    //    - Each pass visits nodes in (reverse) topological order, so a node's
+    //      successors (predecessors) are already merged when its signature is
+    //      taken, and one pass merges every equivalent suffix (prefix) */
+    public Lattice minimize(boolean mergePrefixes) {
+    	boolean[] all = new boolean[getNumEdges()];
+    	Arrays.fill(all, true);
+    	Lattice current = subLattice(all);
+    	
+    	boolean suffixes = true;
+    	int stable = 0;  // passes in a row that merged nothing
+    	while (stable < (mergePrefixes ? 2 : 1)) {
+    		Lattice merged = current.mergeEquivalent(suffixes);
+    		if (merged.getNumNodes() < current.getNumNodes()) {
+    			stable = 0;
+    		} // END if MERGED
+    		else {
+    			stable++;
+    		} // END else
+    		current = merged;
+    		if (mergePrefixes) {
+    			suffixes = !suffixes;
+    		} // END if ALTERNATE
+    	} // END while loop
+    	return current;
+    } // END minimize()
+    
+    /* mergeEquivalent
+    // Pre-conditions:
+    //    - Every node lies on some start-to-end path
+    // Post-conditions:
+    //    - If suffixes is true, returns the lattice with all nodes of equal
+    //      outgoing signature merged; otherwise merges equal incoming signatures */
+    private Lattice mergeEquivalent(boolean suffixes) {
+    	int[] sorted = this.order();
+    	int[] rep = new int[this.endIdx + 1];
+    	java.util.HashMap<NodeSignature, Integer> canonical = new java.util.HashMap<NodeSignature, Integer>();
+    	for (int n = 0; n <= this.endIdx; n++) {
+    		rep[n] = n;
+    	} // END for loop
+    	
+    	for (int t = 0; t < sorted.length; t++) {
+    		int u = suffixes ? sorted[sorted.length - 1 - t] : sorted[t];
+    		
+    		// edge ids on the merged side of u
+    		int first = suffixes ? this.outOffsets[u] : this.inOffsets[u];
+    		int degree = (suffixes ? this.outOffsets[u + 1] : this.inOffsets[u + 1]) - first;
+    		int[] signature = new int[4 * degree + 1];
+    		signature[0] = (u == this.endIdx ? 1 : 0) + (u == this.startIdx ? 2 : 0);
+    		for (int k = 0; k < degree; k++) {
+    			int e = suffixes ? first + k : this.inEdges[first + k];
+    			int label = this.labelIds[e];
+    			int other = suffixes ? rep[this.jCoor[e]] : rep[this.iCoor[e]];
+    			int at = 4 * k + 1;
+    			signature[at] = label;
+    			signature[at + 1] = this.amScores[e];
+    			signature[at + 2] = this.lmScores[e];
+    			signature[at + 3] = other;
+    			
+    			// insertion sort of the 4-int tuples (degrees are small)
+    			while (at > 1 && compareTuples(signature, at, at - 4) < 0) {
+    				for (int c = 0; c < 4; c++) {
+    					int tmp = signature[at + c];
+    					signature[at + c] = signature[at - 4 + c];
+    					signature[at - 4 + c] = tmp;
+    				} // END for loop SWAP
+    				at -= 4;
+    			} // END while loop
+    		} // END for loop
+    		
+    		NodeSignature key = new NodeSignature(signature);
+    		Integer existing = canonical.get(key);
+    		if (existing == null) {
+    			canonical.put(key, u);
+    		} // END if FIRST OF ITS CLASS
+    		else {
+    			rep[u] = existing;
+    		} // END else MERGE INTO IT
+    	} // END for loop
+    	
+    	// keeping the representatives' edges on the merged side only
+    	int[] is = new int[getNumEdges()];
+    	int[] js = new int[getNumEdges()];
+    	int[] labels = new int[getNumEdges()];
+    	int[] ams = new int[getNumEdges()];
+    	int[] lms = new int[getNumEdges()];
+    	int count = 0;
+    	for (int e = 0; e < getNumEdges(); e++) {
+    		int i = this.iCoor[e];
+    		int j = this.jCoor[e];
+    		if (suffixes ? rep[i] == i : rep[j] == j) {
+    			is[count] = rep[i];
+    			js[count] = rep[j];
+    			labels[count] = this.labelIds[e];
+    			ams[count] = this.amScores[e];
+    			lms[count] = this.lmScores[e];
+    			count++;
+    		} // END if
+    	} // END for loop
+    	
+    	Lattice merged = new Lattice(this.utteranceID, rep[this.startIdx], this.endIdx, this.numNodes,
+    	                             this.nodeTimes.clone(), Arrays.copyOf(is, count), Arrays.copyOf(js, count),
+    	                             Arrays.copyOf(labels, count), Arrays.copyOf(ams, count),
+    	                             Arrays.copyOf(lms, count));
+    	boolean[] all = new boolean[count];
+    	Arrays.fill(all, true);
+    	return merged.subLattice(all);  // drops the merged-away nodes
+    } // END mergeEquivalent()
+    
+    /* compareTuples
+    // Pre-conditions:
+    //    - a[x..x+3] and a[y..y+3] are 4-int tuples
+    // Post-conditions:
+    //    - Returns a negative, zero or positive int as tuple x is lexicographically
+    //      smaller than, equal to or larger than tuple y */
+    private static int compareTuples(int[] a, int x, int y) {
+    	for (int c = 0; c < 4; c++) {
+    		if (a[x + c] != a[y + c]) {
+    			return a[x + c] < a[y + c] ? -1 : 1;
+    		} // END if
+    	} // END for loop
+    	return 0;
+    } // END compareTuples()
+    
+    /* NodeSignature - hashable wrapper for a node's sorted edge tuples */
+    private static final class NodeSignature {
+    	private final int[] parts;
+    	
+    	NodeSignature(int[] parts) {
+    		this.parts = parts;
+    	} // END NodeSignature() CONSTRUCTOR
+    	
+    	public int hashCode() {
+    		return Arrays.hashCode(this.parts);
+    	} // END hashCode()
+    	
+    	public boolean equals(Object o) {
+    		return o instanceof NodeSignature && Arrays.equals(this.parts, ((NodeSignature) o).parts);
+    	} // END equals()
+    } // END NodeSignature class
+    
+    /* logAdd
+    // Pre-conditions:
+    //    - a and b are natural logs (NEGATIVE_INFINITY meaning probability 0)
+    // Post-conditions:
+    //    - Returns log(exp(a) + exp(b)) without overflow or underflow */
+    private static double logAdd(double a, double b) {
+    	if (a == java.lang.Double.NEGATIVE_INFINITY) {
+    		return b;
+    	} // END if
+    	if (b == java.lang.Double.NEGATIVE_INFINITY) {
+    		return a;
+    	} // END if
+    	if (a < b) {
+    		double t = a;
+    		a = b;
+    		b = t;
+    	} // END if SWAP
+    	return a + Math.log1p(Math.exp(b - a));
+    } // END logAdd()
+    
+    /* sweepLmScale - best hypothesis for every lmScale in a range, in one pass
+    // Pre-conditions:
+    //    - 0 <= minScale <= maxScale, both finite
+    // Post-conditions:
+    //    - Returns the consecutive intervals [lower, upper] covering
+    //      [minScale, maxScale], in increasing order, on each of which a single
+    //      path is best.  Interval boundaries are the lmScale breakpoints where
+    //      the best path changes
+    //    - Each interval's Hypothesis has its path score evaluated with
+    //      getCombinedScore at the interval midpoint
+    // Notes:
+    //    - A path's score amTotal + lmScale * lmTotal is a line in lmScale, so
+    //      the best score is the lower envelope of those lines.  Given the best
+    //      paths at both ends of a range, one extra search at the point where
+    //      their lines cross either confirms it as a breakpoint or finds a new
+    //      envelope line, so the whole sweep takes 2 * (#intervals) - 1 searches
+    //    - The sweep scores paths with the exact linear combination.  decode
+    //      truncates lmScale * lmScore to an int per edge, so right at a
+    //      breakpoint decode may prefer the neighbouring interval's path */
+    public java.util.ArrayList<LmScaleInterval> sweepLmScale(double minScale, double maxScale) {
+    	java.util.ArrayList<LmScaleInterval> intervals = new java.util.ArrayList<LmScaleInterval>();
+    	int[] low = bestLinearPath(minScale);
+    	int[] high = bestLinearPath(maxScale);
+    	sweep(minScale, low, maxScale, high, intervals);
+    	return intervals;
+    } // END sweepLmScale()
+    
+    /* sweep
+    // Pre-conditions:
+    //    - low is a best path at lo, high a best path at hi, lo <= hi
+    // Post-conditions:
+    //    - The intervals of [lo, hi] are appended to intervals, in order */
+    private void sweep(double lo, int[] low, double hi, int[] high, java.util.ArrayList<LmScaleInterval> intervals) {
+    	long[] a = pathTotals(low);
+    	long[] b = pathTotals(high);
+    	if (lo == hi || a[1] <= b[1]) {
+    		intervals.add(makeInterval(lo, hi, low, a));
+    		return;
+    	} // END if SAME LINE (or tied optima)
+    	
+    	// where the two lines cross (low's lm total is the larger one)
+    	double cross = (double) (b[0] - a[0]) / (a[1] - b[1]);
+    	if (!(cross > lo)) {
+    		intervals.add(makeInterval(lo, hi, high, b));
+    		return;
+    	} // END if ROUNDING PUT THE CROSSING AT lo
+    	if (!(cross < hi)) {
+    		intervals.add(makeInterval(lo, hi, low, a));
+    		return;
+    	} // END if ROUNDING PUT THE CROSSING AT hi
+    	int[] middle = bestLinearPath(cross);
+    	long[] m = pathTotals(middle);
+    	double onEnvelope = a[0] + cross * a[1];
+    	double found = m[0] + cross * m[1];
+    	
+    	if (found >= onEnvelope - 1e-9 * Math.max(1.0, Math.abs(onEnvelope))) {
+    		intervals.add(makeInterval(lo, cross, low, a));
+    		intervals.add(makeInterval(cross, hi, high, b));
+    	} // END if BREAKPOINT
+    	else {
+    		sweep(lo, low, cross, middle, intervals);
+    		sweep(cross, middle, hi, high, intervals);
+    	} // END else NEW LINE BELOW THE CROSSING
+    } // END sweep()
+    
+    /* makeInterval
+    // Pre-conditions:
+    //    - path is the best path on [lo, hi], totals its {am, lm} totals
+    // Post-conditions:
+    //    - Returns the LmScaleInterval describing it */
+    private LmScaleInterval makeInterval(double lo, double hi, int[] path, long[] totals) {
+    	double mid = (lo + hi) / 2;
+    	Hypothesis hypothesis = new Hypothesis();
+    	for (int e : path) {
+    		hypothesis.addWord(this.labelIds[e], getEdgeCombinedScore(e, mid));
+    	} // END for loop
+    	return new LmScaleInterval(lo, hi, hypothesis, totals[0], totals[1]);
+    } // END makeInterval()
+    
+    /* pathTotals
+    // Pre-conditions:
+    //    - path holds edge ids
+    // Post-conditions:
+    //    - Returns {sum of amScores, sum of lmScores} over the path */
+    private long[] pathTotals(int[] path) {
+    	long[] totals = new long[2];
+    	for (int e : path) {
+    		totals[0] += this.amScores[e];
+    		totals[1] += this.lmScores[e];
+    	} // END for loop
+    	return totals;
+    } // END pathTotals()
+    
+    /* bestLinearPath
+    // Pre-conditions:
+    //    - lmScale >= 0
+    // Post-conditions:
+    //    - Returns the edge ids, first to last, of a path from startIdx to endIdx
+    //      minimizing the sum of amScore + lmScale * lmScore (not truncated)
+    //    - Throws an IllegalStateException if endIdx is unreachable */
+    private int[] bestLinearPath(double lmScale) {
+    	double[] d = new double[this.endIdx + 1];
+    	int[] p = new int[this.endIdx + 1];
+    	for (int k = 0; k <= this.endIdx; k++) {
+    		d[k] = java.lang.Double.POSITIVE_INFINITY;
+    		p[k] = -1;
+    	} // END for loop
+    	d[this.startIdx] = 0;
+    	
+    	for (int i : this.order()) {
+    		for (int e = this.outOffsets[i]; e < this.outOffsets[i + 1]; e++) {
+    			int j = this.jCoor[e];
+    			double score = d[i] + this.amScores[e] + lmScale * this.lmScores[e];
+    			if (score < d[j]) {
+    				d[j] = score;
+    				p[j] = e;
+    			} // END if SHORTER PATH
+    		} // END for loop SUCCESSORS
+    	} // END for loop
+    	
+    	int length = 0;
+    	for (int n = this.endIdx; n != this.startIdx; n = this.iCoor[p[n]]) {
+    		if (p[n] < 0) {
+    			throw new IllegalStateException("Error: end node unreachable in lattice " + getUtteranceID());
+    		} // END if NO PATH
+    		length++;
+    	} // END for loop
+    	int[] path = new int[length];
+    	for (int n = this.endIdx; n != this.startIdx; n = this.iCoor[p[n]]) {
+    		length--;
+    		path[length] = p[n];
+    	} // END for loop
+    	return path;
+    } // END bestLinearPath()
+    
+    /* SidetrackHeap - persistent leftist min-heaps of sidetrack edges
+    // Nodes live in parallel arrays and are never modified once linked into
+    // a heap, so merging copies only the right spine and every node's heap
+    // can share the heap of its tree successor. */
+    private static final class SidetrackHeap {
+    	double[] key;   // delta of the sidetrack
+    	int[] edge;     // edge id of the sidetrack
+    	int[] left, right, rank;
+    	int size;
+    	
+    	SidetrackHeap(int capacity) {
+    		capacity = Math.max(capacity, 16);
+    		this.key = new double[capacity];
+    		this.edge = new int[capacity];
+    		this.left = new int[capacity];
+    		this.right = new int[capacity];
+    		this.rank = new int[capacity];
+    	} // END SidetrackHeap() CONSTRUCTOR
+    	
+    	/* leaf
+    	// Post-conditions:
+    	//    - Returns a new single-node heap */
+    	int leaf(double k, int e) {
+    		return add(k, e, -1, -1);
+    	} // END leaf()
+    	
+    	/* merge
+    	// Pre-conditions:
+    	//    - a and b are heaps (-1 is the empty heap)
+    	// Post-conditions:
+    	//    - Returns a heap holding both; a and b themselves are unchanged */
+    	int merge(int a, int b) {
+    		if (a < 0) {
+    			return b;
+    		} // END if
+    		if (b < 0) {
+    			return a;
+    		} // END if
+    		if (this.key[b] < this.key[a]) {
+    			int t = a;
+    			a = b;
+    			b = t;
+    		} // END if SWAP
+    		int r = merge(this.right[a], b);
+    		int l = this.left[a];
+    		if (rankOf(l) < rankOf(r)) {
+    			int t = l;
+    			l = r;
+    			r = t;
+    		} // END if KEEP LEFTIST
+    		return add(this.key[a], this.edge[a], l, r);
+    	} // END merge()
+    	
+    	private int rankOf(int a) {
+    		return a < 0 ? 0 : this.rank[a];
+    	} // END rankOf()
+    	
+    	private int add(double k, int e, int l, int r) {
+    		if (this.size == this.key.length) {
+    			int capacity = 2 * this.size;
+    			this.key = Arrays.copyOf(this.key, capacity);
+    			this.edge = Arrays.copyOf(this.edge, capacity);
+    			this.left = Arrays.copyOf(this.left, capacity);
+    			this.right = Arrays.copyOf(this.right, capacity);
+    			this.rank = Arrays.copyOf(this.rank, capacity);
+    		} // END if GROW
+    		this.key[this.size] = k;
+    		this.edge[this.size] = e;
+    		this.left[this.size] = l;
+    		this.right[this.size] = r;
+    		this.rank[this.size] = rankOf(r) + 1;
+    		return this.size++;
+    	} // END add()
+    } // END SidetrackHeap class
+    
     /* topologicalSort
     // Pre-conditions:
     //    - None
@@ -277,52 +1364,234 @@ public class Lattice {
     //    - A new int[] is returned with a topological sort of the nodes
     //      For example, the 0'th element of the returned array has no 
     //      incoming edges.  More generally, the node in the i'th element 
-    //      has no incoming edges from nodes in the i+1'th or later elements */
+    //      has no incoming edges from nodes in the i+1'th or later elements
+    //    - Among the nodes that are ready at any point, the smallest index
+    //      is always emitted first
+    //    - If a cycle is reachable from the start node an
+    //      IllegalStateException is thrown (the JVM is not terminated)
+    // Notes:
+    //    - The ordering is computed once and cached, since the lattice is
+    //      immutable; callers receive their own copy */
     public int[] topologicalSort() {
-        ArrayList<Integer> s = new ArrayList<Integer>();
-        ArrayList<Integer> a = new ArrayList<Integer>();
-    	int[] inDegree = new int[this.endIdx + 1];
-    	int r;
-    	
-    	// creating array of in-degrees indexed by node
-    	for (int i = 0; i <= this.endIdx; i++) {
-    		for (int j = 0; j <= this.endIdx; j++) {
-    			if (this.adjMatrix[i][j] != null) {
-    				inDegree[j]++;
-    			} // END if NON-NULL COOR
-    		} // END for COLUMNS
-    	} // END for ROWS
-    
-    	s.add(this.startIdx);
-    	boolean found = false;
-    	while (!s.isEmpty()) {
-    		Collections.sort(s);
-    		a.add(s.get(0));
-    		r = s.get(0);
-    		s.remove(0);
-    		for (int c = 0; c <= this.endIdx; c++) {
-    			if (this.adjMatrix[r][c] != null) {
-    				inDegree[c]--;
-    				if (inDegree[c] == 0) {
-    					s.add(c);
-    				} // END if 
-    			} // END if NON-NULL ADJ NODE
+        return order().clone();
+    } // END topologicalSort()
+    
+    /* order
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the cached topological ordering, computing it on first use
+    //    - The returned array is shared and must not be modified
+    // Notes:
+    //    - Two threads may both compute it; either result is correct, and
+    //      the volatile write publishes the filled array */
+    private int[] order() {
+    	int[] ar = this.topoOrder;
+    	if (ar == null) {
+    		ar = isForwardOnly() ? forwardOrder() : heapOrder();
+    		this.topoOrder = ar;
+    	} // END if NOT CACHED
+    	return ar;
+    } // END order()
+    
+    /* isForwardOnly
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns true if every edge goes from a smaller to a larger node index,
+    //      which is how recognizers number their lattices */
+    private boolean isForwardOnly() {
+    	for (int e = 0; e < getNumEdges(); e++) {
+    		if (this.iCoor[e] >= this.jCoor[e]) {
+    			return false;
+    		} // END if BACKWARD EDGE
+    	} // END for loop
+    	return true;
+    } // END isForwardOnly()
+    
+    /* forwardOrder
+    // Pre-conditions:
+    //    - isForwardOnly() is true
+    // Post-conditions:
+    //    - Returns the nodes reachable from startIdx in ascending order
+    // Notes:
+    //    - With forward edges every newly freed node is larger than the one
+    //      just emitted, so smallest-index-first is plain ascending order and
+    //      no priority queue is needed: a single O(V + E) sweep suffices */
+    private int[] forwardOrder() {
+    	boolean[] reached = new boolean[this.endIdx + 1];
+    	int[] ar = new int[this.endIdx + 1];
+    	int count = 0;
+    	
+    	reached[this.startIdx] = true;
+    	for (int i = this.startIdx; i <= this.endIdx; i++) {
+    		if (reached[i]) {
+    			ar[count] = i;
+    			count++;
+    			for (int e = this.outOffsets[i]; e < this.outOffsets[i + 1]; e++) {
+    				reached[this.jCoor[e]] = true;
+    			} // END for loop SUCCESSORS
+    		} // END if REACHABLE
+    	} // END for loop NODES
+    	
+    	return Arrays.copyOf(ar, count);
+    } // END forwardOrder()
+    
+    /* heapOrder
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the nodes reachable from startIdx in topological order,
+    //      smallest ready index first
+    //    - Throws an IllegalStateException if a reachable node is never freed,
+    //      i.e. a cycle is reachable from startIdx
+    // Notes:
+    //    - In-degrees only count edges from reachable nodes, so a node with an
+    //      unreachable predecessor is not mistaken for part of a cycle
+    //    - Uses a primitive binary min-heap: O((V + E) log V) */
+    private int[] heapOrder() {
+    	int nodes = this.endIdx + 1;
+    	boolean[] reached = new boolean[nodes];
+    	int[] inDegree = new int[nodes];
+    	int[] stack = new int[nodes];
+    	int top = 0;
+    	int reachable = 1;
+    	
+    	// finding reachable nodes and their in-degrees from reachable nodes
+    	reached[this.startIdx] = true;
+    	stack[top++] = this.startIdx;
+    	while (top > 0) {
+    		int r = stack[--top];
+    		for (int e = this.outOffsets[r]; e < this.outOffsets[r + 1]; e++) {
+    			int c = this.jCoor[e];
+    			inDegree[c]++;
+    			if (!reached[c]) {
+    				reached[c] = true;
+    				stack[top++] = c;
+    				reachable++;
+    			} // END if NEWLY REACHED
+    		} // END for loop ADJ TO R
+    	} // END while loop
+    	
+    	if (inDegree[this.startIdx] != 0) {
+    		throw new IllegalStateException("Error: cycle detected.");
+    	} // END if CYCLE THROUGH START
+    	
+    	// Kahn's algorithm, seeded with the start node
+    	int[] heap = stack;
+    	int size = 0;
+    	int[] ar = new int[reachable];
+    	int count = 0;
+    	size = heapPush(heap, size, this.startIdx);
+    	while (size > 0) {
+    		int r = heap[0];
+    		size = heapPop(heap, size);
+    		ar[count] = r;
+    		count++;
+    		for (int e = this.outOffsets[r]; e < this.outOffsets[r + 1]; e++) {
+    			int c = this.jCoor[e];
+    			inDegree[c]--;
+    			if (inDegree[c] == 0) {
+    				size = heapPush(heap, size, c);
+    			} // END if 
     		} // END for loop ADJ TO R
     	} // END while loop NODES w/ IN-DEGREE 0
     	
-    	Arrays.sort(inDegree);
-    	if (inDegree[0] != 0) {
-    		System.out.println("Error: cycle detected.");
-    		System.exit(1);
+    	if (count != reachable) {
+    		throw new IllegalStateException("Error: cycle detected.");
     	} // END if CYCLE DETECTOR
     	
-    	int[] ar = new int[a.size()];
-    	for (int t = 0; t < a.size(); t++) {
-    		ar[t] = a.get(t);
-    	} // END for loop	
-    	
         return ar;
-    } // END topologicalSort()
+    } // END heapOrder()
+    
+    /* heapPush
+    // Pre-conditions:
+    //    - heap[0..size-1] is a binary min-heap with room for one more entry
+    // Post-conditions:
+    //    - v is inserted and the new size is returned */
+    private static int heapPush(int[] heap, int size, int v) {
+    	int c = size;
+    	while (c > 0 && heap[(c - 1) / 2] > v) {
+    		heap[c] = heap[(c - 1) / 2];
+    		c = (c - 1) / 2;
+    	} // END while loop SIFT UP
+    	heap[c] = v;
+    	return size + 1;
+    } // END heapPush()
+    
+    /* heapPop
+    // Pre-conditions:
+    //    - heap[0..size-1] is a non-empty binary min-heap
+    // Post-conditions:
+    //    - The smallest entry heap[0] is removed and the new size is returned */
+    private static int heapPop(int[] heap, int size) {
+    	size--;
+    	int v = heap[size];
+    	int c = 0;
+    	while (2 * c + 1 < size) {
+    		int child = 2 * c + 1;
+    		if (child + 1 < size && heap[child + 1] < heap[child]) {
+    			child++;
+    		} // END if RIGHT CHILD SMALLER
+    		if (heap[child] >= v) {
+    			break;
+    		} // END if
+    		heap[c] = heap[child];
+    		c = child;
+    	} // END while loop SIFT DOWN
+    	heap[c] = v;
+    	return size;
+    } // END heapPop()
+    
+    /* keyedPush
+    // Pre-conditions:
+    //    - heap[0..size-1] is a binary min-heap of ids ordered by key[id]
+    //      (ties broken by the smaller id), with room for one more entry
+    // Post-conditions:
+    //    - id is inserted and the new size is returned */
+    private static int keyedPush(int[] heap, int size, int id, double[] key) {
+    	int c = size;
+    	while (c > 0 && keyedLess(id, heap[(c - 1) / 2], key)) {
+    		heap[c] = heap[(c - 1) / 2];
+    		c = (c - 1) / 2;
+    	} // END while loop SIFT UP
+    	heap[c] = id;
+    	return size + 1;
+    } // END keyedPush()
+    
+    /* keyedPop
+    // Pre-conditions:
+    //    - heap[0..size-1] is a non-empty keyed min-heap
+    // Post-conditions:
+    //    - The entry with the smallest key, heap[0], is removed and the new
+    //      size is returned */
+    private static int keyedPop(int[] heap, int size, double[] key) {
+    	size--;
+    	int id = heap[size];
+    	int c = 0;
+    	while (2 * c + 1 < size) {
+    		int child = 2 * c + 1;
+    		if (child + 1 < size && keyedLess(heap[child + 1], heap[child], key)) {
+    			child++;
+    		} // END if RIGHT CHILD SMALLER
+    		if (!keyedLess(heap[child], id, key)) {
+    			break;
+    		} // END if
+    		heap[c] = heap[child];
+    		c = child;
+    	} // END while loop SIFT DOWN
+    	heap[c] = id;
+    	return size;
+    } // END keyedPop()
+    
+    /* keyedLess
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns true if id a orders before id b: smaller key, then smaller id */
+    private static boolean keyedLess(int a, int b, double[] key) {
+    	return key[a] < key[b] || (key[a] == key[b] && a < b);
+    } // END keyedLess()
 	
     /*countAllPaths
     // Pre-conditions:
@@ -337,33 +1606,72 @@ public class Lattice {
     //        Instead of min'ing scores over the incoming edges, you'll want to 
     //        do some other operation...*/
     public java.math.BigInteger countAllPaths() {
-		int[] sorted = this.topologicalSort();
-		BigInteger one = new BigInteger("1");
-		BigInteger zero = new BigInteger("0");
-		BigInteger[] br = new BigInteger[getNumNodes()];
-		
-		for (int k = 0; k < br.length; k++) {
-			br[k] = zero;
-		} // END for loop 
+		int[] sorted = this.order();
+		long[] count = new long[this.endIdx + 1];   // exact counts while they fit in a long
+		BigInteger[] big = null;                     // counts of promoted nodes, else null
 		
-		br[this.startIdx] = one;
+		count[this.startIdx] = 1;
 		
 		if (this.startIdx == this.endIdx) {
-			return one;
+			return BigInteger.ONE;
 		} // END if 
 		else {
 			for (int i : sorted) {
-				for (int j = 0; j <= this.endIdx; j++) {
-					if (adjMatrix[i][j] != null) {
-						br[j] = br[i].add(br[j]);
-					} // END if NON-NULL 
-				} // END for loop COL
+				for (int e = this.outOffsets[i]; e < this.outOffsets[i + 1]; e++) {
+					int j = this.jCoor[e];
+					if (big == null || (big[i] == null && big[j] == null)) {
+						try {
+							count[j] = Math.addExact(count[j], count[i]);
+							continue;
+						} // END try
+						catch (ArithmeticException overflow) {
+							if (big == null) {
+								big = new BigInteger[count.length];
+							} // END if FIRST OVERFLOW
+						} // END catch
+					} // END if BOTH FIT IN A LONG
+					BigInteger from = big[i] != null ? big[i] : BigInteger.valueOf(count[i]);
+					BigInteger to = big[j] != null ? big[j] : BigInteger.valueOf(count[j]);
+					big[j] = to.add(from);
+				} // END for loop SUCCESSORS
 			} // END for loop ROW
 		} // END else 
 		
-		return br[this.endIdx];
+		if (big != null && big[this.endIdx] != null) {
+			return big[this.endIdx];
+		} // END if PROMOTED
+		return BigInteger.valueOf(count[this.endIdx]);
     } // END countAllPaths()
     
+    /* countAllPathsLog10
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns log10 of the number of paths from startIdx to endIdx
+    //      (NEGATIVE_INFINITY if there are none), to about 15 significant
+    //      digits, without any BigInteger arithmetic
+    // Notes:
+    //    - Counts are summed in the natural-log domain with logAdd, so this is
+    //      cheap enough for reporting on lattices with astronomically many paths */
+    public double countAllPathsLog10() {
+    	int[] sorted = this.order();
+    	double[] logCount = new double[this.endIdx + 1];
+    	Arrays.fill(logCount, java.lang.Double.NEGATIVE_INFINITY);
+    	logCount[this.startIdx] = 0;
+    	
+    	for (int i : sorted) {
+    		if (logCount[i] == java.lang.Double.NEGATIVE_INFINITY) {
+    			continue;
+    		} // END if UNREACHED
+    		for (int e = this.outOffsets[i]; e < this.outOffsets[i + 1]; e++) {
+    			int j = this.jCoor[e];
+    			logCount[j] = logAdd(logCount[j], logCount[i]);
+    		} // END for loop SUCCESSORS
+    	} // END for loop
+    	
+    	return logCount[this.endIdx] / Math.log(10);
+    } // END countAllPathsLog10()
+    
     /* getLatticeDensity
     // Pre-conditions:
     //    - None
@@ -372,12 +1680,10 @@ public class Lattice {
     //      (# of non -silence- words in lattice) / (# seconds from start to end index)
 	//      Note that multiwords (e.g. to_the) count as a single non-silence word */
     public double getLatticeDensity() {
-    	Edge e;
     	int words = 0;
     	
         for (int i = 0; i < this.getNumEdges(); i++) {
-        	e = new Edge(this.adjMatrix[this.iCoor[i]][this.jCoor[i]]);
-        	if (!e.getLabel().equals("-silence-")) {
+        	if (this.labelIds[i] != Vocabulary.SILENCE) {
         		words++;  
         	} // END if   
         } // END for loop 
@@ -394,40 +1700,49 @@ public class Lattice {
     //    - See the assignment description for the exact formatting to use
     //    - For context on the dot format, see    
     //        - http://en.wikipedia.org/wiki/DOT_%28graph_description_language%29
-    //        - http://www.graphviz.org/pdf/dotguide.pdf */
+    //        - http://www.graphviz.org/pdf/dotguide.pdf
+    //    - The text is streamed (see writeDot), never held whole in memory */
     public void writeAsDot(String dotFilename) {
-        int edges = getNumEdges();
-    	StringBuilder s = new StringBuilder()
-                   .append("digraph g {\n")
-                   .append("\trankdir=\"LR\"\n");
-                   
-        // appending edges
-        int i = 0;
-        int j = 0;
-        for (int t = 0; t < edges; t++) {
-			i = this.iCoor[t];
-            j = this.jCoor[t];
-            Edge e = new Edge(this.adjMatrix[i][j]);
-            if ( t == edges - 1) {
-            	s.append("\t" + i + " -> " + j + " [label = \"" + e.getLabel() + "\"]");
-            	break;
-            } // END if 
-        	s.append("\t" + i + " -> " + j + " [label = \"" + e.getLabel() + "\"]\n");
-        } // END for loop
-        
-        s.append("\n}");       
-        
-        // writing to file
-		try {
-        	PrintWriter output = new PrintWriter(dotFilename);
-        	output.print(s.toString());
-      		output.close();
+    	try {
+    		java.io.Writer output = new java.io.OutputStreamWriter(new java.io.FileOutputStream(dotFilename));
+    		try {
+    			writeDot(output);
+    		} // END try
+    		finally {
+    			output.close();
+    		} // END finally
       	} // END try 
-      	catch (FileNotFoundException e) {
+      	catch (java.io.IOException e) {
       		System.out.println("Error: Unable to open file" + dotFilename);
          	System.exit(1);
       	} // END catch 
     } // END writeAsDot()
+
+    /* writeDot - stream the lattice in dot format
+    // Pre-conditions:
+    //    - out is open (it is not closed)
+    // Post-conditions:
+    //    - The text writeAsDot saves is written to out, a chunk at a time
+    //    - Throws IOException if out does */
+    public void writeDot(java.io.Writer out) throws java.io.IOException {
+    	int edges = getNumEdges();
+    	TextSink sink = new TextSink(out, TextSink.CHUNK + 256);
+    	StringBuilder s = sink.s;
+    	s.append("digraph g {\n").append("\trankdir=\"LR\"\n");
+
+    	// appending edges, with no newline after the last one
+    	for (int t = 0; t < edges; t++) {
+    		s.append('\t').append(this.iCoor[t]).append(" -> ").append(this.jCoor[t])
+    		 .append(" [label = \"").append(getEdgeLabel(t)).append("\"]");
+    		if (t < edges - 1) {
+    			s.append('\n');
+    		} // END if
+    		sink.endRecord();
+    	} // END for loop
+
+    	s.append("\n}");
+    	sink.flush();
+    } // END writeDot()
 	
     /* saveAsFile - write in the simplified lattice format (same as input format)
     // Pre-conditions:
@@ -435,63 +1750,112 @@ public class Lattice {
     // Post-conditions:
     //    - The lattice's toString() representation is written to the output file
     // Note:
-    //    - This output file should be in the same format as the input .lattice file */
+    //    - This output file should be in the same format as the input .lattice file
+    //    - The text is streamed (see write), never held whole in memory; a
+    //      failed write is reported like a file that cannot be opened */
     public void saveAsFile(String latticeOutputFilename) {
     	try {
-        	PrintWriter output = new PrintWriter(latticeOutputFilename);
-        	output.print(this.toString());
-      		output.close();
+    		java.io.Writer output = new java.io.OutputStreamWriter(new java.io.FileOutputStream(latticeOutputFilename));
+    		try {
+    			write(output);
+    		} // END try
+    		finally {
+    			output.close();
+    		} // END finally
       	} // END try 
-      	catch (FileNotFoundException e) {
+      	catch (java.io.IOException e) {
       		System.out.println("Error: Unable to open file" + latticeOutputFilename);
          	System.exit(1);
       	} // END catch 
     } // END saveAsFile()
+    
+    /* saveAsBinaryFile - write in the compact binary lattice format
+    // Pre-conditions:
+    //    - latticeOutputFilename is the name of the intended output file
+    // Post-conditions:
+    //    - The lattice is written in the format described in LatticeBinary,
+    //      which LatticeBinary.load reads back without any text parsing */
+    public void saveAsBinaryFile(String latticeOutputFilename) {
+    	try {
+    		LatticeBinary.save(this, latticeOutputFilename);
+    	} // END try
+    	catch (java.io.IOException e) {
+    		System.out.println("Error: Unable to open file" + latticeOutputFilename);
+    		System.exit(1);
+    	} // END catch
+    } // END saveAsBinaryFile()
 	
     /* uniqueWordsAtTime - find all words at a certain point in time
     // Pre-conditions:
     //    - time is the time you want to query
     // Post-conditions:
     //    - A HashSet is returned containing all unique words that overlap 
-    //      with the specified time
-    //     (If the time is not within the time range of the lattice, the Hashset should be empty) */
+    //      with the specified time, i.e. the labels of the edges (i,j) with
+    //      nodeTimes[i] <= time <= nodeTimes[j]
+    //     (If the time is not within the time range of the lattice, the Hashset should be empty)
+    // Notes:
+    //    - Answered from the edge interval index in O(log E + k) */
     public java.util.HashSet<String> uniqueWordsAtTime(double time) {
-        HashSet<String> hs = new HashSet<String>();
-        HashSet<Integer> validIdx = new HashSet<Integer>();
-    	
-    	// is within valid range?
-    	if (time < this.nodeTimes[0] || time > this.nodeTimes[this.nodeTimes.length - 1]) {
-    		return hs;
-    	} // END if 
-    	else {
-    		int initial = Arrays.binarySearch(this.nodeTimes, time);
-    		int end = initial;
-    		
-			// finding range of valid indices within nodeTimes
-    		for (int i = initial; i < getNumNodes(); i++) {
-    			if (this.nodeTimes[end] == time) {
-    				end++;
-    			} // END if 
-    			else {
-    				break;
-    			} // END else
-    		} // END while loop
-    		
-    		// finding indices of valid coordinates 
-    		for (int i = 0; i < this.jCoor.length; i++) {
-    			 if (this.jCoor[i] >= initial && this.jCoor[i] <= end) {
-    			 	validIdx.add(i);
-    			 } //END if
-    		} // END for loop
-    		
-    		// adding words from found valid coordinate indices  
-    		for (int s : validIdx) {
-    			hs.add(this.adjMatrix[this.iCoor[s]][this.jCoor[s]].getLabel());
-    		} // END for loop 
-    	} // END else
-    	
-        return hs;
+        return labelsOf(getTimeIndex().edgesAt(time));
     } // END uniqueWordsAtTime()
+    
+    /* uniqueWordsAtTimes - batch form of uniqueWordsAtTime
+    // Pre-conditions:
+    //    - times holds the query times (e.g. sorted ascending)
+    // Post-conditions:
+    //    - Returns one HashSet per query time, in the order of times, equal to
+    //      uniqueWordsAtTime of that time */
+    public java.util.ArrayList<java.util.HashSet<String>> uniqueWordsAtTimes(double[] times) {
+    	java.util.ArrayList<java.util.HashSet<String>> sets = new java.util.ArrayList<java.util.HashSet<String>>();
+    	for (int[] ids : getTimeIndex().edgesAt(times)) {
+    		sets.add(labelsOf(ids));
+    	} // END for loop
+    	return sets;
+    } // END uniqueWordsAtTimes()
+    
+    /* uniqueWordsInRange - find all words overlapping a span of time
+    // Pre-conditions:
+    //    - from <= to
+    // Post-conditions:
+    //    - A HashSet is returned containing the labels of all edges whose
+    //      [start, end] time span intersects [from, to] */
+    public java.util.HashSet<String> uniqueWordsInRange(double from, double to) {
+    	return labelsOf(getTimeIndex().edgesOverlapping(from, to));
+    } // END uniqueWordsInRange()
+    
+    /* getTimeIndex
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the interval index over the edges' time spans (edge ids as
+    //      used by computeEdgePosteriors), building it on first use */
+    public EdgeIntervalIndex getTimeIndex() {
+    	EdgeIntervalIndex index = this.timeIndex;
+    	if (index == null) {
+    		double[] from = new double[getNumEdges()];
+    		double[] to = new double[getNumEdges()];
+    		for (int e = 0; e < getNumEdges(); e++) {
+    			from[e] = this.nodeTimes[this.iCoor[e]];
+    			to[e] = this.nodeTimes[this.jCoor[e]];
+    		} // END for loop
+    		index = new EdgeIntervalIndex(from, to);
+    		this.timeIndex = index;
+    	} // END if NOT BUILT
+    	return index;
+    } // END getTimeIndex()
+    
+    /* labelsOf
+    // Pre-conditions:
+    //    - ids holds edge ids
+    // Post-conditions:
+    //    - Returns the set of their labels */
+    private HashSet<String> labelsOf(int[] ids) {
+    	HashSet<String> hs = new HashSet<String>();
+    	for (int e : ids) {
+    		hs.add(getEdgeLabel(e));
+    	} // END for loop
+    	return hs;
+    } // END labelsOf()
 	
     /* printSortedHits - print in sorted order all times where a given token appears
     // Pre-conditions:
@@ -505,32 +1869,57 @@ public class Lattice {
 	//    - java.util.Arrays.sort can be used to sort
     //    - PrintStream's format method can print numbers to two decimal places*/
     public void printSortedHits(String word) {
-    	double[] ar = new double[getNumEdges()];
-    	int found = 0;
-    	
-    	// traversing valid coordinates
-    	for (int g = 0; g < getNumEdges(); g++) {
-    		// traversing valid coordinates progressing if found edge with desired label
-    		if (this.adjMatrix[this.iCoor[g]][this.jCoor[g]].getLabel().equals(word)) {
-    			ar[found] = (this.nodeTimes[this.iCoor[g]] + this.nodeTimes[this.jCoor[g]]) / 2;
-    			found++;
-    		} // END if
-    	} // END for loop
-    	 
-    	// preparing valid nodes for sorting 
-    	double[] sortable = new double[found];
-    	for (int z = 0; z < found; z++) {
-    		sortable[z] = ar[z];
-    	} // END for loop 
-    	
-    	// sorting array containing only valid times
-    	Arrays.sort(sortable);
+    	printSortedHits(word, System.out);
+    } // END printSortedHits()
+    
+    /* printSortedHits - as above, printing to out instead of standard output
+    // Pre-conditions:
+    //    - word is the word (or multiword) that you want to find in the lattice
+    //    - out is an open PrintStream (e.g. a per-utterance report buffer) */
+    public void printSortedHits(String word, java.io.PrintStream out) {
+    	double[] sortable = getSortedHits(word);
     	
     	// printing sorted array of valid times
-    	for (int x = 0; x < found; x++) {
-    		System.out.printf("%.2f ", sortable[x]);
+    	for (int x = 0; x < sortable.length; x++) {
+    		out.printf("%.2f ", sortable[x]);
     	} // END for loop 
     
-    	System.out.print("\n");
+    	out.print("\n");
     } // END printSortedHits()
+    
+    /* getSortedHits - the times printSortedHits prints, without printing them
+    // Pre-conditions:
+    //    - word is the word (or multiword) that you want to find in the lattice
+    // Post-conditions:
+    //    - Returns the midpoint of each instance of word in ascending order
+    //      (an empty array if there are none)
+    // Notes:
+    //    - A lookup in the lattice's word index, not a scan over the edges */
+    public double[] getSortedHits(String word) {
+    	return getWordIndex().getSortedHits(word);
+    } // END getSortedHits()
+    
+    /* getSortedHits - batch form for keyword spotting
+    // Pre-conditions:
+    //    - words holds the words to look up
+    // Post-conditions:
+    //    - Returns a map from each of words to its sorted midpoint times */
+    public java.util.HashMap<String, double[]> getSortedHits(java.util.Collection<String> words) {
+    	return getWordIndex().getSortedHits(words);
+    } // END getSortedHits()
+    
+    /* getWordIndex
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the inverted index from word to its edges and midpoint
+    //      times, building it on first use (once per lattice) */
+    public WordIndex getWordIndex() {
+    	WordIndex index = this.wordIndex;
+    	if (index == null) {
+    		index = new WordIndex(this);
+    		this.wordIndex = index;
+    	} // END if NOT BUILT
+    	return index;
+    } // END getWordIndex()
 } // END Lattice class
@@ -0,0 +1,323 @@
+/*
+ * LatticeBinary.java
+ *
+ * Reads and writes lattices in a compact binary format, so archived
+ * lattices can be re-opened (e.g. to decode them again at a different
+ * lmScale) without parsing text.
+ *
+ * Layout (all multi-byte fixed-width values big-endian):
+ *
+ *     int      MAGIC ("LATB")
+ *     varint   VERSION
+ *     string?  utterance ID
+ *     varint   startIdx, endIdx, numNodes, numEdges
+ *     double   nodeTimes[0 .. endIdx]
+ *     varint   number of labels, followed by that many strings
+ *     edges    numEdges records in CSR order (by source, then target):
+ *                varint   source - previous edge's source
+ *                zigzag   target - source
+ *                varint   label id (index into the label dictionary)
+ *                zigzag   amScore
+ *                zigzag   lmScore
+ *
+ * where a string is a varint byte length followed by UTF-8 bytes, a string?
+ * is a varint 0 for null or the byte length + 1 followed by the bytes, a
+ * varint is an unsigned LEB128 integer and a zigzag is a signed int mapped
+ * onto a varint with (n << 1) ^ (n >> 31).
+ *
+ */
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public final class LatticeBinary {
+    public static final String EXTENSION = ".latb"; // Conventional file suffix
+    private static final int MAGIC = 0x4C415442;    // "LATB"
+    private static final int VERSION = 1;
+
+    private LatticeBinary() {
+    } // END LatticeBinary() CONSTRUCTOR
+
+    /* save
+    // Pre-conditions:
+    //    - lattice is a valid Lattice, filename the intended output file
+    // Post-conditions:
+    //    - The lattice is written to filename in the binary format */
+    public static void save(Lattice lattice, String filename) throws IOException {
+    	OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+    	try {
+    		write(lattice, out);
+    	} // END try
+    	finally {
+    		out.close();
+    	} // END finally
+    } // END save()
+
+    /* write
+    // Pre-conditions:
+    //    - lattice is a valid Lattice, out is open
+    // Post-conditions:
+    //    - The binary form of lattice is written to out (out is not closed) */
+    public static void write(Lattice lattice, OutputStream out) throws IOException {
+    	int edges = lattice.getNumEdges();
+    	int end = lattice.getEndIdx();
+
+    	// building the label dictionary in order of first use
+    	HashMap<Integer, Integer> ids = new HashMap<Integer, Integer>();
+    	ArrayList<String> labels = new ArrayList<String>();
+    	int[] labelOf = new int[edges];
+    	for (int k = 0; k < edges; k++) {
+    		int vocabularyId = lattice.getEdgeLabelId(k);
+    		Integer id = ids.get(vocabularyId);
+    		if (id == null) {
+    			id = labels.size();
+    			ids.put(vocabularyId, id);
+    			labels.add(Vocabulary.word(vocabularyId));
+    		} // END if NEW LABEL
+    		labelOf[k] = id;
+    	} // END for loop
+
+    	writeInt(out, MAGIC);
+    	writeVarint(out, VERSION);
+    	writeNullableString(out, lattice.getUtteranceID());
+    	writeVarint(out, lattice.getStartIdx());
+    	writeVarint(out, end);
+    	writeVarint(out, lattice.getNumNodes());
+    	writeVarint(out, edges);
+    	for (int n = 0; n <= end; n++) {
+    		long bits = Double.doubleToRawLongBits(lattice.getNodeTime(n));
+    		writeInt(out, (int) (bits >>> 32));
+    		writeInt(out, (int) bits);
+    	} // END for loop NODE TIMES
+
+    	writeVarint(out, labels.size());
+    	for (String label : labels) {
+    		writeString(out, label);
+    	} // END for loop LABELS
+
+    	int previous = 0;
+    	for (int k = 0; k < edges; k++) {
+    		int i = lattice.getEdgeSource(k);
+    		writeVarint(out, i - previous);
+    		writeVarint(out, zigzag(lattice.getEdgeTarget(k) - i));
+    		writeVarint(out, labelOf[k]);
+    		writeVarint(out, zigzag(lattice.getEdgeAmScore(k)));
+    		writeVarint(out, zigzag(lattice.getEdgeLmScore(k)));
+    		previous = i;
+    	} // END for loop EDGES
+    } // END write()
+
+    /* load
+    // Pre-conditions:
+    //    - filename names a file written by save
+    // Post-conditions:
+    //    - The file is memory-mapped and decoded into a new Lattice
+    //    - Throws java.io.FileNotFoundException if it cannot be opened and an
+    //      IOException if it is not a valid binary lattice */
+    public static Lattice load(String filename) throws IOException {
+    	FileInputStream in = new FileInputStream(filename);
+    	try {
+    		FileChannel channel = in.getChannel();
+    		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    		return read(map, filename);
+    	} // END try
+    	finally {
+    		in.close();
+    	} // END finally
+    } // END load()
+
+    /* read
+    // Pre-conditions:
+    //    - data holds a binary lattice from its position onwards
+    // Post-conditions:
+    //    - Returns the decoded Lattice; data's position is advanced past it
+    //    - Throws IOException if the data is truncated, or a size, index or
+    //      label id is out of range; sizes are checked against the bytes
+    //      remaining before anything is allocated */
+    public static Lattice read(ByteBuffer data, String sourceName) throws IOException {
+    	return read(data, sourceName, Integer.MAX_VALUE);
+    } // END read()
+
+    /* read - bounded form
+    // Pre-conditions:
+    //    - data holds a binary lattice from its position onwards
+    // Post-conditions:
+    //    - As read(data, sourceName), but a label that would take the
+    //      Vocabulary past maxVocabulary labels is an IOException */
+    public static Lattice read(ByteBuffer data, String sourceName, int maxVocabulary) throws IOException {
+    	try {
+    		check(data.getInt() == MAGIC && readVarint(data) == VERSION, sourceName);
+    		String utteranceID = readNullableString(data);
+    		int startIdx = readVarint(data);
+    		int endIdx = readVarint(data);
+    		int numNodes = readVarint(data);
+    		int numEdges = readVarint(data);
+    		check(endIdx >= 0 && startIdx >= 0 && startIdx <= endIdx && numEdges >= 0, sourceName);
+    		check(8L * (endIdx + 1) <= data.remaining(), sourceName);
+
+    		double[] nodeTimes = new double[endIdx + 1];
+    		for (int n = 0; n <= endIdx; n++) {
+    			nodeTimes[n] = data.getDouble();
+    		} // END for loop NODE TIMES
+
+    		int numLabels = readVarint(data);
+    		check(numLabels >= 0 && numLabels <= data.remaining(), sourceName);  // a byte or more each
+    		int[] labels = new int[numLabels];
+    		for (int l = 0; l < labels.length; l++) {
+    			labels[l] = Vocabulary.intern(readString(data), maxVocabulary);
+    			if (labels[l] < 0) {
+    				throw new IOException("Error: vocabulary limit of " + maxVocabulary + " words reached in " + sourceName);
+    			} // END if FULL
+    		} // END for loop LABELS
+
+    		check(5L * numEdges <= data.remaining(), sourceName);  // five varints per edge
+    		int[] iCoor = new int[numEdges];
+    		int[] jCoor = new int[numEdges];
+    		int[] labelIds = new int[numEdges];
+    		int[] amScores = new int[numEdges];
+    		int[] lmScores = new int[numEdges];
+    		int i = 0;
+    		for (int k = 0; k < numEdges; k++) {
+    			i += readVarint(data);
+    			iCoor[k] = i;
+    			jCoor[k] = i + unzigzag(readVarint(data));
+    			check(i >= 0 && i <= endIdx && jCoor[k] >= 0 && jCoor[k] <= endIdx, sourceName);
+    			labelIds[k] = labels[readVarint(data)];
+    			amScores[k] = unzigzag(readVarint(data));
+    			lmScores[k] = unzigzag(readVarint(data));
+    		} // END for loop EDGES
+
+    		return new Lattice(utteranceID, startIdx, endIdx, numNodes, nodeTimes, iCoor, jCoor, labelIds, amScores, lmScores);
+    	} // END try
+    	catch (RuntimeException e) {
+    		// truncated data, negative sizes, or ids and indices out of range
+    		throw new IOException("Error: Not able to parse file " + sourceName);
+    	} // END catch
+    } // END read()
+
+    /* check
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Throws the parse error for sourceName if ok is false */
+    private static void check(boolean ok, String sourceName) throws IOException {
+    	if (!ok) {
+    		throw new IOException("Error: Not able to parse file " + sourceName);
+    	} // END if
+    } // END check()
+
+    /* zigzag / unzigzag
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Map signed ints to unsigned ones (0, -1, 1, -2, ... -> 0, 1, 2, 3, ...)
+    //      and back, so small magnitudes get short varints */
+    static int zigzag(int n) {
+    	return (n << 1) ^ (n >> 31);
+    } // END zigzag()
+
+    static int unzigzag(int n) {
+    	return (n >>> 1) ^ -(n & 1);
+    } // END unzigzag()
+
+    /* writeVarint
+    // Pre-conditions:
+    //    - v is treated as unsigned
+    // Post-conditions:
+    //    - v is written 7 bits per byte, low bits first, high bit = "more" */
+    static void writeVarint(OutputStream out, int v) throws IOException {
+    	while ((v & ~0x7F) != 0) {
+    		out.write((v & 0x7F) | 0x80);
+    		v >>>= 7;
+    	} // END while loop
+    	out.write(v);
+    } // END writeVarint()
+
+    /* readVarint
+    // Pre-conditions:
+    //    - data is positioned at a varint
+    // Post-conditions:
+    //    - Returns the decoded value and advances past it */
+    static int readVarint(ByteBuffer data) throws IOException {
+    	int v = 0;
+    	for (int shift = 0; shift < 35; shift += 7) {
+    		byte b = data.get();
+    		v |= (b & 0x7F) << shift;
+    		if (b >= 0) {
+    			return v;
+    		} // END if LAST BYTE
+    	} // END for loop
+    	throw new IOException("Error: malformed varint");
+    } // END readVarint()
+
+    /* writeInt
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - v is written as four big-endian bytes */
+    static void writeInt(OutputStream out, int v) throws IOException {
+    	out.write(v >>> 24);
+    	out.write(v >>> 16);
+    	out.write(v >>> 8);
+    	out.write(v);
+    } // END writeInt()
+
+    /* writeString / readString
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - A string is stored as its UTF-8 byte length followed by the bytes */
+    static void writeString(OutputStream out, String s) throws IOException {
+    	byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    	writeVarint(out, bytes.length);
+    	out.write(bytes);
+    } // END writeString()
+
+    static String readString(ByteBuffer data) throws IOException {
+    	return readBytes(data, readVarint(data));
+    } // END readString()
+
+    /* writeNullableString / readNullableString
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - A possibly null string is stored as varint 0 for null, otherwise as
+    //      its UTF-8 byte length + 1 followed by the bytes */
+    static void writeNullableString(OutputStream out, String s) throws IOException {
+    	if (s == null) {
+    		writeVarint(out, 0);
+    		return;
+    	} // END if NULL
+    	byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    	writeVarint(out, bytes.length + 1);
+    	out.write(bytes);
+    } // END writeNullableString()
+
+    static String readNullableString(ByteBuffer data) throws IOException {
+    	int length = readVarint(data);
+    	return length == 0 ? null : readBytes(data, length - 1);
+    } // END readNullableString()
+
+    /* readBytes
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the next length bytes of data decoded as UTF-8
+    //    - Throws IOException if fewer than length bytes remain */
+    private static String readBytes(ByteBuffer data, int length) throws IOException {
+    	if (length < 0 || length > data.remaining()) {
+    		throw new IOException("Error: malformed string");
+    	} // END if
+    	byte[] bytes = new byte[length];
+    	data.get(bytes);
+    	return new String(bytes, StandardCharsets.UTF_8);
+    } // END readBytes()
+} // END LatticeBinary class
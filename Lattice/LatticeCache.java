@@ -0,0 +1,180 @@
+/*
+ * LatticeCache.java
+ *
+ * A bounded cache of loaded lattices for a long-running process (tuning
+ * sweeps, re-decoding, keyword queries), so asking for the same file again
+ * returns the Lattice already in memory instead of parsing it again.
+ *
+ * Entries are keyed by the file's absolute path and remember its
+ * modification time and length: a file that has changed since it was
+ * loaded is loaded again.  The cache holds at most maxBytes of lattices,
+ * by Lattice.estimateHeapBytes, and evicts the least recently used ones to
+ * stay under it.  Hits, misses and evictions are counted.
+ *
+ * A LatticeCache may be shared by several threads.  Loading happens
+ * outside the lock, so two threads missing on the same file at once may
+ * both load it; the first to finish is kept.
+ *
+ */
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class LatticeCache {
+    private final long maxBytes;                          // Capacity, in estimated heap bytes
+    private final LinkedHashMap<String, Entry> entries;   // Path -> entry, least recently used first
+    private long bytes;                                   // Estimated size of the cached lattices
+    private long hits, misses, evictions;
+
+    /* Entry - a cached lattice and the file state it was loaded from */
+    private static final class Entry {
+    	final Lattice lattice;
+    	final long modified, length, bytes;
+
+    	Entry(Lattice lattice, long modified, long length, long bytes) {
+    		this.lattice = lattice;
+    		this.modified = modified;
+    		this.length = length;
+    		this.bytes = bytes;
+    	} // END Entry() CONSTRUCTOR
+    } // END Entry class
+
+    /* LatticeCache
+    // Pre-conditions:
+    //    - maxBytes >= 0
+    // Post-conditions:
+    //    - An empty cache holding at most maxBytes of lattices is created */
+    public LatticeCache(long maxBytes) {
+    	this.maxBytes = maxBytes;
+    	this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    } // END LatticeCache() CONSTRUCTOR
+
+    /* get
+    // Pre-conditions:
+    //    - filename names a lattice file (text, or binary with the
+    //      LatticeBinary.EXTENSION suffix)
+    // Post-conditions:
+    //    - Returns the Lattice for the file: the cached one if the file has
+    //      the same modification time and length as when it was cached,
+    //      otherwise it is loaded, cached (if it fits) and returned
+    //    - Throws java.io.FileNotFoundException if the file does not exist
+    //      and an IOException if it cannot be parsed, as the loaders do */
+    public Lattice get(String filename) throws IOException {
+    	File file = new File(filename).getAbsoluteFile();
+    	String key = file.getPath();
+    	long modified = file.lastModified();
+    	long length = file.length();
+    	if (modified == 0L && !file.exists()) {
+    		throw new FileNotFoundException(filename);
+    	} // END if MISSING
+
+    	synchronized (this) {
+    		Entry entry = this.entries.get(key);
+    		if (entry != null && entry.modified == modified && entry.length == length) {
+    			this.hits++;
+    			return entry.lattice;
+    		} // END if HIT
+    		this.misses++;
+    	} // END synchronized
+
+    	Lattice lattice = filename.endsWith(LatticeBinary.EXTENSION)
+    	                  ? LatticeBinary.load(filename) : LatticeParser.parse(filename);
+    	put(key, new Entry(lattice, modified, length, lattice.estimateHeapBytes()));
+    	return lattice;
+    } // END get()
+
+    /* put
+    // Pre-conditions:
+    //    - entry was just loaded for key
+    // Post-conditions:
+    //    - entry replaces any entry for key, unless another thread cached the
+    //      same file state first; least recently used entries are evicted
+    //      until the cache fits.  An entry larger than the whole cache is not
+    //      kept */
+    private synchronized void put(String key, Entry entry) {
+    	Entry old = this.entries.get(key);
+    	if (old != null && old.modified == entry.modified && old.length == entry.length) {
+    		return;
+    	} // END if CACHED MEANWHILE
+    	if (old != null) {
+    		this.entries.remove(key);
+    		this.bytes -= old.bytes;
+    	} // END if STALE
+    	if (entry.bytes > this.maxBytes) {
+    		return;
+    	} // END if TOO LARGE
+    	this.entries.put(key, entry);
+    	this.bytes += entry.bytes;
+
+    	Iterator<Map.Entry<String, Entry>> eldest = this.entries.entrySet().iterator();
+    	while (this.bytes > this.maxBytes) {
+    		Entry victim = eldest.next().getValue();
+    		eldest.remove();
+    		this.bytes -= victim.bytes;
+    		this.evictions++;
+    	} // END while loop EVICTING
+    } // END put()
+
+    /* invalidate / clear
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - The entry for filename (or every entry) is dropped; the counters are
+    //      not changed */
+    public synchronized void invalidate(String filename) {
+    	Entry old = this.entries.remove(new File(filename).getAbsoluteFile().getPath());
+    	if (old != null) {
+    		this.bytes -= old.bytes;
+    	} // END if
+    } // END invalidate()
+
+    public synchronized void clear() {
+    	this.entries.clear();
+    	this.bytes = 0;
+    } // END clear()
+
+    /* size / getBytes / getMaxBytes
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Return the number of cached lattices, their estimated total size
+    //      and the capacity, in bytes */
+    public synchronized int size() {
+    	return this.entries.size();
+    } // END size()
+
+    public synchronized long getBytes() {
+    	return this.bytes;
+    } // END getBytes()
+
+    public long getMaxBytes() {
+    	return this.maxBytes;
+    } // END getMaxBytes()
+
+    /* getHits / getMisses / getEvictions
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Return how many gets were answered from the cache, how many loaded
+    //      the file (including reloads of changed files), and how many entries
+    //      were evicted to make room */
+    public synchronized long getHits() {
+    	return this.hits;
+    } // END getHits()
+
+    public synchronized long getMisses() {
+    	return this.misses;
+    } // END getMisses()
+
+    public synchronized long getEvictions() {
+    	return this.evictions;
+    } // END getEvictions()
+
+    public synchronized String toString() {
+    	return "LatticeCache[" + this.entries.size() + " lattices, " + this.bytes + "/" + this.maxBytes
+    	       + " bytes, hits=" + this.hits + " misses=" + this.misses + " evictions=" + this.evictions + "]";
+    } // END toString()
+} // END LatticeCache class
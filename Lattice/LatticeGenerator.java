@@ -0,0 +1,464 @@
+/*
+ * LatticeGenerator.java
+ *
+ * Writes synthetic lattice files in the text format Lattice reads, for
+ * load-testing Lattice, Program2 and the benchmarks at sizes far beyond the
+ * course inputs.  The shape and scores are controlled by
+ *
+ *     numNodes       nodes in the lattice (node 0 is the start, the last node the end)
+ *     branching      mean number of out-edges per node (before the cap below)
+ *     maxSpan        the farthest ahead (in nodes) an edge may reach
+ *     duration       time of the end node, in seconds; node times increase
+ *                    evenly with some jitter
+ *     vocabSize      words w0 .. w(vocabSize-1), drawn from a Zipf distribution
+ *                    with exponent zipfExponent (0 is uniform)
+ *     silenceRatio   fraction of edges labelled with silence
+ *     am/lm scores   normal distributions, given as mean and standard deviation,
+ *                    rounded and clamped at 0; the am mean is per node spanned
+ *
+ * Every node has an edge to the next one, so every node lies on a path from
+ * the start to the end node, and the edges only go forward, so the lattice
+ * is acyclic.  The other out-edges go to distinct nodes drawn uniformly from
+ * the rest of the next maxSpan, so no two edges join the same pair of nodes
+ * (Lattice stores one edge per pair) and a node's out-degree is capped at
+ * the number of nodes it can reach.
+ *
+ * The output is a pure function of the seed and the settings.  Generation
+ * streams: memory does not grow with the lattice, and the edge count for
+ * the header comes from a first pass that replays only the out-degrees.
+ *
+ * ----------------------------------------------------------------------------
+ *
+ * usage:
+ *
+ * java LatticeGenerator [options] outputPrefix [count]
+ *
+ * which writes outputPrefix0.lattice .. outputPrefix(count-1).lattice (count
+ * defaults to 1), a reference for each (outputPrefix0.ref, ...) of about one
+ * word per two nodes, and outputPrefix.list listing them for Program2.  The
+ * options, with their defaults, are
+ *     -seed 1  -nodes 1000  -branching 3  -maxSpan 8  -duration 10
+ *     -vocab 1000  -zipf 1  -silence 0.1  -am 3000,1000  -lm 300,100
+ * and lattice k is generated with seed (seed + k)
+ *
+*/
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+public final class LatticeGenerator {
+    private final long seed;
+    private String utteranceID = "synthetic";
+    private int numNodes = 1000;
+    private double branching = 3.0;
+    private int maxSpan = 8;
+    private double duration = 10.0;
+    private int vocabSize = 1000;
+    private double zipfExponent = 1.0;
+    private double silenceRatio = 0.1;
+    private double amMean = 3000, amStdDev = 1000;
+    private double lmMean = 300, lmStdDev = 100;
+    private double[] zipfCdf;                       // Cumulative word probabilities, built on demand
+
+    /* LatticeGenerator
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - A generator with the default settings is created; equal seeds and
+    //      settings give identical output */
+    public LatticeGenerator(long seed) {
+    	this.seed = seed;
+    } // END LatticeGenerator() CONSTRUCTOR
+
+    /* Settings
+    // Pre-conditions:
+    //    - numNodes >= 2, branching >= 1, maxSpan >= 1, duration >= 0,
+    //      vocabSize >= 1, zipfExponent >= 0, 0 <= silenceRatio <= 1,
+    //      standard deviations >= 0; utteranceID has no whitespace
+    // Post-conditions:
+    //    - The setting is changed, or an IllegalArgumentException is thrown */
+    public void setUtteranceID(String utteranceID) {
+    	require(!utteranceID.isEmpty() && !utteranceID.matches(".*\\s.*"), "utteranceID " + utteranceID);
+    	this.utteranceID = utteranceID;
+    } // END setUtteranceID()
+
+    public void setNumNodes(int numNodes) {
+    	require(numNodes >= 2, "numNodes " + numNodes);
+    	this.numNodes = numNodes;
+    } // END setNumNodes()
+
+    public void setBranching(double branching) {
+    	require(branching >= 1, "branching " + branching);
+    	this.branching = branching;
+    } // END setBranching()
+
+    public void setMaxSpan(int maxSpan) {
+    	require(maxSpan >= 1, "maxSpan " + maxSpan);
+    	this.maxSpan = maxSpan;
+    } // END setMaxSpan()
+
+    public void setDuration(double duration) {
+    	require(duration >= 0, "duration " + duration);
+    	this.duration = duration;
+    } // END setDuration()
+
+    public void setVocabSize(int vocabSize) {
+    	require(vocabSize >= 1, "vocabSize " + vocabSize);
+    	this.vocabSize = vocabSize;
+    	this.zipfCdf = null;
+    } // END setVocabSize()
+
+    public void setZipfExponent(double zipfExponent) {
+    	require(zipfExponent >= 0, "zipfExponent " + zipfExponent);
+    	this.zipfExponent = zipfExponent;
+    	this.zipfCdf = null;
+    } // END setZipfExponent()
+
+    public void setSilenceRatio(double silenceRatio) {
+    	require(silenceRatio >= 0 && silenceRatio <= 1, "silenceRatio " + silenceRatio);
+    	this.silenceRatio = silenceRatio;
+    } // END setSilenceRatio()
+
+    public void setAmScores(double mean, double stdDev) {
+    	require(stdDev >= 0, "amStdDev " + stdDev);
+    	this.amMean = mean;
+    	this.amStdDev = stdDev;
+    } // END setAmScores()
+
+    public void setLmScores(double mean, double stdDev) {
+    	require(stdDev >= 0, "lmStdDev " + stdDev);
+    	this.lmMean = mean;
+    	this.lmStdDev = stdDev;
+    } // END setLmScores()
+
+    private static void require(boolean ok, String what) {
+    	if (!ok) {
+    		throw new IllegalArgumentException("Error: invalid " + what);
+    	} // END if
+    } // END require()
+
+    /* countEdges
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of edges write will produce */
+    public long countEdges() {
+    	Random degrees = new Random(this.seed);
+    	long numEdges = 0;
+    	for (int i = 0; i < this.numNodes - 1; i++) {
+    		numEdges += Math.min(outDegree(degrees), reach(i));
+    	} // END for loop
+    	return numEdges;
+    } // END countEdges()
+
+    /* reach
+    // Pre-conditions:
+    //    - 0 <= i < numNodes - 1
+    // Post-conditions:
+    //    - Returns how many nodes an edge from node i may go to: those up to
+    //      maxSpan ahead, but not past the end node */
+    private int reach(int i) {
+    	return Math.min(this.maxSpan, this.numNodes - 1 - i);
+    } // END reach()
+
+    /* outDegree
+    // Pre-conditions:
+    //    - degrees is the out-degree stream, positioned at the next node
+    // Post-conditions:
+    //    - Returns 1 plus a Poisson draw of mean branching - 1 */
+    private int outDegree(Random degrees) {
+    	double lambda = this.branching - 1;
+    	int extra = 0;
+    	while (lambda > 0) {                   // Knuth's method, in chunks so exp() stays representable
+    		double chunk = Math.min(lambda, 30);
+    		double limit = Math.exp(-chunk);
+    		double p = degrees.nextDouble();
+    		while (p > limit) {
+    			extra++;
+    			p *= degrees.nextDouble();
+    		} // END while loop
+    		lambda -= chunk;
+    	} // END while loop
+    	return 1 + extra;
+    } // END outDegree()
+
+    /* save / write
+    // Pre-conditions:
+    //    - filename can be created, or out is open
+    // Post-conditions:
+    //    - The lattice is written in the text format, without a final newline
+    //      (like the course lattices); write does not close out
+    //    - Throws IOException if writing fails
+    // Notes:
+    //    - Records are formatted straight into a byte buffer, so no String is
+    //      made per node or edge */
+    public void save(String filename) throws IOException {
+    	try (OutputStream out = new FileOutputStream(filename)) {
+    		write(out);
+    	} // END try
+    } // END save()
+
+    public void write(OutputStream out) throws IOException {
+    	Ascii w = new Ascii(out);
+    	Random degrees = new Random(this.seed);
+    	Random random = new Random(this.seed ^ 0x2545F4914F6CDD1DL);
+    	int last = this.numNodes - 1;
+
+    	w.text("id ").text(this.utteranceID).text("\nstart 0\nend ").number(last)
+    	 .text("\nnumNodes ").number(this.numNodes).text("\nnumEdges ").number(countEdges());
+
+    	// nodes: even steps, each moved forward by up to half a step, so times never decrease
+    	double step = this.duration / last;
+    	for (int i = 0; i <= last; i++) {
+    		double time = i == last ? this.duration : step * (i + (i == 0 ? 0 : 0.5 * random.nextDouble()));
+    		w.text("\nnode ").number(i).text(" ").hundredths(Math.round(time * 100));
+    	} // END for loop NODES
+
+    	// edges, by source and then target.  Besides i + 1, node i's targets
+    	// are i + pool[0 .. degree - 2] after a partial Fisher-Yates shuffle of
+    	// pool, which holds the offsets 2 .. reach in order between nodes (the
+    	// swaps are undone), so each node costs O(degree)
+    	int[] pool = new int[Math.max(0, Math.min(this.maxSpan, last) - 1)];
+    	for (int k = 0; k < pool.length; k++) {
+    		pool[k] = k + 2;
+    	} // END for loop
+    	int[] targets = new int[16];
+    	int[] swaps = new int[16];
+    	for (int i = 0; i < last; i++) {
+    		int reach = reach(i);
+    		int degree = Math.min(outDegree(degrees), reach);
+    		if (degree > targets.length) {
+    			targets = new int[Math.max(degree, 2 * targets.length)];
+    			swaps = new int[targets.length];
+    		} // END if GROW
+    		targets[0] = i + 1;
+    		for (int k = 0; k < degree - 1; k++) {
+    			int r = k + random.nextInt(reach - 1 - k);
+    			swap(pool, k, r);
+    			swaps[k] = r;
+    			targets[k + 1] = i + pool[k];
+    		} // END for loop DRAWING
+    		for (int k = degree - 2; k >= 0; k--) {
+    			swap(pool, k, swaps[k]);
+    		} // END for loop RESTORING
+    		Arrays.sort(targets, 0, degree);
+
+    		for (int k = 0; k < degree; k++) {
+    			int j = targets[k];
+    			w.text("\nedge ").number(i).text(" ").number(j).text(" ");
+    			if (random.nextDouble() < this.silenceRatio) {
+    				w.text(Vocabulary.SILENCE_LABEL);
+    			} // END if SILENCE
+    			else {
+    				w.text("w").number(nextWord(random));
+    			} // END else
+    			w.text(" ").number(score(random, this.amMean * (j - i), this.amStdDev))
+    			 .text(" ").number(score(random, this.lmMean, this.lmStdDev));
+    		} // END for loop
+    	} // END for loop EDGES
+    	w.flush();
+    } // END write()
+
+    /* saveReference / writeReference
+    // Pre-conditions:
+    //    - length >= 0
+    // Post-conditions:
+    //    - A reference transcript of length words, drawn from the same word
+    //      distribution as the edge labels, is written as one line */
+    public void saveReference(String filename, int length) throws IOException {
+    	try (OutputStream out = new FileOutputStream(filename)) {
+    		writeReference(out, length);
+    	} // END try
+    } // END saveReference()
+
+    public void writeReference(OutputStream out, int length) throws IOException {
+    	Ascii w = new Ascii(out);
+    	Random random = new Random(~this.seed);
+    	for (int k = 0; k < length; k++) {
+    		w.text(k == 0 ? "w" : " w").number(nextWord(random));
+    	} // END for loop
+    	w.text("\n").flush();
+    } // END writeReference()
+
+    /* nextWord
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns a word index in [0, vocabSize), Zipf-distributed */
+    private int nextWord(Random random) {
+    	if (this.zipfExponent == 0) {
+    		return random.nextInt(this.vocabSize);
+    	} // END if UNIFORM
+    	if (this.zipfCdf == null) {
+    		double[] cdf = new double[this.vocabSize];
+    		double sum = 0;
+    		for (int r = 0; r < cdf.length; r++) {
+    			sum += Math.pow(r + 1, -this.zipfExponent);
+    			cdf[r] = sum;
+    		} // END for loop
+    		for (int r = 0; r < cdf.length; r++) {
+    			cdf[r] /= sum;
+    		} // END for loop
+    		this.zipfCdf = cdf;
+    	} // END if BUILD
+    	int r = Arrays.binarySearch(this.zipfCdf, random.nextDouble());
+    	return Math.min(r < 0 ? -r - 1 : r, this.vocabSize - 1);
+    } // END nextWord()
+
+    private static void swap(int[] a, int x, int y) {
+    	int t = a[x];
+    	a[x] = a[y];
+    	a[y] = t;
+    } // END swap()
+
+    private static long score(Random random, double mean, double stdDev) {
+    	return Math.max(0, Math.round(mean + stdDev * random.nextGaussian()));
+    } // END score()
+
+    /* Ascii - a buffered writer of ASCII text and numbers */
+    private static final class Ascii {
+    	private final OutputStream out;
+    	private final byte[] buf = new byte[1 << 16];
+    	private final byte[] digits = new byte[20];
+    	private int pos;
+
+    	Ascii(OutputStream out) {
+    		this.out = out;
+    	} // END Ascii() CONSTRUCTOR
+
+    	Ascii text(String s) throws IOException {
+    		for (int k = 0; k < s.length(); k++) {
+    			put((byte) s.charAt(k));
+    		} // END for loop
+    		return this;
+    	} // END text()
+
+    	Ascii number(long v) throws IOException {
+    		if (v < 0) {
+    			put((byte) '-');
+    			v = -v;
+    		} // END if
+    		int n = 0;
+    		do {
+    			this.digits[n++] = (byte) ('0' + v % 10);
+    			v /= 10;
+    		} while (v != 0);
+    		while (n > 0) {
+    			put(this.digits[--n]);
+    		} // END while loop
+    		return this;
+    	} // END number()
+
+    	/* hundredths - writes v / 100 with two decimals, as "%.2f" would */
+    	Ascii hundredths(long v) throws IOException {
+    		number(v / 100);
+    		put((byte) '.');
+    		put((byte) ('0' + v / 10 % 10));
+    		put((byte) ('0' + v % 10));
+    		return this;
+    	} // END hundredths()
+
+    	private void put(byte b) throws IOException {
+    		if (this.pos == this.buf.length) {
+    			this.out.write(this.buf, 0, this.pos);
+    			this.pos = 0;
+    		} // END if FULL
+    		this.buf[this.pos++] = b;
+    	} // END put()
+
+    	void flush() throws IOException {
+    		this.out.write(this.buf, 0, this.pos);
+    		this.pos = 0;
+    		this.out.flush();
+    	} // END flush()
+    } // END Ascii class
+
+    public static void main(String[] args) {
+        long seed = 1;
+        java.util.ArrayList<String> positional = new java.util.ArrayList<String>();
+        java.util.ArrayList<String> options = new java.util.ArrayList<String>();
+        try {
+            for( int k=0; k<args.length; k++ ) {
+                if( args[k].startsWith("-") ) {
+                    if( k + 1 == args.length ) {
+                        throw new IllegalArgumentException("Error: missing value for " + args[k]);
+                    }
+                    if( args[k].equals("-seed") ) {
+                        seed = Long.parseLong(args[++k]);
+                    } else {
+                        options.add(args[k]);
+                        options.add(args[++k]);
+                    }
+                } else {
+                    positional.add(args[k]);
+                }
+            }
+            if( positional.size() < 1 || positional.size() > 2 ) {
+                throw new IllegalArgumentException("Error: Wrong number of arguments.");
+            }
+        } catch( IllegalArgumentException e ) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+
+        String prefix = positional.get(0);
+        int count = 1;
+        try {
+            count = positional.size() == 2 ? Integer.parseInt(positional.get(1)) : 1;
+            require(count >= 1, "count " + count);
+        } catch( IllegalArgumentException e ) {
+            System.err.println("Error: count must be a positive integer.");
+            System.exit(2);
+        }
+
+        String name = new java.io.File(prefix).getName();
+        try( PrintWriter list = new PrintWriter(prefix + ".list") ) {
+            for( int k=0; k<count; k++ ) {
+                LatticeGenerator g = new LatticeGenerator(seed + k);
+                g.setUtteranceID((name.isEmpty() ? "utt" : name) + k);
+                configure(g, options);
+                g.save(prefix + k + ".lattice");
+                g.saveReference(prefix + k + ".ref", g.numNodes / 2);
+                list.print((k == 0 ? "" : "\n") + prefix + k + ".lattice " + prefix + k + ".ref");
+            }
+        } catch( IllegalArgumentException e ) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        } catch( IOException e ) {
+            System.err.println("Error: Unable to write " + prefix + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // configure
+    // Preconditions:
+    //     - options holds option name, value pairs from the command line
+    // Post-conditions
+    //     - Each setting is applied to g; an unknown option or bad value
+    //       throws IllegalArgumentException
+    private static void configure(LatticeGenerator g, java.util.List<String> options) {
+        for( int k=0; k<options.size(); k+=2 ) {
+            String value = options.get(k + 1);
+            String[] pair = value.split(",");
+            try {
+                switch( options.get(k) ) {
+                    case "-nodes":     g.setNumNodes(Integer.parseInt(value)); break;
+                    case "-branching": g.setBranching(Double.parseDouble(value)); break;
+                    case "-maxSpan":   g.setMaxSpan(Integer.parseInt(value)); break;
+                    case "-duration":  g.setDuration(Double.parseDouble(value)); break;
+                    case "-vocab":     g.setVocabSize(Integer.parseInt(value)); break;
+                    case "-zipf":      g.setZipfExponent(Double.parseDouble(value)); break;
+                    case "-silence":   g.setSilenceRatio(Double.parseDouble(value)); break;
+                    case "-am":        g.setAmScores(Double.parseDouble(pair[0]), Double.parseDouble(pair[1])); break;
+                    case "-lm":        g.setLmScores(Double.parseDouble(pair[0]), Double.parseDouble(pair[1])); break;
+                    default: throw new IllegalArgumentException("Error: unknown option " + options.get(k));
+                }
+            } catch( NumberFormatException | ArrayIndexOutOfBoundsException e ) {
+                throw new IllegalArgumentException("Error: bad value " + value + " for " + options.get(k));
+            }
+        }
+    }
+} // END LatticeGenerator class
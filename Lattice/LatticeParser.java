@@ -0,0 +1,454 @@
+/*
+ * LatticeParser.java
+ *
+ * A fast reader for the plain text lattice format (id, start, end, numNodes,
+ * numEdges, node and edge records), producing the same Lattice as the
+ * Scanner-based Lattice(String) constructor.
+ *
+ * The input is pulled through a fixed-size buffer from a channel and
+ * tokenized byte by byte.  Integers and decimal numbers are parsed by hand
+ * (falling back to Double.parseDouble only for numbers that cannot be
+ * converted exactly on the fast path), and edge labels are looked up in a
+ * small byte-keyed table so each distinct word is decoded and interned in
+ * the Vocabulary only once per lattice.  Edges go straight into primitive
+ * arrays, so parsing an edge allocates nothing.
+ *
+ */
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+public final class LatticeParser {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final ReadableByteChannel channel; // Source of the lattice text
+    private final String sourceName;           // Used in error messages
+    private final int maxVocabulary;           // Vocabulary size new labels may not push it past
+    private final byte[] buf;                  // Input buffer, valid in [pos, limit)
+    private final ByteBuffer wrapped;          // buf as seen by the channel
+    private int pos, limit;
+    private boolean eof;
+
+    private byte[] token = new byte[64];       // The current token, token[0..tokenLen)
+    private int tokenLen;
+
+    private byte[][] labelKeys = new byte[256][]; // Open-addressing label table:
+    private int[] labelValues = new int[256];     //   UTF bytes -> Vocabulary id
+    private int labelCount;
+
+    /* LatticeParser
+    // Pre-conditions:
+    //    - channel is open and positioned at the start of a lattice
+    // Post-conditions:
+    //    - A parser reading from channel is created; nothing is read yet */
+    private LatticeParser(ReadableByteChannel channel, String sourceName, int maxVocabulary) {
+    	this.channel = channel;
+    	this.sourceName = sourceName;
+    	this.maxVocabulary = maxVocabulary;
+    	this.buf = new byte[BUFFER_SIZE];
+    	this.wrapped = ByteBuffer.wrap(this.buf);
+    } // END LatticeParser() CONSTRUCTOR
+
+    /* parse
+    // Pre-conditions:
+    //    - latticeFilename contains the path of a lattice file
+    // Post-conditions:
+    //    - Returns a Lattice identical to new Lattice(latticeFilename)
+    //    - Throws java.io.FileNotFoundException if the file cannot be opened
+    //      and an IOException with message "Error: Not able to parse file ..."
+    //      if it is malformed (the JVM is never terminated) */
+    public static Lattice parse(String latticeFilename) throws IOException {
+    	FileInputStream in = new FileInputStream(latticeFilename);
+    	try {
+    		return new LatticeParser(in.getChannel(), latticeFilename, Integer.MAX_VALUE).readLattice();
+    	} // END try
+    	finally {
+    		in.close();
+    	} // END finally
+    } // END parse()
+
+    /* parse
+    // Pre-conditions:
+    //    - data holds the text of a lattice file
+    // Post-conditions:
+    //    - Returns the Lattice described by data; malformed input raises an
+    //      IOException as for parse(String) */
+    public static Lattice parse(byte[] data) throws IOException {
+    	return parse(data, Integer.MAX_VALUE);
+    } // END parse()
+
+    /* parse - bounded form
+    // Pre-conditions:
+    //    - data holds the text of a lattice file
+    // Post-conditions:
+    //    - As parse(data), but a label that would take the Vocabulary past
+    //      maxVocabulary labels is an IOException (labels interned before it
+    //      stay interned) */
+    public static Lattice parse(byte[] data, int maxVocabulary) throws IOException {
+    	ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(data));
+    	return new LatticeParser(in, "<memory>", maxVocabulary).readLattice();
+    } // END parse()
+
+    /* readLattice
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Reads records until end of input and returns the resulting Lattice
+    //    - Throws the parse error for an unknown or out-of-order record, a
+    //      node or edge index or start outside [0, end], or a wrong edge count */
+    private Lattice readLattice() throws IOException {
+    	String utteranceID = null;
+    	int startIdx = 0;
+    	int endIdx = 0;
+    	int numNodes = 0;
+    	double[] nodeTimes = null;
+    	int[] iCoor = null;
+    	int[] jCoor = null;
+    	int[] labelIds = null;
+    	int[] amScores = null;
+    	int[] lmScores = null;
+    	int z = 0;
+
+    	while (nextToken()) {
+    		if (isToken("edge")) {
+    			require(labelIds != null && z < labelIds.length); // after numEdges, within its count
+    			int i = nextInt();
+    			int j = nextInt();
+    			require(i >= 0 && i <= endIdx && j >= 0 && j <= endIdx);
+    			int label = nextLabel();
+    			int am = nextInt();
+    			int lm = nextInt();
+    			iCoor[z] = i;
+    			jCoor[z] = j;
+    			labelIds[z] = label;
+    			amScores[z] = am;
+    			lmScores[z] = lm;
+    			z++;
+    		} // END if EDGE
+    		else if (isToken("node")) {
+    			require(nodeTimes != null); // after numNodes
+    			int n = nextInt();
+    			require(n >= 0 && n <= endIdx);
+    			nodeTimes[n] = nextDouble();
+    		} // END if NODE
+    		else if (isToken("id")) {
+    			require(nextToken());
+    			utteranceID = new String(this.token, 0, this.tokenLen, Charset.defaultCharset());
+    		} // END if ID
+    		else if (isToken("start")) {
+    			startIdx = nextInt();
+    		} // END if START
+    		else if (isToken("end")) {
+    			require(nodeTimes == null && labelIds == null); // node indexes are checked against it
+    			endIdx = nextInt();
+    			require(endIdx >= 0);
+    		} // END if END
+    		else if (isToken("numNodes")) {
+    			require(nodeTimes == null);
+    			numNodes = nextInt();
+    			nodeTimes = new double[endIdx + 1];
+    		} // END if NUMNODES
+    		else if (isToken("numEdges")) {
+    			require(labelIds == null);
+    			int numEdges = nextInt();
+    			require(numEdges >= 0);
+    			iCoor = new int[numEdges];
+    			jCoor = new int[numEdges];
+    			labelIds = new int[numEdges];
+    			amScores = new int[numEdges];
+    			lmScores = new int[numEdges];
+    		} // END if NUMEDGES
+    		else {
+    			throw error();
+    		} // END else UNKNOWN RECORD
+    	} // END while loop
+
+    	if (labelIds == null || nodeTimes == null || z != labelIds.length) {
+    		throw error();
+    	} // END if INCOMPLETE
+    	require(startIdx >= 0 && startIdx <= endIdx);
+    	return new Lattice(utteranceID, startIdx, endIdx, numNodes, nodeTimes, iCoor, jCoor, labelIds, amScores, lmScores);
+    } // END readLattice()
+
+    /* error
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the exception reported for malformed input */
+    private IOException error() {
+    	return new IOException("Error: Not able to parse file " + this.sourceName);
+    } // END error()
+
+    /* require
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Throws the parse error if ok is false */
+    private void require(boolean ok) throws IOException {
+    	if (!ok) {
+    		throw error();
+    	} // END if
+    } // END require()
+
+    /* fill
+    // Pre-conditions:
+    //    - All buffered bytes have been consumed (pos == limit)
+    // Post-conditions:
+    //    - Refills the buffer; returns false at end of input */
+    private boolean fill() throws IOException {
+    	if (this.eof) {
+    		return false;
+    	} // END if
+    	this.wrapped.clear();
+    	int n = 0;
+    	while (n == 0) {
+    		n = this.channel.read(this.wrapped);
+    	} // END while loop
+    	if (n < 0) {
+    		this.eof = true;
+    		return false;
+    	} // END if END OF INPUT
+    	this.pos = 0;
+    	this.limit = n;
+    	return true;
+    } // END fill()
+
+    /* isWhitespace
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns true for the bytes Scanner treats as token delimiters */
+    private static boolean isWhitespace(byte b) {
+    	return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f'
+    		|| b == 0x0B || (b >= 0x1C && b <= 0x1F);
+    } // END isWhitespace()
+
+    /* nextToken
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - The next whitespace-delimited token is copied into token[0..tokenLen)
+    //    - Returns false if the input is exhausted */
+    private boolean nextToken() throws IOException {
+    	// skipping delimiters
+    	while (true) {
+    		if (this.pos == this.limit && !fill()) {
+    			return false;
+    		} // END if
+    		if (!isWhitespace(this.buf[this.pos])) {
+    			break;
+    		} // END if
+    		this.pos++;
+    	} // END while loop
+
+    	int len = 0;
+    	while (true) {
+    		if (this.pos == this.limit && !fill()) {
+    			break;
+    		} // END if
+    		byte b = this.buf[this.pos];
+    		if (isWhitespace(b)) {
+    			break;
+    		} // END if
+    		if (len == this.token.length) {
+    			this.token = Arrays.copyOf(this.token, 2 * len);
+    		} // END if GROW
+    		this.token[len] = b;
+    		len++;
+    		this.pos++;
+    	} // END while loop
+    	this.tokenLen = len;
+    	return true;
+    } // END nextToken()
+
+    /* isToken
+    // Pre-conditions:
+    //    - keyword is plain ASCII
+    // Post-conditions:
+    //    - Returns true if the current token equals keyword */
+    private boolean isToken(String keyword) {
+    	if (this.tokenLen != keyword.length()) {
+    		return false;
+    	} // END if
+    	for (int k = 0; k < this.tokenLen; k++) {
+    		if (this.token[k] != keyword.charAt(k)) {
+    			return false;
+    		} // END if
+    	} // END for loop
+    	return true;
+    } // END isToken()
+
+    /* nextInt
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Reads the next token as a decimal int, or throws the parse error */
+    private int nextInt() throws IOException {
+    	require(nextToken());
+    	int k = 0;
+    	boolean negative = false;
+    	if (this.token[0] == '-' || this.token[0] == '+') {
+    		negative = this.token[0] == '-';
+    		k++;
+    	} // END if SIGN
+    	require(k < this.tokenLen);
+
+    	long v = 0;
+    	for (; k < this.tokenLen; k++) {
+    		int digit = this.token[k] - '0';
+    		require(digit >= 0 && digit <= 9);
+    		v = 10 * v + digit;
+    		require(v <= 1L + Integer.MAX_VALUE);
+    	} // END for loop
+    	v = negative ? -v : v;
+    	require(v <= Integer.MAX_VALUE);
+    	return (int) v;
+    } // END nextInt()
+
+    /* nextDouble
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Reads the next token as a double, with the same value that
+    //      Double.parseDouble would return, or throws the parse error
+    // Notes:
+    //    - Up to 15 significant digits and a decimal exponent of at most 22
+    //      are converted with a single exact multiply or divide (both operands
+    //      are exact doubles, so the result is correctly rounded); anything
+    //      else goes through Double.parseDouble */
+    private double nextDouble() throws IOException {
+    	require(nextToken());
+    	int k = 0;
+    	boolean negative = false;
+    	if (this.token[0] == '-' || this.token[0] == '+') {
+    		negative = this.token[0] == '-';
+    		k++;
+    	} // END if SIGN
+
+    	long mantissa = 0;
+    	int digits = 0;
+    	int scale = 0;
+    	boolean seenDigit = false;
+    	boolean seenPoint = false;
+    	for (; k < this.tokenLen; k++) {
+    		byte b = this.token[k];
+    		if (b >= '0' && b <= '9') {
+    			seenDigit = true;
+    			if (mantissa == 0 && b == '0') {
+    				// leading zeros are not significant
+    			} // END if
+    			else {
+    				digits++;
+    				if (digits > 15) {
+    					return slowDouble();
+    				} // END if TOO MANY DIGITS
+    				mantissa = 10 * mantissa + (b - '0');
+    			} // END else
+    			if (seenPoint) {
+    				scale++;
+    			} // END if FRACTION DIGIT
+    		} // END if DIGIT
+    		else if (b == '.' && !seenPoint) {
+    			seenPoint = true;
+    		} // END if POINT
+    		else {
+    			return slowDouble(); // exponents, NaN, Infinity, or an error
+    		} // END else
+    	} // END for loop
+    	require(seenDigit);
+
+    	if (scale > 22) {
+    		return slowDouble();
+    	} // END if
+    	double v = mantissa / POW10[scale];
+    	return negative ? -v : v;
+    } // END nextDouble()
+
+    /* slowDouble
+    // Pre-conditions:
+    //    - The current token holds a number the fast path cannot convert
+    // Post-conditions:
+    //    - Returns Double.parseDouble of the token, or throws the parse error */
+    private double slowDouble() throws IOException {
+    	try {
+    		return Double.parseDouble(new String(this.token, 0, this.tokenLen, Charset.defaultCharset()));
+    	} // END try
+    	catch (NumberFormatException e) {
+    		throw error();
+    	} // END catch
+    } // END slowDouble()
+
+    /* nextLabel
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Reads the next token and returns its Vocabulary id; the bytes of a
+    //      label are decoded and interned only at its first occurrence in
+    //      this lattice */
+    private int nextLabel() throws IOException {
+    	require(nextToken());
+    	int h = 0;
+    	for (int k = 0; k < this.tokenLen; k++) {
+    		h = 31 * h + this.token[k];
+    	} // END for loop
+
+    	int mask = this.labelKeys.length - 1;
+    	int slot = (h ^ (h >>> 16)) & mask;
+    	while (this.labelKeys[slot] != null) {
+    		byte[] key = this.labelKeys[slot];
+    		if (key.length == this.tokenLen && Arrays.equals(key, 0, key.length, this.token, 0, this.tokenLen)) {
+    			return this.labelValues[slot];
+    		} // END if FOUND
+    		slot = (slot + 1) & mask;
+    	} // END while loop PROBING
+
+    	byte[] key = Arrays.copyOf(this.token, this.tokenLen);
+    	int label = Vocabulary.intern(new String(key, Charset.defaultCharset()), this.maxVocabulary);
+    	if (label < 0) {
+    		throw new IOException("Error: vocabulary limit of " + this.maxVocabulary + " words reached in " + this.sourceName);
+    	} // END if FULL
+    	this.labelKeys[slot] = key;
+    	this.labelValues[slot] = label;
+    	this.labelCount++;
+    	if (2 * this.labelCount > this.labelKeys.length) {
+    		growLabels();
+    	} // END if GROW
+    	return label;
+    } // END nextLabel()
+
+    /* growLabels
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - The label table is doubled and every entry re-inserted */
+    private void growLabels() {
+    	byte[][] oldKeys = this.labelKeys;
+    	int[] oldValues = this.labelValues;
+    	this.labelKeys = new byte[2 * oldKeys.length][];
+    	this.labelValues = new int[2 * oldKeys.length];
+    	int mask = this.labelKeys.length - 1;
+    	for (int s = 0; s < oldKeys.length; s++) {
+    		if (oldKeys[s] != null) {
+    			int h = 0;
+    			for (byte b : oldKeys[s]) {
+    				h = 31 * h + b;
+    			} // END for loop
+    			int slot = (h ^ (h >>> 16)) & mask;
+    			while (this.labelKeys[slot] != null) {
+    				slot = (slot + 1) & mask;
+    			} // END while loop
+    			this.labelKeys[slot] = oldKeys[s];
+    			this.labelValues[slot] = oldValues[s];
+    		} // END if
+    	} // END for loop
+    } // END growLabels()
+} // END LatticeParser class
@@ -0,0 +1,91 @@
+/*
+ * LmScaleInterval.java
+ *
+ * Defines a new "LmScaleInterval" type: a range of lmScale values on which
+ * one path through a lattice is the best, as produced by
+ * Lattice.sweepLmScale
+ *
+ * Note that the LmScaleInterval type is immutable: after the fields are
+ * initialized in the constructor, they cannot be modified.
+ *
+ */
+
+public class LmScaleInterval {
+    private double lowerScale, upperScale; // The interval [lowerScale, upperScale]
+    private Hypothesis hypothesis;         // The best path on the interval
+    private long amTotal, lmTotal;         // Summed amScore and lmScore of that path
+
+    // Constructor
+
+    // LmScaleInterval
+    // Preconditions:
+    //     - lowerScale <= upperScale
+    //     - hypothesis is the best path on [lowerScale, upperScale], and
+    //       amTotal and lmTotal are its summed acoustic and language scores
+    // Post-conditions
+    //     - The fields are set to the corresponding arguments
+    public LmScaleInterval(double lowerScale, double upperScale, Hypothesis hypothesis,
+                           long amTotal, long lmTotal) {
+        this.lowerScale = lowerScale;
+        this.upperScale = upperScale;
+        this.hypothesis = hypothesis;
+        this.amTotal = amTotal;
+        this.lmTotal = lmTotal;
+    }
+
+    // Accessors
+
+    // getLowerScale
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the smallest lmScale of the interval
+    public double getLowerScale() {
+        return this.lowerScale;
+    }
+
+    // getUpperScale
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the largest lmScale of the interval
+    public double getUpperScale() {
+        return this.upperScale;
+    }
+
+    // getHypothesis
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the best Hypothesis on the interval
+    public Hypothesis getHypothesis() {
+        return this.hypothesis;
+    }
+
+    // getAmTotal
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the sum of the amScores along the best path
+    public long getAmTotal() {
+        return this.amTotal;
+    }
+
+    // getLmTotal
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the sum of the lmScores along the best path
+    public long getLmTotal() {
+        return this.lmTotal;
+    }
+
+    // getPathScore
+    // Preconditions:
+    //     - lmScale lies in the interval
+    // Post-conditions
+    //     - Returns amTotal + lmScale * lmTotal, the untruncated path score
+    public double getPathScore(double lmScale) {
+        return this.amTotal + lmScale * this.lmTotal;
+    }
+}
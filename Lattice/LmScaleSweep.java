@@ -0,0 +1,113 @@
+/*
+ * LmScaleSweep.java
+ *
+ * Finds the lmScale with the lowest average WER over a corpus of lattices,
+ * decoding each lattice only once via Lattice.sweepLmScale instead of
+ * re-running Program2 at many scales
+ *
+ * ----------------------------------------------------------------------------
+ *
+ * usage:
+ *
+ * java LmScaleSweep latticeListFilename minScale maxScale
+ *
+ * where the arguments are
+ *
+ *   latticeListFilename    a plaintext file with one line per lattice, in
+ *                          the same format that Program2 reads
+ *   minScale, maxScale     the (non-negative) range of lmScale to search
+ *
+*/
+
+
+public class LmScaleSweep {
+
+    public static void main(String[] args) {
+
+        // Check and load arguments
+        if( args.length != 3 ) {
+            System.err.println("Error: Wrong number of arguments.");
+            System.exit(2);
+        }
+
+        String latticeListFilename = args[0];
+        double minScale = Double.parseDouble(args[1]);
+        double maxScale = Double.parseDouble(args[2]);
+        if( minScale < 0 || maxScale < minScale ) {
+            System.err.println("Error: Need 0 <= minScale <= maxScale.");
+            System.exit(2);
+        }
+
+        java.util.Scanner input = null;
+        try {
+            input = new java.util.Scanner(new java.io.File(latticeListFilename));
+        } catch( java.io.FileNotFoundException e ) {
+            System.err.println("Error: Unable to open file " + latticeListFilename);
+            System.exit(1);
+        }
+
+        // The corpus WER total is piecewise constant in lmScale: start from
+        // its value at minScale and record how it jumps at each breakpoint
+        double baseWER = 0.0;
+        java.util.TreeMap<Double,Double> jumps = new java.util.TreeMap<Double,Double>();
+        int numFiles = 0;
+        while( input.hasNext() ) {
+            numFiles++;
+            String latticeFilename = input.next();
+            String refFilename = input.next();
+
+            Lattice lattice = null;
+            java.util.ArrayList<LmScaleInterval> intervals = null;
+            try {
+                lattice = LatticeParser.parse(latticeFilename);
+                intervals = lattice.sweepLmScale(minScale, maxScale);
+            } catch( java.io.IOException e ) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+            } catch( IllegalStateException e ) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+
+            double previous = 0.0;
+            for( int k=0; k<intervals.size(); k++ ) {
+                double WER = intervals.get(k).getHypothesis().computeWER(refFilename);
+                if( k == 0 ) {
+                    baseWER += WER;
+                } else {
+                    double at = intervals.get(k).getLowerScale();
+                    Double jump = jumps.get(at);
+                    jumps.put(at, (jump == null ? 0.0 : jump) + WER - previous);
+                }
+                previous = WER;
+            }
+            System.out.println("Utterance " + lattice.getUtteranceID() + ": " + intervals.size() + " lmScale intervals");
+        }
+
+        if( numFiles == 0 ) {
+            System.err.println("Error: Empty lattice list.");
+            System.exit(2);
+        }
+
+        // Walk the breakpoints, keeping the first range with the lowest total
+        double bestWER = baseWER;
+        double bestLower = minScale;
+        double bestUpper = jumps.isEmpty() ? maxScale : jumps.firstKey();
+        double totalWER = baseWER;
+        for( java.util.Map.Entry<Double,Double> jump : jumps.entrySet() ) {
+            totalWER += jump.getValue();
+            Double upper = jumps.higherKey(jump.getKey());
+            if( totalWER < bestWER - 1e-12 ) {
+                bestWER = totalWER;
+                bestLower = jump.getKey();
+                bestUpper = upper == null ? maxScale : upper;
+            }
+        }
+
+        System.out.println("Best lmScale = " + (bestLower + bestUpper)/2
+                           + " (any value in [" + bestLower + ", " + bestUpper + "])");
+        System.out.println("Avg WER = " + bestWER/numFiles);
+
+        return;
+    }
+}
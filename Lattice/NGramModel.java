@@ -0,0 +1,522 @@
+/*
+ * NGramModel.java
+ *
+ * A backoff n-gram language model, loaded from an ARPA file, and lattice
+ * rescoring with it: the lmScore fixed in each lattice edge is replaced by
+ * the model's score for the words on the edge, given the words before it.
+ *
+ * Every n-gram is an entry with a log10 probability, a log10 backoff
+ * weight, its order and its "suffix" (the entry of its longest proper
+ * suffix that exists in the model).  The entries form a trie: the entry of
+ * w1 .. wn is the child of the entry of w1 .. w(n-1) along wn, and entry 0
+ * is the root (the empty context).  Children are found in one hash table
+ * keyed by (parent entry, Vocabulary id of the word) packed into a long,
+ * so the whole model lives in primitive arrays.
+ *
+ * A language model state is the entry of the (longest relevant) recent
+ * history.  Scoring a word walks from the state to shorter histories,
+ * adding backoff weights, until the n-gram is found.  Results are cached
+ * per thread by (state, word), since a lattice asks for the same few
+ * words in the same few states over and over.
+ *
+ * ----------------------------------------------------------------------------
+ *
+ * usage:
+ *
+ * java NGramModel arpaFilename latticeListFilename lmScale lmScoreUnit
+ *
+ * rescores every lattice of a Program2-style list and prints each
+ * utterance's hypothesis before and after rescoring, and its WER
+ *
+*/
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public final class NGramModel {
+    public static final String SENTENCE_START = "<s>";
+    public static final String SENTENCE_END = "</s>";
+    public static final String UNKNOWN = "<unk>";
+    private static final float UNKNOWN_LOG10_PROB = -99;  // ARPA's "impossible", if there is no <unk>
+    private static final long EMPTY = -1L;
+
+    private final int order;             // Highest n-gram order in the model
+    private float[] logProb;             // Entry -> log10 probability
+    private float[] backoff;             // Entry -> log10 backoff weight
+    private int[] entryOrder;            // Entry -> n (0 for the root)
+    private int[] suffix;                // Entry -> entry of its longest existing proper suffix
+    private int entries;
+
+    private long[] keys;                 // Hash table: (parent << 32 | word) -> child entry
+    private int[] children;
+    private int mask;
+
+    private final ThreadLocal<Cache> cache = new ThreadLocal<Cache>() {
+    	protected Cache initialValue() {
+    		return new Cache();
+    	} // END initialValue()
+    };
+
+    /* NGramModel
+    // Pre-conditions:
+    //    - counts[n] is the number of n-grams (counts[0] is unused)
+    // Post-conditions:
+    //    - An empty model with room for the given counts and only the root
+    //      entry is created */
+    private NGramModel(int[] counts) {
+    	this.order = counts.length - 1;
+    	int total = 1;
+    	for (int n = 1; n < counts.length; n++) {
+    		total += counts[n];
+    	} // END for loop
+    	this.logProb = new float[total];
+    	this.backoff = new float[total];
+    	this.entryOrder = new int[total];
+    	this.suffix = new int[total];
+    	this.suffix[0] = -1;
+    	this.entries = 1;
+
+    	int capacity = Integer.highestOneBit(Math.max(2 * total, 16) - 1) << 1;
+    	this.keys = new long[capacity];
+    	Arrays.fill(this.keys, EMPTY);
+    	this.children = new int[capacity];
+    	this.mask = capacity - 1;
+    } // END NGramModel() CONSTRUCTOR
+
+    /* load
+    // Pre-conditions:
+    //    - arpaFilename names a language model in ARPA format
+    // Post-conditions:
+    //    - Returns the model; its words are interned in the Vocabulary
+    //    - Throws java.io.FileNotFoundException if the file cannot be opened
+    //      and an IOException "Error: Not able to parse file ..." if it is
+    //      not valid ARPA (including an n-gram whose prefix is missing) */
+    public static NGramModel load(String arpaFilename) throws IOException {
+    	BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(arpaFilename),
+    	                                                             StandardCharsets.UTF_8), 1 << 16);
+    	try {
+    		return read(in);
+    	} // END try
+    	catch (RuntimeException e) {
+    		throw new IOException("Error: Not able to parse file " + arpaFilename);
+    	} // END catch
+    	finally {
+    		in.close();
+    	} // END finally
+    } // END load()
+
+    /* read
+    // Pre-conditions:
+    //    - in is positioned at the start of an ARPA file
+    // Post-conditions:
+    //    - Returns the model; malformed input raises a RuntimeException */
+    private static NGramModel read(BufferedReader in) throws IOException {
+    	String line = in.readLine();
+    	while (!line.trim().equals("\\data\\")) {
+    		line = in.readLine();
+    	} // END while loop HEADER
+
+    	// "ngram n=count" lines, up to the first section
+    	int[] counts = new int[1];
+    	line = in.readLine();
+    	while (!line.trim().startsWith("\\")) {
+    		line = line.trim();
+    		if (line.startsWith("ngram")) {
+    			String[] nc = line.substring(5).trim().split("=");
+    			int n = Integer.parseInt(nc[0].trim());
+    			if (n >= counts.length) {
+    				counts = Arrays.copyOf(counts, n + 1);
+    			} // END if
+    			counts[n] = Integer.parseInt(nc[1].trim());
+    		} // END if
+    		line = in.readLine();
+    	} // END while loop COUNTS
+    	NGramModel model = new NGramModel(counts);
+
+    	// one "\n-grams:" section per order, then "\end\"
+    	int[] words = new int[model.order];
+    	while (!line.trim().equals("\\end\\")) {
+    		int n = Integer.parseInt(line.trim().substring(1, line.trim().indexOf('-')));
+    		line = in.readLine();
+    		while (!line.trim().startsWith("\\")) {
+    			String[] f = line.trim().split("\\s+");
+    			if (f.length >= n + 1) {
+    				for (int k = 0; k < n; k++) {
+    					words[k] = Vocabulary.intern(f[k + 1]);
+    				} // END for loop
+    				model.add(words, n, Float.parseFloat(f[0]), f.length > n + 1 ? Float.parseFloat(f[n + 1]) : 0f);
+    			} // END if N-GRAM LINE
+    			line = in.readLine();
+    		} // END while loop N-GRAMS
+    	} // END while loop SECTIONS
+
+    	model.linkSuffixes();
+    	return model;
+    } // END read()
+
+    /* add
+    // Pre-conditions:
+    //    - words[0 .. n-1] is an n-gram whose prefix is already in the model
+    // Post-conditions:
+    //    - The n-gram is added as a child of its prefix's entry */
+    private void add(int[] words, int n, float logProb, float backoff) {
+    	int parent = 0;
+    	for (int k = 0; k < n - 1; k++) {
+    		parent = child(parent, words[k]);
+    		if (parent < 0) {
+    			throw new IllegalArgumentException("n-gram prefix missing");
+    		} // END if
+    	} // END for loop
+    	int e = this.entries;
+    	if (e == this.logProb.length) {
+    		throw new IllegalArgumentException("more n-grams than declared");
+    	} // END if
+    	this.entries++;
+    	this.logProb[e] = logProb;
+    	this.backoff[e] = backoff;
+    	this.entryOrder[e] = n;
+
+    	long key = pack(parent, words[n - 1]);
+    	int slot = slot(key);
+    	while (this.keys[slot] != EMPTY) {
+    		if (this.keys[slot] == key) {
+    			throw new IllegalArgumentException("duplicate n-gram");
+    		} // END if
+    		slot = (slot + 1) & this.mask;
+    	} // END while loop PROBING
+    	this.keys[slot] = key;
+    	this.children[slot] = e;
+    } // END add()
+
+    /* linkSuffixes
+    // Pre-conditions:
+    //    - Every n-gram has been added
+    // Post-conditions:
+    //    - suffix[e] is the entry of the longest proper suffix of e's words
+    //      that is in the model (the root if there is none)
+    // Notes:
+    //    - Parents are entered before their children, so walking the entries
+    //      in order can use the parent's suffix: the suffix of (h w) is found
+    //      by following suffix links from h until one has a child along w */
+    private void linkSuffixes() {
+    	int[] parent = new int[this.entries];
+    	int[] word = new int[this.entries];
+    	for (int slot = 0; slot < this.keys.length; slot++) {
+    		if (this.keys[slot] != EMPTY) {
+    			parent[this.children[slot]] = (int) (this.keys[slot] >>> 32);
+    			word[this.children[slot]] = (int) this.keys[slot];
+    		} // END if
+    	} // END for loop
+    	for (int e = 1; e < this.entries; e++) {
+    		int s = this.suffix[parent[e]];
+    		int found = -1;
+    		while (s >= 0 && found < 0) {
+    			found = child(s, word[e]);
+    			s = this.suffix[s];
+    		} // END while loop
+    		this.suffix[e] = found < 0 ? 0 : found;
+    	} // END for loop
+    } // END linkSuffixes()
+
+    /* pack / slot / child
+    // Pre-conditions:
+    //    - parent is an entry, word a Vocabulary id
+    // Post-conditions:
+    //    - pack returns the hash key; slot its home slot; child the entry of
+    //      parent's n-gram extended by word, or -1 if it is not in the model */
+    private static long pack(int parent, int word) {
+    	return ((long) parent << 32) | (word & 0xFFFFFFFFL);
+    } // END pack()
+
+    private int slot(long key) {
+    	key ^= key >>> 33;
+    	key *= 0xff51afd7ed558ccdL;
+    	key ^= key >>> 33;
+    	return (int) key & this.mask;
+    } // END slot()
+
+    private int child(int parent, int word) {
+    	long key = pack(parent, word);
+    	int slot = slot(key);
+    	while (this.keys[slot] != EMPTY) {
+    		if (this.keys[slot] == key) {
+    			return this.children[slot];
+    		} // END if
+    		slot = (slot + 1) & this.mask;
+    	} // END while loop PROBING
+    	return -1;
+    } // END child()
+
+    /* getOrder / getNumNGrams
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Return the highest n-gram order and the number of n-grams */
+    public int getOrder() {
+    	return this.order;
+    } // END getOrder()
+
+    public int getNumNGrams() {
+    	return this.entries - 1;
+    } // END getNumNGrams()
+
+    /* getStartState
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the state of an empty history: the entry of <s> if the
+    //      model has it, else the root */
+    public int getStartState() {
+    	int start = Vocabulary.lookup(SENTENCE_START);
+    	int e = start < 0 ? -1 : child(0, start);
+    	return e < 0 ? 0 : e;
+    } // END getStartState()
+
+    /* score
+    // Pre-conditions:
+    //    - state was returned by getStartState or nextState; word is a
+    //      Vocabulary id
+    // Post-conditions:
+    //    - Returns the log10 probability of word following state's history,
+    //      backing off as needed (<unk>'s probability for a word the model
+    //      does not know, or -99 if it has no <unk>) */
+    public float score(int state, int word) {
+    	Cache c = this.cache.get();
+    	c.lookup(this, state, word);
+    	return c.logProb;
+    } // END score()
+
+    /* nextState
+    // Pre-conditions:
+    //    - As for score
+    // Post-conditions:
+    //    - Returns the state after word follows state: the entry of the
+    //      longest suffix of the history plus word that the model can extend */
+    public int nextState(int state, int word) {
+    	Cache c = this.cache.get();
+    	c.lookup(this, state, word);
+    	return c.next;
+    } // END nextState()
+
+    /* compute
+    // Pre-conditions:
+    //    - As for score
+    // Post-conditions:
+    //    - c.logProb and c.next are set for (state, word), without the cache */
+    private void compute(int state, int word, Cache c) {
+    	float bo = 0;
+    	int s = state;
+    	while (true) {
+    		int e = child(s, word);
+    		if (e >= 0) {
+    			c.logProb = bo + this.logProb[e];
+    			c.next = this.entryOrder[e] == this.order ? this.suffix[e] : e;
+    			return;
+    		} // END if FOUND
+    		if (s == 0) {
+    			int unk = Vocabulary.lookup(UNKNOWN);
+    			int u = unk < 0 ? -1 : child(0, unk);
+    			c.logProb = bo + (u < 0 ? UNKNOWN_LOG10_PROB : this.logProb[u]);
+    			c.next = 0;
+    			return;
+    		} // END if UNKNOWN WORD
+    		bo += this.backoff[s];
+    		s = this.suffix[s];
+    	} // END while loop BACKING OFF
+    } // END compute()
+
+    /* Cache - direct-mapped (state, word) -> (logProb, next state) results */
+    private static final class Cache {
+    	private static final int SIZE = 1 << 14;
+    	final long[] keys = new long[SIZE];
+    	final float[] logProbs = new float[SIZE];
+    	final int[] nexts = new int[SIZE];
+    	float logProb;      // Result of the latest lookup
+    	int next;
+
+    	Cache() {
+    		Arrays.fill(this.keys, EMPTY);
+    	} // END Cache() CONSTRUCTOR
+
+    	void lookup(NGramModel model, int state, int word) {
+    		long key = pack(state, word);
+    		int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 50);
+    		if (this.keys[slot] == key) {
+    			this.logProb = this.logProbs[slot];
+    			this.next = this.nexts[slot];
+    			return;
+    		} // END if HIT
+    		model.compute(state, word, this);
+    		this.keys[slot] = key;
+    		this.logProbs[slot] = this.logProb;
+    		this.nexts[slot] = this.next;
+    	} // END lookup()
+    } // END Cache class
+
+    /* rescore
+    // Pre-conditions:
+    //    - lattice is a valid Lattice
+    //    - lmScoreUnit is the lmScore for one unit of -log10 probability
+    // Post-conditions:
+    //    - Returns a new lattice whose paths spell the same words as lattice's,
+    //      with each edge's lmScore replaced by lmScoreUnit times the model's
+    //      -log10 probability of the words the edge adds to a hypothesis
+    //      (rounded), given the words before it; edges into the end node also
+    //      pay for </s>.  Edges that add no words (-silence-) get lmScore 0
+    //    - Nodes are split by language model state, so the new lattice has a
+    //      node for every (node, state) pair that some path reaches, numbered
+    //      in topological order with the end node last
+    // Notes:
+    //    - Decode the result to rescore: rescore(lattice, ...).decode(lmScale)
+    //    - With an order-n model a node can be reached in as many states as
+    //      there are distinct (n-1)-word histories into it, so prune first
+    //      for large lattices and high orders */
+    public Lattice rescore(Lattice lattice, double lmScoreUnit) {
+    	int[] sorted = lattice.topologicalSort();
+    	int end = lattice.getEndIdx();
+    	int endWord = Vocabulary.intern(SENTENCE_END);
+
+    	// the states reaching each node; (v, statesAt[v][k]) becomes node firstId[v] + k
+    	int[][] statesAt = new int[end + 1][];
+    	int[] stateCount = new int[end + 1];
+    	int[] firstId = new int[end + 1];
+    	addState(statesAt, stateCount, lattice.getStartIdx(), getStartState());
+
+    	GrowableEdges out = new GrowableEdges();
+    	int nodes = 0;
+    	double[] times = new double[16];
+    	for (int u : sorted) {
+    		if (u == end) {
+    			continue;
+    		} // END if END NODE IS NUMBERED LAST
+    		firstId[u] = nodes;
+    		for (int k = 0; k < stateCount[u]; k++) {
+    			int state = statesAt[u][k];
+    			if (nodes == times.length) {
+    				times = Arrays.copyOf(times, 2 * nodes);
+    			} // END if GROW
+    			times[nodes] = lattice.getNodeTime(u);
+    			int from = nodes;
+    			nodes++;
+
+    			for (int e = lattice.getFirstOutEdge(u); e < lattice.getEndOutEdge(u); e++) {
+    				int v = lattice.getEdgeTarget(e);
+    				int label = lattice.getEdgeLabelId(e);
+    				double logProb = 0;
+    				int s = state;
+    				for (int word : Vocabulary.hypothesisWords(label)) {
+    					logProb += score(s, word);
+    					s = nextState(s, word);
+    				} // END for loop WORDS
+    				if (v == end) {
+    					logProb += score(s, endWord);
+    					s = 0;  // one end node for every history
+    				} // END if INTO END
+    				// v is numbered later (it follows u in the order), so keep
+    				// its state index for now
+    				out.add(from, v, addState(statesAt, stateCount, v, s), label, lattice.getEdgeAmScore(e),
+    				        (int) Math.round(-logProb * lmScoreUnit));
+    			} // END for loop OUT-EDGES
+    		} // END for loop STATES
+    	} // END for loop NODES
+
+    	if (nodes == times.length) {
+    		times = Arrays.copyOf(times, nodes + 1);
+    	} // END if GROW
+    	times[nodes] = lattice.getNodeTime(end);
+    	firstId[end] = nodes;
+    	nodes++;
+
+    	int[] jCoor = new int[out.count];
+    	for (int k = 0; k < out.count; k++) {
+    		jCoor[k] = firstId[out.target[k]] + out.targetState[k];
+    	} // END for loop
+    	return new Lattice(lattice.getUtteranceID(), 0, nodes - 1, nodes, Arrays.copyOf(times, nodes),
+    	                   Arrays.copyOf(out.source, out.count), jCoor, Arrays.copyOf(out.label, out.count),
+    	                   Arrays.copyOf(out.am, out.count), Arrays.copyOf(out.lm, out.count));
+    } // END rescore()
+
+    /* addState
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - state is among the states of node v (added once); returns its index */
+    private static int addState(int[][] statesAt, int[] stateCount, int v, int state) {
+    	int[] states = statesAt[v];
+    	for (int k = 0; k < stateCount[v]; k++) {
+    		if (states[k] == state) {
+    			return k;
+    		} // END if KNOWN
+    	} // END for loop
+    	if (states == null) {
+    		states = new int[2];
+    	} // END if
+    	else if (stateCount[v] == states.length) {
+    		states = Arrays.copyOf(states, 2 * states.length);
+    	} // END if GROW
+    	states[stateCount[v]] = state;
+    	statesAt[v] = states;
+    	return stateCount[v]++;
+    } // END addState()
+
+    /* GrowableEdges - the edges of a lattice under construction */
+    private static final class GrowableEdges {
+    	int[] source = new int[64], target = new int[64], targetState = new int[64];
+    	int[] label = new int[64], am = new int[64], lm = new int[64];
+    	int count;
+
+    	void add(int from, int to, int toState, int labelId, int amScore, int lmScore) {
+    		if (this.count == this.source.length) {
+    			int capacity = 2 * this.count;
+    			this.source = Arrays.copyOf(this.source, capacity);
+    			this.target = Arrays.copyOf(this.target, capacity);
+    			this.targetState = Arrays.copyOf(this.targetState, capacity);
+    			this.label = Arrays.copyOf(this.label, capacity);
+    			this.am = Arrays.copyOf(this.am, capacity);
+    			this.lm = Arrays.copyOf(this.lm, capacity);
+    		} // END if GROW
+    		this.source[this.count] = from;
+    		this.target[this.count] = to;
+    		this.targetState[this.count] = toState;
+    		this.label[this.count] = labelId;
+    		this.am[this.count] = amScore;
+    		this.lm[this.count] = lmScore;
+    		this.count++;
+    	} // END add()
+    } // END GrowableEdges class
+
+    public static void main(String[] args) {
+        if( args.length != 4 ) {
+            System.err.println("Error: Wrong number of arguments.");
+            System.exit(2);
+        }
+        double lmScale = Double.parseDouble(args[2]);
+        double lmScoreUnit = Double.parseDouble(args[3]);
+        try {
+            NGramModel model = load(args[0]);
+            java.util.Scanner input = new java.util.Scanner(new java.io.File(args[1]));
+            while( input.hasNext() ) {
+                String latticeFilename = input.next();
+                String refFilename = input.next();
+                Lattice lattice = latticeFilename.endsWith(LatticeBinary.EXTENSION)
+                                  ? LatticeBinary.load(latticeFilename) : LatticeParser.parse(latticeFilename);
+                Hypothesis before = lattice.decode(lmScale);
+                Hypothesis after = model.rescore(lattice, lmScoreUnit).decode(lmScale);
+                System.out.println("Utterance " + lattice.getUtteranceID());
+                System.out.println("Lattice:   " + before.getHypothesisString()
+                                   + "(WER " + new java.text.DecimalFormat("0.000").format(before.computeWER(refFilename)) + ")");
+                System.out.println("Rescored:  " + after.getHypothesisString()
+                                   + "(WER " + new java.text.DecimalFormat("0.000").format(after.computeWER(refFilename)) + ")");
+            }
+        } catch( java.io.IOException e ) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        } catch( IllegalStateException e ) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+} // END NGramModel class
@@ -0,0 +1,403 @@
+/*
+ * OnlineDecoder.java
+ *
+ * Builds a lattice from records that arrive over time (e.g. from a live
+ * recognizer) and keeps its Viterbi search up to date as they do, so the
+ * best hypothesis so far, and the part of it that can no longer change,
+ * are available at any moment instead of only after the whole lattice.
+ *
+ * Records are the lines of a lattice file ("id", "start", "end", "node",
+ * "edge"; "numNodes" and "numEdges" are accepted and ignored, since sizes
+ * are not known in advance).  Edges must go forward (source < target) and
+ * arrive grouped by ascending source node, which is how recognizers emit
+ * them and how Lattice.toString writes them.  Then when an edge out of node
+ * s arrives, every edge into s has already been seen, so s's distance and
+ * backpointer are final and each edge is relaxed exactly once, in O(1).
+ * This is the order in which Lattice.decode visits the edges of a
+ * forward lattice, and ties are broken the same way, so finish() returns
+ * exactly decode's Hypothesis.
+ *
+ * Nodes below the current source ("closed" nodes) get no more edges, so
+ * every complete path will leave them through the backpointer path of
+ * some reached node at or beyond the source.  The committed prefix is the
+ * part shared by all of those backpointer paths: it is the start of the
+ * final best path, whatever arrives later.
+ *
+ */
+import java.util.Arrays;
+
+public final class OnlineDecoder {
+    private final double lmScale;     // Weight of lmScore, as for Lattice.decode
+
+    private String utteranceID;       // As in the lattice file, when seen
+    private int startIdx = -1;        // Start node (-1 until the "start" record)
+    private int endIdx = -1;          // End node (-1 until the "end" record)
+    private int maxNode = -1;         // Largest node index seen in any record
+
+    private double[] nodeTimes = new double[64];  // NaN until the node record arrives
+    private double[] distance = new double[64];   // Best path score to each node so far
+    private int[] backpointer = new int[64];      // Edge id of the best incoming edge, -1 if none
+    private int[] depth = new int[64];            // Number of edges on that best path
+
+    private int[] iCoor = new int[256];           // The edges, in arrival order
+    private int[] jCoor = new int[256];
+    private int[] labelIds = new int[256];
+    private int[] amScores = new int[256];
+    private int[] lmScores = new int[256];
+    private int numEdges;
+    private int frontier;             // Source of the latest edge; nodes below it are closed
+
+    /* OnlineDecoder
+    // Pre-conditions:
+    //    - lmScale specifies how much lmScore should be weighted, as for decode
+    // Post-conditions:
+    //    - An empty decoder is created, waiting for records */
+    public OnlineDecoder(double lmScale) {
+    	this.lmScale = lmScale;
+    	Arrays.fill(this.nodeTimes, java.lang.Double.NaN);
+    	Arrays.fill(this.distance, java.lang.Double.POSITIVE_INFINITY);
+    	Arrays.fill(this.backpointer, -1);
+    } // END OnlineDecoder() CONSTRUCTOR
+
+    /* addRecord
+    // Pre-conditions:
+    //    - line is one line of a lattice file
+    // Post-conditions:
+    //    - The record is applied as by the corresponding add/set method; blank
+    //      lines are ignored
+    //    - Throws IllegalArgumentException if the line cannot be parsed */
+    public void addRecord(String line) {
+    	String[] f = line.trim().split("\\s+");
+    	try {
+    		switch (f[0]) {
+    			case "":
+    				return;
+    			case "id":
+    				check(f.length == 2, line);
+    				setUtteranceID(f[1]);
+    				return;
+    			case "start":
+    				check(f.length == 2, line);
+    				setStart(Integer.parseInt(f[1]));
+    				return;
+    			case "end":
+    				check(f.length == 2, line);
+    				setEnd(Integer.parseInt(f[1]));
+    				return;
+    			case "numNodes":
+    			case "numEdges":
+    				check(f.length == 2, line);
+    				Integer.parseInt(f[1]);
+    				return;
+    			case "node":
+    				check(f.length == 3, line);
+    				addNode(Integer.parseInt(f[1]), Double.parseDouble(f[2]));
+    				return;
+    			case "edge":
+    				check(f.length == 6, line);
+    				addEdge(Integer.parseInt(f[1]), Integer.parseInt(f[2]), f[3],
+    				        Integer.parseInt(f[4]), Integer.parseInt(f[5]));
+    				return;
+    			default:
+    				check(false, line);
+    		} // END switch statement
+    	} // END try
+    	catch (NumberFormatException e) {
+    		check(false, line);
+    	} // END catch
+    } // END addRecord()
+
+    /* check
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Throws IllegalArgumentException naming line unless ok */
+    private static void check(boolean ok, String line) {
+    	if (!ok) {
+    		throw new IllegalArgumentException("Error: Not able to parse record: " + line);
+    	} // END if
+    } // END check()
+
+    /* setUtteranceID / setStart / setEnd
+    // Pre-conditions:
+    //    - start and end are non-negative; start is set before any edge
+    // Post-conditions:
+    //    - The corresponding field is set; the start node's distance is 0 */
+    public void setUtteranceID(String utteranceID) {
+    	this.utteranceID = utteranceID;
+    } // END setUtteranceID()
+
+    public void setStart(int start) {
+    	if (start < 0 || this.numEdges > 0) {
+    		throw new IllegalStateException("Error: start must be set once, before any edge");
+    	} // END if
+    	ensureNode(start);
+    	if (this.startIdx >= 0) {
+    		this.distance[this.startIdx] = java.lang.Double.POSITIVE_INFINITY;
+    	} // END if RESET
+    	this.startIdx = start;
+    	this.frontier = start;
+    	this.distance[start] = 0;
+    } // END setStart()
+
+    public void setEnd(int end) {
+    	if (end < 0) {
+    		throw new IllegalArgumentException("Error: negative end node");
+    	} // END if
+    	ensureNode(end);
+    	this.endIdx = end;
+    } // END setEnd()
+
+    /* addNode
+    // Pre-conditions:
+    //    - n >= 0
+    // Post-conditions:
+    //    - Node n has the given time */
+    public void addNode(int n, double time) {
+    	if (n < 0) {
+    		throw new IllegalArgumentException("Error: negative node index " + n);
+    	} // END if
+    	ensureNode(n);
+    	this.nodeTimes[n] = time;
+    } // END addNode()
+
+    /* addEdge
+    // Pre-conditions:
+    //    - setStart has been called
+    //    - 0 <= i < j, and i is at least the source of every earlier edge
+    // Post-conditions:
+    //    - The edge is stored and relaxed: if it gives j a better path, j's
+    //      distance, backpointer and depth are updated
+    //    - Throws IllegalStateException if the edge breaks the arrival order
+    // Notes:
+    //    - Strict improvement only, so among equally good paths the first
+    //      edge to arrive wins, as in decode */
+    public void addEdge(int i, int j, String label, int amScore, int lmScore) {
+    	if (this.startIdx < 0) {
+    		throw new IllegalStateException("Error: edge before start record");
+    	} // END if
+    	if (i < 0 || j <= i) {
+    		throw new IllegalStateException("Error: edge " + i + " -> " + j + " does not go forward");
+    	} // END if
+    	if (i < this.frontier) {
+    		throw new IllegalStateException("Error: edge " + i + " -> " + j + " arrived after edges out of node " + this.frontier);
+    	} // END if
+    	ensureNode(j);
+    	if (this.numEdges == this.iCoor.length) {
+    		int capacity = 2 * this.numEdges;
+    		this.iCoor = Arrays.copyOf(this.iCoor, capacity);
+    		this.jCoor = Arrays.copyOf(this.jCoor, capacity);
+    		this.labelIds = Arrays.copyOf(this.labelIds, capacity);
+    		this.amScores = Arrays.copyOf(this.amScores, capacity);
+    		this.lmScores = Arrays.copyOf(this.lmScores, capacity);
+    	} // END if GROW
+    	int e = this.numEdges;
+    	this.iCoor[e] = i;
+    	this.jCoor[e] = j;
+    	this.labelIds[e] = Vocabulary.intern(label);
+    	this.amScores[e] = amScore;
+    	this.lmScores[e] = lmScore;
+    	this.numEdges++;
+    	this.frontier = i;
+
+    	double candidate = this.distance[i] + combinedScore(e);
+    	if (candidate < this.distance[j]) {
+    		this.distance[j] = candidate;
+    		this.backpointer[j] = e;
+    		this.depth[j] = this.depth[i] + 1;
+    	} // END if SHORTER PATH
+    } // END addEdge()
+
+    /* ensureNode
+    // Pre-conditions:
+    //    - n >= 0
+    // Post-conditions:
+    //    - The node arrays cover n, and maxNode >= n */
+    private void ensureNode(int n) {
+    	if (n >= this.distance.length) {
+    		int old = this.distance.length;
+    		int capacity = Math.max(2 * old, n + 1);
+    		this.nodeTimes = Arrays.copyOf(this.nodeTimes, capacity);
+    		this.distance = Arrays.copyOf(this.distance, capacity);
+    		this.backpointer = Arrays.copyOf(this.backpointer, capacity);
+    		this.depth = Arrays.copyOf(this.depth, capacity);
+    		Arrays.fill(this.nodeTimes, old, capacity, java.lang.Double.NaN);
+    		Arrays.fill(this.distance, old, capacity, java.lang.Double.POSITIVE_INFINITY);
+    		Arrays.fill(this.backpointer, old, capacity, -1);
+    	} // END if GROW
+    	this.maxNode = Math.max(this.maxNode, n);
+    } // END ensureNode()
+
+    /* combinedScore
+    // Pre-conditions:
+    //    - 0 <= e < numEdges
+    // Post-conditions:
+    //    - Returns edge e's weight, computed exactly as Edge.getCombinedScore */
+    private int combinedScore(int e) {
+    	return this.amScores[e] + (int)(this.lmScale * this.lmScores[e]);
+    } // END combinedScore()
+
+    /* getNumEdges
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of edges received so far */
+    public int getNumEdges() {
+    	return this.numEdges;
+    } // END getNumEdges()
+
+    /* getPartialHypothesis
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the best path to the furthest point reached so far: among
+    //      the reached nodes at or beyond the frontier, the one with the latest
+    //      time (nodes without a time yet count as earliest), then the lowest
+    //      distance, then the lowest index
+    //    - Once the end node is reached and no edge can improve it (every
+    //      edge into it has a source below the frontier, or the frontier is
+    //      past it), this is decode's Hypothesis */
+    public Hypothesis getPartialHypothesis() {
+    	int best = -1;
+    	for (int n = this.frontier; n <= this.maxNode; n++) {
+    		if (this.distance[n] == java.lang.Double.POSITIVE_INFINITY) {
+    			continue;
+    		} // END if UNREACHED
+    		if (best < 0 || later(n, best)) {
+    			best = n;
+    		} // END if
+    	} // END for loop
+    	if (best < 0) {
+    		return new Hypothesis();
+    	} // END if NOTHING REACHED
+    	return traceback(best, this.depth[best]);
+    } // END getPartialHypothesis()
+
+    /* later
+    // Pre-conditions:
+    //    - a and b are reached nodes
+    // Post-conditions:
+    //    - Returns true if a is preferred to b as the end of the partial
+    //      hypothesis: later time, then lower distance, then lower index */
+    private boolean later(int a, int b) {
+    	double ta = this.nodeTimes[a];
+    	double tb = this.nodeTimes[b];
+    	if (ta != tb && !(java.lang.Double.isNaN(ta) && java.lang.Double.isNaN(tb))) {
+    		return java.lang.Double.isNaN(tb) || ta > tb;
+    	} // END if DIFFERENT TIMES
+    	if (this.distance[a] != this.distance[b]) {
+    		return this.distance[a] < this.distance[b];
+    	} // END if
+    	return a < b;
+    } // END later()
+
+    /* getCommittedPrefix
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the words (and score) every complete path through the
+    //      records so far must begin with: the common part of the best paths
+    //      to all reached nodes at or beyond the frontier
+    //    - Each later result extends the earlier ones, and finish() extends
+    //      them all
+    // Notes:
+    //    - The prefix ends at the lowest common ancestor of those nodes in the
+    //      backpointer tree, found by climbing from each with the depths */
+    public Hypothesis getCommittedPrefix() {
+    	int ancestor = -1;
+    	for (int n = this.frontier; n <= this.maxNode; n++) {
+    		if (this.distance[n] == java.lang.Double.POSITIVE_INFINITY) {
+    			continue;
+    		} // END if UNREACHED
+    		ancestor = ancestor < 0 ? n : commonAncestor(ancestor, n);
+    	} // END for loop
+    	if (ancestor < 0) {
+    		return new Hypothesis();
+    	} // END if NOTHING REACHED
+    	return traceback(ancestor, this.depth[ancestor]);
+    } // END getCommittedPrefix()
+
+    /* commonAncestor
+    // Pre-conditions:
+    //    - a and b are reached nodes
+    // Post-conditions:
+    //    - Returns the deepest node on both of their best paths */
+    private int commonAncestor(int a, int b) {
+    	while (this.depth[a] > this.depth[b]) {
+    		a = this.iCoor[this.backpointer[a]];
+    	} // END while loop
+    	while (this.depth[b] > this.depth[a]) {
+    		b = this.iCoor[this.backpointer[b]];
+    	} // END while loop
+    	while (a != b) {
+    		a = this.iCoor[this.backpointer[a]];
+    		b = this.iCoor[this.backpointer[b]];
+    	} // END while loop
+    	return a;
+    } // END commonAncestor()
+
+    /* finish
+    // Pre-conditions:
+    //    - Every record has been added, including "end"
+    // Post-conditions:
+    //    - Returns the best path from start to end, the same Hypothesis that
+    //      Lattice.decode(lmScale) gives for the complete lattice
+    //    - Throws IllegalStateException if there is no end node or it cannot
+    //      be reached, as decode does */
+    public Hypothesis finish() {
+    	if (this.endIdx < 0) {
+    		throw new IllegalStateException("Error: no end record in lattice " + this.utteranceID);
+    	} // END if
+    	if (this.distance[this.endIdx] == java.lang.Double.POSITIVE_INFINITY) {
+    		throw new IllegalStateException("Error: end node unreachable in lattice " + this.utteranceID);
+    	} // END if NO PATH
+    	return traceback(this.endIdx, this.depth[this.endIdx]);
+    } // END finish()
+
+    /* traceback
+    // Pre-conditions:
+    //    - n is reached and length == depth[n]
+    // Post-conditions:
+    //    - Returns the Hypothesis of the best path from start to n */
+    private Hypothesis traceback(int n, int length) {
+    	int[] path = new int[length];
+    	for (int k = length - 1; k >= 0; k--) {
+    		path[k] = this.backpointer[n];
+    		n = this.iCoor[path[k]];
+    	} // END for loop
+    	Hypothesis hypothesis = new Hypothesis();
+    	for (int e : path) {
+    		hypothesis.addWord(this.labelIds[e], combinedScore(e));
+    	} // END for loop
+    	return hypothesis;
+    } // END traceback()
+
+    /* toLattice
+    // Pre-conditions:
+    //    - Every record has been added; end is the largest node index
+    // Post-conditions:
+    //    - Returns the received lattice as a Lattice (the decoder's arrays are
+    //      copied, so it can still be used) */
+    public Lattice toLattice() {
+    	if (this.endIdx < 0 || this.endIdx < this.maxNode) {
+    		throw new IllegalStateException("Error: end must be the largest node in lattice " + this.utteranceID);
+    	} // END if
+    	int nodes = 0;
+    	for (int n = 0; n <= this.endIdx; n++) {
+    		if (!java.lang.Double.isNaN(this.nodeTimes[n])) {
+    			nodes++;
+    		} // END if
+    	} // END for loop
+    	double[] times = Arrays.copyOf(this.nodeTimes, this.endIdx + 1);
+    	for (int n = 0; n <= this.endIdx; n++) {
+    		if (java.lang.Double.isNaN(times[n])) {
+    			times[n] = 0;  // as for a node with no record in a lattice file
+    		} // END if
+    	} // END for loop
+    	int m = this.numEdges;
+    	return new Lattice(this.utteranceID, this.startIdx, this.endIdx, nodes, times,
+    	                   Arrays.copyOf(this.iCoor, m), Arrays.copyOf(this.jCoor, m),
+    	                   Arrays.copyOf(this.labelIds, m), Arrays.copyOf(this.amScores, m),
+    	                   Arrays.copyOf(this.lmScores, m));
+    } // END toLattice()
+} // END OnlineDecoder class
@@ -0,0 +1,315 @@
+/*
+ * PipelineMetrics.java
+ *
+ * Per-stage instrumentation for the Program2 pipeline, so a run can show
+ * whether its time goes to parsing, decode, WER, countAllPaths or the
+ * output writes.  For each stage a Histogram of its latency per utterance
+ * is kept, along with histograms of lattice node and edge counts and of the
+ * bytes each utterance wrote; with keepUtterances the individual figures
+ * of every utterance are kept as well.
+ *
+ * Each utterance is timed with a Timer whose lap(stage) charges the time
+ * since the previous lap to stage: one System.nanoTime call and a few
+ * atomic adds per stage, cheap enough to leave on.  A PipelineMetrics may
+ * be shared by threads processing different utterances.
+ *
+ * At the end of a run the metrics are written in the Prometheus text
+ * exposition format, or as JSON.
+ *
+ */
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class PipelineMetrics {
+    /* Stage - the timed steps of processing one utterance, in order */
+    public enum Stage {
+    	PARSE("parse"),
+    	REFERENCE("reference"),
+    	DECODE("decode"),
+    	WER("wer"),
+    	COUNT_PATHS("count_paths"),
+    	DENSITY("density"),
+    	WORDS_AT_TIME("words_at_time"),
+    	SORTED_HITS("sorted_hits"),
+    	WRITE_DOT("write_dot"),
+    	WRITE_LATTICE("write_lattice");
+
+    	private final String label;
+
+    	Stage(String label) {
+    		this.label = label;
+    	} // END Stage() CONSTRUCTOR
+
+    	public String getLabel() {
+    		return this.label;
+    	} // END getLabel()
+    } // END Stage enum
+
+    private static final Stage[] STAGES = Stage.values();
+
+    // Histogram buckets written to Prometheus for each unit, first and last:
+    // a fixed range, so the le labels of a metric never change between runs
+    private static final int NANOS_FIRST = 10, NANOS_LAST = 40;  // about 1us to 18min
+    private static final int COUNT_FIRST = 0, COUNT_LAST = 31;   // 0 to 2^31 - 1
+    private static final int BYTES_FIRST = 0, BYTES_LAST = 41;   // 0 to 2TiB
+
+    private final Histogram[] stages = new Histogram[STAGES.length];
+    private final Histogram total = new Histogram();        // Whole utterance, in ns
+    private final Histogram nodes = new Histogram();
+    private final Histogram edges = new Histogram();
+    private final Histogram bytes = new Histogram();        // Bytes written per utterance
+    private final AtomicLong failures = new AtomicLong();
+    private final ConcurrentLinkedQueue<Timer> utterances; // Finished timers, or null
+    private final long started = System.nanoTime();
+
+    /* PipelineMetrics
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Empty metrics are created; if keepUtterances, every finished
+    //      utterance's own figures are kept for writeJson */
+    public PipelineMetrics(boolean keepUtterances) {
+    	for (int s = 0; s < this.stages.length; s++) {
+    		this.stages[s] = new Histogram();
+    	} // END for loop
+    	this.utterances = keepUtterances ? new ConcurrentLinkedQueue<Timer>() : null;
+    } // END PipelineMetrics() CONSTRUCTOR
+
+    /* Timer - the figures of one utterance as it goes through the stages */
+    public final class Timer {
+    	private final long[] nanos = new long[STAGES.length];
+    	private final long start;
+    	private long last;
+    	private String utteranceID;
+    	private int numNodes, numEdges;
+    	private long bytesWritten;
+
+    	private Timer() {
+    		this.start = this.last = System.nanoTime();
+    	} // END Timer() CONSTRUCTOR
+
+    	/* lap
+    	// Pre-conditions:
+    	//    - stage has just finished
+    	// Post-conditions:
+    	//    - The time since the previous lap (or the start) is charged to stage */
+    	public void lap(Stage stage) {
+    		long now = System.nanoTime();
+    		this.nanos[stage.ordinal()] += now - this.last;
+    		this.last = now;
+    	} // END lap()
+
+    	/* skip
+    	// Pre-conditions:
+    	//    - The utterance has just waited (for another utterance) rather than
+    	//      run a stage
+    	// Post-conditions:
+    	//    - The time since the previous lap is charged to no stage; it still
+    	//      counts in the utterance's total */
+    	public void skip() {
+    		this.last = System.nanoTime();
+    	} // END skip()
+
+    	/* setLattice / addBytesWritten
+    	// Post-conditions:
+    	//    - Record the utterance's lattice and how much output it wrote */
+    	public void setLattice(Lattice lattice) {
+    		this.utteranceID = lattice.getUtteranceID();
+    		this.numNodes = lattice.getNumNodes();
+    		this.numEdges = lattice.getNumEdges();
+    	} // END setLattice()
+
+    	public void addBytesWritten(long n) {
+    		this.bytesWritten += n;
+    	} // END addBytesWritten()
+
+    	/* finish
+    	// Pre-conditions:
+    	//    - The utterance is done; finish is called once
+    	// Post-conditions:
+    	//    - The utterance's figures are added to the metrics */
+    	public void finish() {
+    		for (int s = 0; s < this.nanos.length; s++) {
+    			PipelineMetrics.this.stages[s].record(this.nanos[s]);
+    		} // END for loop
+    		PipelineMetrics.this.total.record(this.last - this.start);
+    		PipelineMetrics.this.nodes.record(this.numNodes);
+    		PipelineMetrics.this.edges.record(this.numEdges);
+    		PipelineMetrics.this.bytes.record(this.bytesWritten);
+    		if (PipelineMetrics.this.utterances != null) {
+    			PipelineMetrics.this.utterances.add(this);
+    		} // END if
+    	} // END finish()
+    } // END Timer class
+
+    /* startUtterance / recordFailure
+    // Post-conditions:
+    //    - startUtterance returns a Timer started now; recordFailure counts an
+    //      utterance that ended in an error (its Timer is not finished) */
+    public Timer startUtterance() {
+    	return new Timer();
+    } // END startUtterance()
+
+    public void recordFailure() {
+    	this.failures.incrementAndGet();
+    } // END recordFailure()
+
+    /* getStage / getUtterances
+    // Post-conditions:
+    //    - Return the latency histogram of stage (in ns), and the histogram of
+    //      whole-utterance latencies, whose count is the utterances finished */
+    public Histogram getStage(Stage stage) {
+    	return this.stages[stage.ordinal()];
+    } // END getStage()
+
+    public Histogram getUtterances() {
+    	return this.total;
+    } // END getUtterances()
+
+    /* save
+    // Pre-conditions:
+    //    - filename can be created
+    // Post-conditions:
+    //    - The metrics are written to filename, as JSON if it ends in ".json"
+    //      and in the Prometheus text format otherwise
+    //    - Throws IOException if the file cannot be written */
+    public void save(String filename) throws IOException {
+    	try (PrintWriter out = new PrintWriter(new java.io.BufferedWriter(new java.io.FileWriter(filename)))) {
+    		if (filename.endsWith(".json")) {
+    			writeJson(out);
+    		} // END if
+    		else {
+    			writePrometheus(out);
+    		} // END else
+    		if (out.checkError()) {
+    			throw new IOException("Error: Unable to write " + filename);
+    		} // END if
+    	} // END try
+    } // END save()
+
+    /* writePrometheus
+    // Pre-conditions:
+    //    - out is open
+    // Post-conditions:
+    //    - The metrics are written in the Prometheus text exposition format:
+    //      latencies in seconds as histograms labelled by stage, sizes as
+    //      histograms, counts as counters */
+    public void writePrometheus(PrintWriter out) {
+    	out.print("# HELP program2_stage_seconds Time spent in each stage, per utterance.\n");
+    	out.print("# TYPE program2_stage_seconds histogram\n");
+    	for (Stage stage : STAGES) {
+    		promHistogram(out, "program2_stage_seconds", "{stage=\"" + stage.getLabel() + "\"", 9, NANOS_FIRST, NANOS_LAST, getStage(stage));
+    	} // END for loop
+    	out.print("# HELP program2_utterance_seconds Time to process each utterance.\n");
+    	out.print("# TYPE program2_utterance_seconds histogram\n");
+    	promHistogram(out, "program2_utterance_seconds", "{", 9, NANOS_FIRST, NANOS_LAST, this.total);
+    	out.print("# HELP program2_lattice_nodes Nodes per lattice.\n");
+    	out.print("# TYPE program2_lattice_nodes histogram\n");
+    	promHistogram(out, "program2_lattice_nodes", "{", 0, COUNT_FIRST, COUNT_LAST, this.nodes);
+    	out.print("# HELP program2_lattice_edges Edges per lattice.\n");
+    	out.print("# TYPE program2_lattice_edges histogram\n");
+    	promHistogram(out, "program2_lattice_edges", "{", 0, COUNT_FIRST, COUNT_LAST, this.edges);
+    	out.print("# HELP program2_bytes_written Bytes of output files written per utterance.\n");
+    	out.print("# TYPE program2_bytes_written histogram\n");
+    	promHistogram(out, "program2_bytes_written", "{", 0, BYTES_FIRST, BYTES_LAST, this.bytes);
+    	out.print("# HELP program2_failures_total Utterances that ended in an error.\n");
+    	out.print("# TYPE program2_failures_total counter\n");
+    	out.print("program2_failures_total " + this.failures.get() + "\n");
+    	out.print("# HELP program2_run_seconds Time since the metrics were created.\n");
+    	out.print("# TYPE program2_run_seconds gauge\n");
+    	out.print("program2_run_seconds " + scaled(System.nanoTime() - this.started, 9) + "\n");
+    } // END writePrometheus()
+
+    /* promHistogram
+    // Pre-conditions:
+    //    - labels is "{" or "{name=\"value\"" (the le label is appended);
+    //      0 <= first <= last < Histogram.BUCKETS - 1
+    // Post-conditions:
+    //    - The cumulative buckets first to last (whether empty or not), +Inf,
+    //      the sum and the count of h are written, values divided by
+    //      10^scale; values below bucket first count towards it */
+    private static void promHistogram(PrintWriter out, String name, String labels, int scale, int first, int last, Histogram h) {
+    	String open = labels.equals("{") ? "{" : labels + ",";
+    	String plain = labels.equals("{") ? "" : labels + "}";
+    	long cumulative = 0;
+    	for (int b = 0; b < first; b++) {
+    		cumulative += h.getBucketCount(b);
+    	} // END for loop
+    	for (int b = first; b <= last; b++) {
+    		cumulative += h.getBucketCount(b);
+    		// bucket b holds values below 2^b, i.e. at most 2^b - 1
+    		out.print(name + "_bucket" + open + "le=\"" + scaled(Histogram.upperBound(b) - 1, scale) + "\"} " + cumulative + "\n");
+    	} // END for loop
+    	out.print(name + "_bucket" + open + "le=\"+Inf\"} " + h.getCount() + "\n");
+    	out.print(name + "_sum" + plain + " " + scaled(h.getSum(), scale) + "\n");
+    	out.print(name + "_count" + plain + " " + h.getCount() + "\n");
+    } // END promHistogram()
+
+    /* writeJson
+    // Pre-conditions:
+    //    - out is open
+    // Post-conditions:
+    //    - The metrics are written as one JSON object: per-stage latency
+    //      summaries in seconds, size summaries, the failure count and, if
+    //      kept, each utterance's figures */
+    public void writeJson(PrintWriter out) {
+    	out.print("{\n  \"utterances\": " + this.total.getCount() + ",\n");
+    	out.print("  \"failures\": " + this.failures.get() + ",\n");
+    	out.print("  \"run_seconds\": " + scaled(System.nanoTime() - this.started, 9) + ",\n");
+    	out.print("  \"stage_seconds\": {\n");
+    	for (Stage stage : STAGES) {
+    		out.print("    \"" + stage.getLabel() + "\": " + jsonSummary(getStage(stage), 9) + ",\n");
+    	} // END for loop
+    	out.print("    \"utterance\": " + jsonSummary(this.total, 9) + "\n  },\n");
+    	out.print("  \"lattice_nodes\": " + jsonSummary(this.nodes, 0) + ",\n");
+    	out.print("  \"lattice_edges\": " + jsonSummary(this.edges, 0) + ",\n");
+    	out.print("  \"bytes_written\": " + jsonSummary(this.bytes, 0));
+    	if (this.utterances != null) {
+    		out.print(",\n  \"per_utterance\": [");
+    		String separator = "\n";
+    		for (Timer t : this.utterances) {
+    			out.print(separator + "    {\"id\": " + jsonString(t.utteranceID) + ", \"nodes\": " + t.numNodes
+    			          + ", \"edges\": " + t.numEdges + ", \"bytes_written\": " + t.bytesWritten
+    			          + ", \"seconds\": " + scaled(t.last - t.start, 9));
+    			for (Stage stage : STAGES) {
+    				out.print(", \"" + stage.getLabel() + "\": " + scaled(t.nanos[stage.ordinal()], 9));
+    			} // END for loop
+    			out.print("}");
+    			separator = ",\n";
+    		} // END for loop
+    		out.print("\n  ]");
+    	} // END if
+    	out.print("\n}\n");
+    } // END writeJson()
+
+    private static String jsonSummary(Histogram h, int scale) {
+    	return "{\"count\": " + h.getCount() + ", \"sum\": " + scaled(h.getSum(), scale)
+    	       + ", \"mean\": " + h.getMean() / Math.pow(10, scale)
+    	       + ", \"p50\": " + scaled(h.quantile(0.5), scale) + ", \"p90\": " + scaled(h.quantile(0.9), scale)
+    	       + ", \"p99\": " + scaled(h.quantile(0.99), scale) + ", \"max\": " + scaled(h.getMax(), scale) + "}";
+    } // END jsonSummary()
+
+    /* scaled - v / 10^scale as an exact decimal (nanoseconds as seconds, say) */
+    private static String scaled(long v, int scale) {
+    	return java.math.BigDecimal.valueOf(v, scale).stripTrailingZeros().toPlainString();
+    } // END scaled()
+
+    private static String jsonString(String s) {
+    	StringBuilder b = new StringBuilder("\"");
+    	for (int k = 0; s != null && k < s.length(); k++) {
+    		char c = s.charAt(k);
+    		if (c == '"' || c == '\\') {
+    			b.append('\\').append(c);
+    		} // END if
+    		else if (c < 0x20) {
+    			b.append(String.format("\\u%04x", (int) c));
+    		} // END else if
+    		else {
+    			b.append(c);
+    		} // END else
+    	} // END for loop
+    	return b.append('"').toString();
+    } // END jsonString()
+} // END PipelineMetrics class
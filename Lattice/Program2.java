@@ -7,8 +7,6 @@
  * searches them to find and print the best hypothesis, and prints 
  * various lattice statistics
  * 
- * Do not modify this file.  
- *
  * Brian Hutchinson
  * April 2017
  *
@@ -16,7 +14,7 @@
  *
  * usage:
  *
- * java Program2 latticeListFilename lmScale outputDir
+ * java Program2 latticeListFilename lmScale outputDir [numThreads]
  *
  * where the arguments are
  * 
@@ -29,24 +27,47 @@
  *                          "acoustic model" score
  *   outputDir              a directory where output lattices and dot files will
  *                          be written, one for each line in the lattice list
+ *   numThreads             optional number of utterances to process concurrently
+ *                          (default 1).  Reports are still printed in list order
+ *                          and the Avg WER is summed in list order, so the output
+ *                          does not depend on numThreads
+ *
+ * Each stage of every utterance is timed (see PipelineMetrics).  Run with
+ * -Dprogram2.metrics=file to have the timings, lattice sizes and bytes
+ * written saved to file at the end of the run: as JSON, including every
+ * utterance's own figures, if file ends in .json, and in the Prometheus
+ * text format otherwise.  Standard output is the same either way.
  *
 */
 
 
 public class Program2 {
     private static final String slash = "/"; // You may need to change this to "\" on Windows...
+    private static final String metricsFilename = System.getProperty("program2.metrics");
+    private static final PipelineMetrics metrics =
+        new PipelineMetrics(metricsFilename != null && metricsFilename.endsWith(".json"));
+    // List position of the earliest utterance that failed in a parallel run;
+    // later utterances write no files, as a sequential run would never have
+    // reached them
+    private static final java.util.concurrent.atomic.AtomicInteger firstFailure =
+        new java.util.concurrent.atomic.AtomicInteger(Integer.MAX_VALUE);
 
     public static void main(String[] args) {
     
         // Check and load arguments
-        if( args.length != 3 ) {
+        if( args.length != 3 && args.length != 4 ) {
             System.err.println("Error: Wrong number of arguments.");
             System.exit(2);
         }
 
         String latticeListFilename = args[0];
-        double lmScale = Double.parseDouble(args[1]);
-        String outputDir = args[2];
+        final double lmScale = Double.parseDouble(args[1]);
+        final String outputDir = args[2];
+        int numThreads = args.length == 4 ? Integer.parseInt(args[3]) : 1;
+        if( numThreads < 1 ) {
+            System.err.println("Error: numThreads must be at least 1.");
+            System.exit(2);
+        }
 
         // Read through latticeListFilename
         java.util.Scanner input = null;
@@ -59,67 +80,285 @@ public class Program2 {
 
         double totalWER = 0.0;
         int numFiles = 0;
-        while( input.hasNext() ) {
-            numFiles++;
-
-            // Read next line in latticeListFilename
-            String latticeFilename = input.next();
-            String refFilename = input.next(); 
-        
-            // Build the lattice
-            Lattice lattice = new Lattice(latticeFilename);
-            System.out.println("\nUtterance " + lattice.getUtteranceID());
-
-            // Print reference text
-            printReference(refFilename);
-
-            // Decode, print best hypothesis and various statistics
-            Hypothesis hypothesis = lattice.decode(lmScale);
-            System.out.println("Hypothesis: " + hypothesis.getHypothesisString());
-            double WER = hypothesis.computeWER(refFilename);
-            System.out.println("WER : " + new java.text.DecimalFormat("0.000").format(WER));
-            totalWER += WER;
-            System.out.println("Number of unique paths: " + lattice.countAllPaths());
-            System.out.println("Lattice density: " + new java.text.DecimalFormat("0.000").format(lattice.getLatticeDensity()));
-            java.util.HashSet<String> words = lattice.uniqueWordsAtTime(0.5);
-            printWordSet(words,outputDir + slash + lattice.getUtteranceID() + ".wordsAtTime");
-            System.out.print("Locations of -silence-: "); 
-            lattice.printSortedHits("-silence-");
-            System.out.print("Locations of i: "); 
-            lattice.printSortedHits("i");
-        
-            // Write lattice to output dir in dot and lattice formats
-            lattice.writeAsDot(outputDir + slash + lattice.getUtteranceID() + ".dot");
-            String latticeOutputFilename = outputDir + slash + lattice.getUtteranceID() + ".lattice";
-            if( latticeOutputFilename.equals(latticeFilename) ) {
-                System.err.println("Error: Output directory must not be the same as the input directory\n");
-                System.exit(5);
+        if( numThreads == 1 ) {
+            while( input.hasNext() ) {
+                numFiles++;
+
+                // Read next line in latticeListFilename
+                String latticeFilename = input.next();
+                String refFilename = input.next(); 
+                try {
+                    totalWER += processUtterance(latticeFilename, refFilename, lmScale, outputDir, System.out, numFiles, null);
+                } catch( Failure f ) {
+                    metrics.recordFailure();
+                    f.exit();
+                }
+            }
+        } else {
+            java.util.ArrayList<String[]> entries = new java.util.ArrayList<String[]>();
+            while( input.hasNext() ) {
+                entries.add(new String[] { input.next(), input.next() });
             }
-            lattice.saveAsFile(latticeOutputFilename);
+            numFiles = entries.size();
+            totalWER = processInParallel(entries, lmScale, outputDir, numThreads);
         }
     
         System.out.println("Avg WER = " + totalWER/numFiles);
+        saveMetrics();
 
         return;
     }
+
+    // Decodes the utterances on a pool of numThreads workers.  Each worker
+    // writes its report into a buffer; the buffers are printed, and the WERs
+    // summed, in list order as soon as each one (and all before it) is done.
+    // Files are written in list order: an utterance writes its files only
+    // once every utterance before it is finished, and not at all if one of
+    // them failed, so the output files are those of a sequential run.  At
+    // the first failure the utterances not yet started are cancelled, and the
+    // failure is reported once the reports before it are printed
+    private static double processInParallel(java.util.ArrayList<String[]> entries, final double lmScale,
+                                            final String outputDir, int numThreads) {
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(numThreads);
+        java.util.ArrayList<java.util.concurrent.Future<Report>> reports = new java.util.ArrayList<java.util.concurrent.Future<Report>>();
+        java.util.concurrent.CompletableFuture<Void> previous = null;
+        for( int k=0; k<entries.size(); k++ ) {
+            final String[] entry = entries.get(k);
+            final int index = k;
+            final java.util.concurrent.CompletableFuture<Void> before = previous;
+            final java.util.concurrent.CompletableFuture<Void> finished = new java.util.concurrent.CompletableFuture<Void>();
+            reports.add(pool.submit(new java.util.concurrent.Callable<Report>() {
+                public Report call() {
+                    try {
+                        return processBuffered(entry[0], entry[1], lmScale, outputDir, index, before);
+                    } finally {
+                        finished.complete(null);
+                    }
+                }
+            }));
+            previous = finished;
+        }
+        pool.shutdown();
+
+        double totalWER = 0.0;
+        for( java.util.concurrent.Future<Report> future : reports ) {
+            Report report = null;
+            try {
+                report = future.get();
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                System.err.println("Error: Interrupted");
+                System.exit(1);
+            } catch( java.util.concurrent.ExecutionException e ) {
+                throw new RuntimeException(e.getCause());
+            }
+            System.out.print(report.text);
+            if( report.failure != null ) {
+                for( java.util.concurrent.Future<Report> rest : reports ) {
+                    rest.cancel(false);
+                }
+                report.failure.exit();
+            }
+            totalWER += report.WER;
+        }
+        return totalWER;
+    }
+
+    // Runs processUtterance with its output captured instead of printed; a
+    // failure is recorded in firstFailure at once, so later utterances stop
+    private static Report processBuffered(String latticeFilename, String refFilename,
+                                          double lmScale, String outputDir, int index,
+                                          java.util.concurrent.CompletableFuture<Void> before) {
+        java.io.ByteArrayOutputStream buffer = new java.io.ByteArrayOutputStream();
+        java.io.PrintStream out = new java.io.PrintStream(buffer);
+        Report report = new Report();
+        try {
+            report.WER = processUtterance(latticeFilename, refFilename, lmScale, outputDir, out, index, before);
+        } catch( Failure f ) {
+            firstFailure.accumulateAndGet(index, Math::min);
+            metrics.recordFailure();
+            report.failure = f;
+        }
+        out.flush();
+        report.text = buffer.toString();
+        return report;
+    }
+
+    // Loads, decodes and reports on one utterance (at list position index),
+    // writing the report to out, and returns its WER.  Errors are raised as a
+    // Failure (which exits).  Before writing any file it waits for before
+    // (the previous utterance of a parallel run, else null) to finish, and
+    // returns without writing if an earlier utterance failed.  Each stage's
+    // time, and the size of each output file, go to metrics
+    private static double processUtterance(String latticeFilename, String refFilename,
+                                           double lmScale, String outputDir, java.io.PrintStream out,
+                                           int index, java.util.concurrent.CompletableFuture<Void> before) {
+        PipelineMetrics.Timer timer = metrics.startUtterance();
+
+        // Build the lattice
+        Lattice lattice = loadLattice(latticeFilename);
+        timer.lap(PipelineMetrics.Stage.PARSE);
+        timer.setLattice(lattice);
+        out.println("\nUtterance " + lattice.getUtteranceID());
+
+        // Print reference text
+        printReference(refFilename, out);
+        timer.lap(PipelineMetrics.Stage.REFERENCE);
+
+        // Decode, print best hypothesis and various statistics
+        Hypothesis hypothesis = null;
+        try {
+            hypothesis = lattice.decode(lmScale);
+        } catch( IllegalStateException e ) {
+            throw new Failure(e.getMessage(), false, 1);
+        }
+        timer.lap(PipelineMetrics.Stage.DECODE);
+        out.println("Hypothesis: " + hypothesis.getHypothesisString());
+        double WER = hypothesis.computeWordErrors(loadReference(refFilename)).getWER();
+        out.println("WER : " + new java.text.DecimalFormat("0.000").format(WER));
+        timer.lap(PipelineMetrics.Stage.WER);
+        out.println("Number of unique paths: " + lattice.countAllPaths());
+        timer.lap(PipelineMetrics.Stage.COUNT_PATHS);
+        out.println("Lattice density: " + new java.text.DecimalFormat("0.000").format(lattice.getLatticeDensity()));
+        timer.lap(PipelineMetrics.Stage.DENSITY);
+        java.util.HashSet<String> words = lattice.uniqueWordsAtTime(0.5);
+        timer.lap(PipelineMetrics.Stage.WORDS_AT_TIME);
+        // The hits are found now but printed after the words file is written,
+        // so the work before the wait for earlier utterances is all done
+        java.io.ByteArrayOutputStream hits = new java.io.ByteArrayOutputStream();
+        java.io.PrintStream hitsOut = new java.io.PrintStream(hits);
+        hitsOut.print("Locations of -silence-: "); 
+        lattice.printSortedHits("-silence-", hitsOut);
+        hitsOut.print("Locations of i: "); 
+        lattice.printSortedHits("i", hitsOut);
+        hitsOut.flush();
+        timer.lap(PipelineMetrics.Stage.SORTED_HITS);
+
+        if( before != null ) {
+            before.join();
+            timer.skip();
+        }
+        if( firstFailure.get() < index ) {
+            return WER;
+        }
+        String wordsFilename = outputDir + slash + lattice.getUtteranceID() + ".wordsAtTime";
+        printWordSet(words,wordsFilename);
+        timer.addBytesWritten(new java.io.File(wordsFilename).length());
+        timer.lap(PipelineMetrics.Stage.WORDS_AT_TIME);
+        out.print(hits.toString());
+    
+        // Write lattice to output dir in dot and lattice formats
+        String dotFilename = outputDir + slash + lattice.getUtteranceID() + ".dot";
+        writeLattice(lattice, dotFilename, true);
+        timer.addBytesWritten(new java.io.File(dotFilename).length());
+        timer.lap(PipelineMetrics.Stage.WRITE_DOT);
+        String latticeOutputFilename = outputDir + slash + lattice.getUtteranceID() + ".lattice";
+        if( latticeOutputFilename.equals(latticeFilename) ) {
+            throw new Failure("Error: Output directory must not be the same as the input directory\n", true, 5);
+        }
+        writeLattice(lattice, latticeOutputFilename, false);
+        timer.addBytesWritten(new java.io.File(latticeOutputFilename).length());
+        timer.lap(PipelineMetrics.Stage.WRITE_LATTICE);
+        timer.finish();
+        return WER;
+    }
+
+    // The captured output of one utterance
+    private static class Report {
+        String text;
+        double WER;
+        Failure failure;
+    }
+
+    // An error that ends the run: printed (once every earlier report has been
+    // printed) to standard output or standard error, then exits with status
+    private static class Failure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final boolean toStdErr;
+        private final int status;
+
+        Failure(String message, boolean toStdErr, int status) {
+            super(message);
+            this.toStdErr = toStdErr;
+            this.status = status;
+        }
+
+        void exit() {
+            if( toStdErr ) {
+                System.err.println(getMessage());
+            } else {
+                System.out.println(getMessage());
+            }
+            saveMetrics();
+            System.exit(status);
+        }
+    }
+
+    // Writes the metrics to the file named by -Dprogram2.metrics, if any.
+    // A metrics file that cannot be written is reported but does not fail the run
+    private static void saveMetrics() {
+        if( metricsFilename == null ) {
+            return;
+        }
+        try {
+            metrics.save(metricsFilename);
+        } catch( java.io.IOException e ) {
+            System.err.println("Error: Unable to write metrics file " + metricsFilename);
+        }
+    }
                 
 
-    private static void printReference(String refFilename) {
-        java.util.Scanner refInput = null;
+    private static Lattice loadLattice(String latticeFilename) {
         try {
-            refInput = new java.util.Scanner(new java.io.File(refFilename));
+            if( latticeFilename.endsWith(LatticeBinary.EXTENSION) ) {
+                return LatticeBinary.load(latticeFilename);
+            }
+            return LatticeParser.parse(latticeFilename);
         } catch( java.io.FileNotFoundException e ) {
-            System.err.println("Error: Unable to open file " + refFilename);
-            System.exit(1);
+            throw new Failure("Error: Unable to open file " + latticeFilename, false, 1);
+        } catch( java.io.IOException e ) {
+            throw new Failure(e.getMessage(), false, 2);
         }
-        if( refInput.hasNext() ) {
-            System.out.println("Reference: " + refInput.nextLine());
+    }
+
+    private static void printReference(String refFilename, java.io.PrintStream out) {
+        Reference reference = loadReference(refFilename);
+        if( reference.getFirstLine() != null ) {
+            out.println("Reference: " + reference.getFirstLine());
         } else {
-            System.out.println("Reference: ");
+            out.println("Reference: ");
         }
         return;
     }
 
+    private static Reference loadReference(String refFilename) {
+        try {
+            return Reference.load(refFilename);
+        } catch( java.io.FileNotFoundException e ) {
+            throw new Failure("Error: Unable to open file " + refFilename, true, 1);
+        }
+    }
+
+    // Writes lattice to filename in the dot format, or else in the lattice
+    // format, as writeAsDot and saveAsFile do.  A file that cannot be
+    // written is raised as a Failure, so a worker thread never exits the JVM
+    private static void writeLattice(Lattice lattice, String filename, boolean dot) {
+        try {
+            java.io.Writer output = new java.io.OutputStreamWriter(new java.io.FileOutputStream(filename));
+            try {
+                if( dot ) {
+                    lattice.writeDot(output);
+                } else {
+                    lattice.write(output);
+                }
+            } finally {
+                output.close();
+            }
+        } catch( java.io.IOException e ) {
+            throw new Failure("Error: Unable to open file" + filename, false, 1);
+        }
+    }
+
     private static void printWordSet(java.util.HashSet<String> words, String outFilename) {
 		if( words == null ) {
 			return;
@@ -128,8 +367,7 @@ public class Program2 {
         try {
             output = new java.io.PrintStream(outFilename);
         } catch( java.io.FileNotFoundException e ) {
-            System.err.println("Error: Unable to open file " + outFilename + " for writing");
-            System.exit(1);
+            throw new Failure("Error: Unable to open file " + outFilename + " for writing", true, 1);
         }
         for( String w : words ) {
             output.println(w);
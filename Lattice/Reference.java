@@ -0,0 +1,160 @@
+/*
+ * Reference.java
+ *
+ * Defines a new "Reference" type: the reference transcript of an utterance,
+ * read from a reference file once and kept for every later use (printing it,
+ * and scoring each hypothesis against it)
+ *
+ * Each reference word is interned in the Vocabulary, so edit distances
+ * compare the same int ids hypotheses are built from.  References are cached by
+ * absolute path together with the file's modification time and length, so a
+ * file that changes is read again, and the cache keeps at most
+ * MAX_CACHED_WORDS words, dropping the least recently used references first.
+ * load may be called from several threads.
+ *
+ * Note that the Reference type is immutable: after the fields are
+ * initialized in the constructor, they cannot be modified.
+ *
+ */
+
+public final class Reference {
+    private static final int MAX_CACHED_WORDS = 1 << 20;      // Capacity of the cache, in words
+    private static final java.util.LinkedHashMap<String, Cached> cache =   // Path -> reference, least
+        new java.util.LinkedHashMap<String, Cached>(16, 0.75f, true);      //   recently used first
+    private static long cachedWords;                          // Words held by the cached references
+
+    private final String firstLine;                           // First line of the file, or null if it has no words
+    private final String[] words;                             // The whitespace-separated words, in order
+    private final int[] wordIds;                              // Vocabulary id of each word
+
+    // A cached reference and the file state it was read from
+    private static final class Cached {
+        final Reference reference;
+        final long modified, length;
+
+        Cached(Reference reference, long modified, long length) {
+            this.reference = reference;
+            this.modified = modified;
+            this.length = length;
+        }
+    }
+
+    // Constructor
+
+    // Reference
+    // Preconditions:
+    //     - text is the contents of a reference file
+    // Post-conditions
+    //     - The words of text are split out and interned
+    private Reference(String text) {
+        java.util.Scanner input = new java.util.Scanner(text);
+        this.firstLine = input.hasNext() ? input.nextLine() : null;
+        input.close();
+
+        String trimmed = text.trim();
+        this.words = trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+        this.wordIds = new int[this.words.length];
+        for( int j=0; j<this.words.length; j++ ) {
+            this.wordIds[j] = Vocabulary.intern(this.words[j]);
+        }
+    }
+
+    // load
+    // Preconditions:
+    //     - referenceFilename is the name of a file with the reference transcript
+    // Post-conditions
+    //     - The Reference for the file is returned; the file is read again only
+    //       if it is not cached, or has changed since it was read
+    //     - Throws java.io.FileNotFoundException if it cannot be read
+    public static Reference load(String referenceFilename) throws java.io.FileNotFoundException {
+        java.io.File file = new java.io.File(referenceFilename).getAbsoluteFile();
+        String key = file.getPath();
+        long modified = file.lastModified();
+        long length = file.length();
+        synchronized( cache ) {
+            Cached cached = cache.get(key);
+            if( cached != null && cached.modified == modified && cached.length == length ) {
+                return cached.reference;
+            }
+        }
+
+        String text;
+        try {
+            byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
+            text = new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+        } catch( java.io.IOException | java.nio.file.InvalidPathException e ) {
+            throw new java.io.FileNotFoundException(referenceFilename);
+        }
+        Reference reference = new Reference(text);
+        cache(key, new Cached(reference, modified, length));
+        return reference;
+    }
+
+    // cache
+    // Preconditions:
+    //     - entry was just read from the file at key
+    // Post-conditions
+    //     - entry replaces any older entry for key (one for the same file
+    //       state, cached meanwhile by another thread, is kept instead), then
+    //       the least recently used references are dropped until the cache
+    //       holds at most MAX_CACHED_WORDS words
+    private static void cache(String key, Cached entry) {
+        synchronized( cache ) {
+            Cached old = cache.get(key);
+            if( old != null && old.modified == entry.modified && old.length == entry.length ) {
+                return;
+            }
+            if( old != null ) {
+                cache.remove(key);
+                cachedWords -= old.reference.size();
+            }
+            cache.put(key, entry);
+            cachedWords += entry.reference.size();
+
+            java.util.Iterator<Cached> eldest = cache.values().iterator();
+            while( cachedWords > MAX_CACHED_WORDS && cache.size() > 1 ) {
+                cachedWords -= eldest.next().reference.size();
+                eldest.remove();
+            }
+        }
+    }
+
+    // Accessors
+
+    // getFirstLine
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the first line of the reference file, or null if the file
+    //       holds no words
+    public String getFirstLine() {
+        return this.firstLine;
+    }
+
+    // size
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of words in the reference
+    public int size() {
+        return this.words.length;
+    }
+
+    // getWord
+    // Preconditions:
+    //     - 0 <= j < size()
+    // Post-conditions
+    //     - Returns the j-th reference word
+    public String getWord(int j) {
+        return this.words[j];
+    }
+
+    // getWordId
+    // Preconditions:
+    //     - 0 <= j < size()
+    // Post-conditions
+    //     - Returns the Vocabulary id of the j-th reference word
+    int getWordId(int j) {
+        return this.wordIds[j];
+    }
+}
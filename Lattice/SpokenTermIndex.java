@@ -0,0 +1,711 @@
+/*
+ * SpokenTermIndex.java
+ *
+ * A persistent, corpus-wide index of the words in a collection of lattice
+ * files.  It answers "where was this word (or phrase) said?" with
+ * (utteranceID, start, end, posterior) hits, without loading any lattice.
+ *
+ * The index is built once from a Program2-style lattice list: every edge
+ * contributes a posting (utterance, start time, end time, posterior) for its
+ * label, with posteriors from Lattice.computeEdgePosteriors.  Edges of the
+ * same label and span are folded into one posting with their posteriors
+ * summed.  A lattice whose posteriors cannot be computed (a cycle or an
+ * unreachable end node) is reported on standard error and left out.
+ *
+ * Postings are collected in memory only up to POSTINGS_PER_RUN at a time;
+ * each such batch is written to a temporary run file, sorted by term, and
+ * the runs are merged term by term into the index at the end, so the size
+ * of the corpus is bounded by disk space rather than heap.
+ *
+ * File layout (fixed-width values big-endian; varint, zigzag and string as
+ * in LatticeBinary):
+ *
+ *     int      MAGIC ("STIX")
+ *     varint   VERSION
+ *     varint   number of utterances, followed by their IDs as strings
+ *     varint   number of terms
+ *     terms    sorted by String.compareTo, each:
+ *                string   the term
+ *                varint   number of postings
+ *                varint   byte length of the postings block
+ *     postings the blocks, in term order; each posting is
+ *                varint   utterance number - previous posting's
+ *                zigzag   start - previous start in this utterance (ms)
+ *                varint   end - start (ms)
+ *                int      posterior as float bits
+ *
+ * Times are stored in whole milliseconds and postings are sorted by
+ * utterance, then start time.  Opening an index reads the utterance table
+ * and term dictionary into memory and keeps the file open; a term's postings
+ * block is only read (with a positional read, so the file may exceed 2 GB)
+ * and decoded when that term is queried.  The header and dictionary must
+ * fit in 2 GB, as they are held in memory anyway.
+ *
+ * ----------------------------------------------------------------------------
+ *
+ * usage:
+ *
+ * java SpokenTermIndex build latticeListFilename lmScale posteriorScale indexFilename
+ * java SpokenTermIndex search indexFilename word [word ...]
+ *
+ * where several words in a search form a phrase: consecutive words must
+ * be adjacent in time (one ending where the next begins)
+ *
+*/
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Scanner;
+import java.util.TreeMap;
+
+public final class SpokenTermIndex implements Closeable {
+    private static final int MAGIC = 0x53544958;  // "STIX"
+    private static final int VERSION = 1;
+    private static final int POSTINGS_PER_RUN = 1 << 21;  // Postings held in memory while building
+
+    private final String[] utteranceIDs;  // Utterance number -> ID
+    private final String[] terms;         // Sorted terms
+    private final int[] postingCounts;    // Postings per term
+    private final long[] postingOffsets;  // Start of each term's block in the file, then its end
+    private final FileInputStream file;   // The open index file
+    private final FileChannel channel;    //   and its channel, for positional reads
+
+    /* SpokenTermIndex
+    // Pre-conditions:
+    //    - the fields have been read from an index file
+    // Post-conditions:
+    //    - The fields are set to the corresponding arguments */
+    private SpokenTermIndex(String[] utteranceIDs, String[] terms, int[] postingCounts,
+                            long[] postingOffsets, FileInputStream file) {
+    	this.utteranceIDs = utteranceIDs;
+    	this.terms = terms;
+    	this.postingCounts = postingCounts;
+    	this.postingOffsets = postingOffsets;
+    	this.file = file;
+    	this.channel = file.getChannel();
+    } // END SpokenTermIndex() CONSTRUCTOR
+
+    /* Hit - one occurrence of a term or phrase */
+    public static final class Hit {
+    	private final String utteranceID;
+    	private final double start, end, posterior;
+
+    	Hit(String utteranceID, double start, double end, double posterior) {
+    		this.utteranceID = utteranceID;
+    		this.start = start;
+    		this.end = end;
+    		this.posterior = posterior;
+    	} // END Hit() CONSTRUCTOR
+
+    	public String getUtteranceID() {
+    		return this.utteranceID;
+    	} // END getUtteranceID()
+
+    	public double getStart() {
+    		return this.start;
+    	} // END getStart()
+
+    	public double getEnd() {
+    		return this.end;
+    	} // END getEnd()
+
+    	public double getPosterior() {
+    		return this.posterior;
+    	} // END getPosterior()
+
+    	public String toString() {
+    		return this.utteranceID + " " + String.format("%.3f %.3f %.4f", this.start, this.end, this.posterior);
+    	} // END toString()
+    } // END Hit class
+
+    /* build
+    // Pre-conditions:
+    //    - latticeListFilename is a Program2-style list (lattice and reference
+    //      filename per line; the references are not read)
+    //    - lmScale and posteriorScale are passed to computeEdgePosteriors
+    // Post-conditions:
+    //    - The index of every lattice in the list is written to indexFilename;
+    //      lattices without posteriors are reported and skipped
+    //    - Throws IOException if a lattice cannot be read or the index written */
+    public static void build(String latticeListFilename, double lmScale, double posteriorScale,
+                             String indexFilename) throws IOException {
+    	File directory = new File(indexFilename).getAbsoluteFile().getParentFile();
+    	Scanner list = new Scanner(new File(latticeListFilename));
+    	ArrayList<String> utterances = new ArrayList<String>();
+    	TreeMap<String, PostingList> postings = new TreeMap<String, PostingList>();
+    	ArrayList<File> runs = new ArrayList<File>();
+    	int buffered = 0;
+
+    	try {
+    		while (list.hasNext()) {
+    			String latticeFilename = list.next();
+    			if (list.hasNext()) {
+    				list.next();  // reference file, not needed
+    			} // END if
+    			Lattice lattice = latticeFilename.endsWith(LatticeBinary.EXTENSION)
+    			                  ? LatticeBinary.load(latticeFilename) : LatticeParser.parse(latticeFilename);
+    			double[] posterior;
+    			try {
+    				posterior = lattice.computeEdgePosteriors(lmScale, posteriorScale);
+    			} // END try
+    			catch (IllegalStateException e) {
+    				System.err.println(e.getMessage() + " Skipping " + latticeFilename);
+    				continue;
+    			} // END catch
+    			int utterance = utterances.size();
+    			utterances.add(lattice.getUtteranceID());
+
+    			for (int e = 0; e < lattice.getNumEdges(); e++) {
+    				String term = lattice.getEdgeLabel(e);
+    				PostingList termPostings = postings.get(term);
+    				if (termPostings == null) {
+    					termPostings = new PostingList();
+    					postings.put(term, termPostings);
+    				} // END if NEW TERM
+    				termPostings.add(utterance, toMillis(lattice.getNodeTime(lattice.getEdgeSource(e))),
+    				                 toMillis(lattice.getNodeTime(lattice.getEdgeTarget(e))), posterior[e]);
+    			} // END for loop EDGES
+    			buffered += lattice.getNumEdges();
+    			if (buffered >= POSTINGS_PER_RUN) {
+    				runs.add(writeRun(postings, directory));
+    				postings.clear();
+    				buffered = 0;
+    			} // END if SPILL
+    		} // END while loop
+    		list.close();
+    		runs.add(writeRun(postings, directory));
+    		postings.clear();
+    		mergeRuns(utterances, runs, indexFilename, directory);
+    	} // END try
+    	finally {
+    		list.close();
+    		for (File run : runs) {
+    			run.delete();
+    		} // END for loop
+    	} // END finally
+    } // END build()
+
+    /* writeRun
+    // Pre-conditions:
+    //    - postings holds the postings of a range of consecutive utterances
+    // Post-conditions:
+    //    - Writes them to a new temporary file in directory and returns it.
+    //      Each term, in sorted order, is stored as: string term, varint
+    //      number of postings, varint last utterance, varint block length and
+    //      the postings block as in the index */
+    private static File writeRun(TreeMap<String, PostingList> postings, File directory) throws IOException {
+    	File run = File.createTempFile("stix", ".run", directory);
+    	OutputStream out = new BufferedOutputStream(new FileOutputStream(run), 1 << 16);
+    	try {
+    		ByteArrayOutputStream block = new ByteArrayOutputStream();
+    		for (String term : postings.keySet()) {
+    			PostingList p = postings.get(term);
+    			block.reset();
+    			int count = p.encode(block);
+    			LatticeBinary.writeString(out, term);
+    			LatticeBinary.writeVarint(out, count);
+    			LatticeBinary.writeVarint(out, p.lastUtterance());
+    			LatticeBinary.writeVarint(out, block.size());
+    			block.writeTo(out);
+    		} // END for loop
+    	} // END try
+    	finally {
+    		out.close();
+    	} // END finally
+    	return run;
+    } // END writeRun()
+
+    /* mergeRuns
+    // Pre-conditions:
+    //    - runs were written by writeRun, in utterance order
+    // Post-conditions:
+    //    - The index of the utterances and the merged runs is written to
+    //      indexFilename
+    // Notes:
+    //    - The runs cover disjoint utterance ranges in increasing order, so a
+    //      term's postings are its run blocks concatenated in run order.  Only
+    //      the first posting of each block changes: its utterance is stored
+    //      relative to 0 in the run and relative to the previous block's last
+    //      utterance in the index.  The postings are merged into a temporary
+    //      file first, since the dictionary that precedes them needs their sizes */
+    private static void mergeRuns(ArrayList<String> utterances, ArrayList<File> runs,
+                                  String indexFilename, File directory) throws IOException {
+    	PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+    	for (int r = 0; r < runs.size(); r++) {
+    		RunReader reader = new RunReader(runs.get(r), r);
+    		if (reader.next()) {
+    			queue.add(reader);
+    		} // END if
+    	} // END for loop
+
+    	ArrayList<String> terms = new ArrayList<String>();
+    	ArrayList<Integer> counts = new ArrayList<Integer>();
+    	ArrayList<Integer> lengths = new ArrayList<Integer>();
+    	File merged = File.createTempFile("stix", ".postings", directory);
+    	try {
+    		OutputStream out = new BufferedOutputStream(new FileOutputStream(merged), 1 << 16);
+    		try {
+    			while (!queue.isEmpty()) {
+    				String term = queue.peek().term;
+    				long count = 0;
+    				long length = 0;
+    				int lastUtterance = 0;
+    				while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+    					RunReader reader = queue.poll();
+    					count += reader.count;
+    					length += reader.copyBlock(out, lastUtterance);
+    					lastUtterance = reader.lastUtterance;
+    					if (reader.next()) {
+    						queue.add(reader);
+    					} // END if
+    				} // END while loop SAME TERM
+    				if (count > Integer.MAX_VALUE || length > Integer.MAX_VALUE) {
+    					throw new IOException("Error: too many postings for term " + term);
+    				} // END if TOO LARGE
+    				terms.add(term);
+    				counts.add((int) count);
+    				lengths.add((int) length);
+    			} // END while loop TERMS
+    		} // END try
+    		finally {
+    			out.close();
+    		} // END finally
+
+    		out = new BufferedOutputStream(new FileOutputStream(indexFilename), 1 << 16);
+    		try {
+    			LatticeBinary.writeInt(out, MAGIC);
+    			LatticeBinary.writeVarint(out, VERSION);
+    			LatticeBinary.writeVarint(out, utterances.size());
+    			for (String id : utterances) {
+    				LatticeBinary.writeString(out, id);
+    			} // END for loop
+    			LatticeBinary.writeVarint(out, terms.size());
+    			for (int t = 0; t < terms.size(); t++) {
+    				LatticeBinary.writeString(out, terms.get(t));
+    				LatticeBinary.writeVarint(out, counts.get(t));
+    				LatticeBinary.writeVarint(out, lengths.get(t));
+    			} // END for loop DICTIONARY
+    			Files.copy(merged.toPath(), out);
+    		} // END try
+    		finally {
+    			out.close();
+    		} // END finally
+    	} // END try
+    	finally {
+    		merged.delete();
+    	} // END finally
+    } // END mergeRuns()
+
+    /* open
+    // Pre-conditions:
+    //    - indexFilename names a file written by build
+    // Post-conditions:
+    //    - Returns the opened index; the postings stay on disk and the file
+    //      stays open until close() */
+    public static SpokenTermIndex open(String indexFilename) throws IOException {
+    	FileInputStream in = new FileInputStream(indexFilename);
+    	try {
+    		FileChannel channel = in.getChannel();
+    		ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+    		if (data.getInt() != MAGIC || LatticeBinary.readVarint(data) != VERSION) {
+    			throw new IOException("Error: Not a spoken term index: " + indexFilename);
+    		} // END if BAD HEADER
+    		int numUtterances = LatticeBinary.readVarint(data);
+    		if (numUtterances < 0 || numUtterances > data.remaining()) {  // a byte or more each
+    			throw new IOException("Error: Not able to parse file " + indexFilename);
+    		} // END if BAD COUNT
+    		String[] utteranceIDs = new String[numUtterances];
+    		for (int u = 0; u < utteranceIDs.length; u++) {
+    			utteranceIDs[u] = LatticeBinary.readString(data);
+    		} // END for loop
+    		int numTerms = LatticeBinary.readVarint(data);
+    		if (numTerms < 0 || 3L * numTerms > data.remaining()) {  // a string and two varints each
+    			throw new IOException("Error: Not able to parse file " + indexFilename);
+    		} // END if BAD COUNT
+    		String[] terms = new String[numTerms];
+    		int[] postingCounts = new int[numTerms];
+    		long[] postingOffsets = new long[numTerms + 1];
+    		long offset = 0;
+    		for (int t = 0; t < numTerms; t++) {
+    			terms[t] = LatticeBinary.readString(data);
+    			postingCounts[t] = LatticeBinary.readVarint(data);
+    			postingOffsets[t] = offset;
+    			int length = LatticeBinary.readVarint(data);
+    			if (postingCounts[t] < 0 || length < 0 || 7L * postingCounts[t] > length) {  // three varints and a float each
+    				throw new IOException("Error: Not able to parse file " + indexFilename);
+    			} // END if BAD COUNT
+    			offset += length;
+    		} // END for loop
+    		postingOffsets[numTerms] = offset;
+    		for (int t = 0; t <= numTerms; t++) {
+    			postingOffsets[t] += data.position();
+    		} // END for loop
+    		if (postingOffsets[numTerms] != channel.size()) {
+    			throw new IOException("Error: Not able to parse file " + indexFilename);
+    		} // END if WRONG SIZE
+    		return new SpokenTermIndex(utteranceIDs, terms, postingCounts, postingOffsets, in);
+    	} // END try
+    	catch (IOException e) {
+    		in.close();
+    		throw e;
+    	} // END catch
+    	catch (RuntimeException e) {
+    		in.close();
+    		throw new IOException("Error: Not able to parse file " + indexFilename);
+    	} // END catch
+    } // END open()
+
+    /* close
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - The index file is closed; the index can no longer be searched */
+    public void close() throws IOException {
+    	this.file.close();
+    } // END close()
+
+    /* getNumUtterances / getNumTerms
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Return the number of indexed utterances and distinct terms */
+    public int getNumUtterances() {
+    	return this.utteranceIDs.length;
+    } // END getNumUtterances()
+
+    public int getNumTerms() {
+    	return this.terms.length;
+    } // END getNumTerms()
+
+    /* search
+    // Pre-conditions:
+    //    - word is a single term (an edge label such as "i" or "going_to")
+    // Post-conditions:
+    //    - Returns its hits sorted by utterance (in list order), then start
+    //    - Throws IOException if the postings cannot be read */
+    public ArrayList<Hit> search(String word) throws IOException {
+    	ArrayList<Hit> hits = new ArrayList<Hit>();
+    	int t = Arrays.binarySearch(this.terms, word);
+    	if (t < 0) {
+    		return hits;
+    	} // END if UNKNOWN TERM
+    	int[] utt = new int[this.postingCounts[t]];
+    	int[] start = new int[utt.length];
+    	int[] end = new int[utt.length];
+    	float[] posterior = new float[utt.length];
+    	decode(t, utt, start, end, posterior);
+    	for (int k = 0; k < utt.length; k++) {
+    		hits.add(new Hit(this.utteranceIDs[utt[k]], start[k] / 1000.0, end[k] / 1000.0, posterior[k]));
+    	} // END for loop
+    	return hits;
+    } // END search()
+
+    /* searchPhrase
+    // Pre-conditions:
+    //    - words holds one or more terms
+    // Post-conditions:
+    //    - Returns the occurrences of the terms in sequence: each word's hit
+    //      must start (to the millisecond) where the previous word's ended, in
+    //      the same utterance.  Matches ending at the same time are combined:
+    //      a hit spans the earliest first-word start to that end, and its
+    //      posterior is the product of the word posteriors (summed over the
+    //      combined matches), which approximates the phrase posterior
+    // Notes:
+    //    - Works on postings alone; words that are adjacent in time but not
+    //      connected by a lattice path can also match */
+    public ArrayList<Hit> searchPhrase(String... words) throws IOException {
+    	if (words.length == 1) {
+    		return search(words[0]);
+    	} // END if SINGLE WORD
+
+    	// partial matches: (utterance, first start, current end) -> posterior
+    	HashMap<Long, Double> partial = null;
+    	HashMap<Long, Integer> firstStart = null;
+    	for (int w = 0; w < words.length; w++) {
+    		int t = Arrays.binarySearch(this.terms, words[w]);
+    		if (t < 0) {
+    			return new ArrayList<Hit>();
+    		} // END if UNKNOWN TERM
+    		int[] utt = new int[this.postingCounts[t]];
+    		int[] start = new int[utt.length];
+    		int[] end = new int[utt.length];
+    		float[] posterior = new float[utt.length];
+    		decode(t, utt, start, end, posterior);
+
+    		HashMap<Long, Double> next = new HashMap<Long, Double>();
+    		HashMap<Long, Integer> nextFirst = new HashMap<Long, Integer>();
+    		for (int k = 0; k < utt.length; k++) {
+    			long endKey = key(utt[k], end[k]);
+    			if (w == 0) {
+    				next.merge(endKey, (double) posterior[k], Double::sum);
+    				nextFirst.merge(endKey, start[k], Math::min);
+    			} // END if FIRST WORD
+    			else {
+    				Double before = partial.get(key(utt[k], start[k]));
+    				if (before != null) {
+    					next.merge(endKey, before * posterior[k], Double::sum);
+    					nextFirst.merge(endKey, firstStart.get(key(utt[k], start[k])), Math::min);
+    				} // END if CONTINUES A MATCH
+    			} // END else
+    		} // END for loop POSTINGS
+    		partial = next;
+    		firstStart = nextFirst;
+    	} // END for loop WORDS
+
+    	ArrayList<Hit> hits = new ArrayList<Hit>();
+    	ArrayList<Long> keys = new ArrayList<Long>(partial.keySet());
+    	java.util.Collections.sort(keys);
+    	for (long k : keys) {
+    		int u = (int) (k >>> 32);
+    		hits.add(new Hit(this.utteranceIDs[u], firstStart.get(k) / 1000.0, (int) k / 1000.0, partial.get(k)));
+    	} // END for loop
+    	return hits;
+    } // END searchPhrase()
+
+    /* key
+    // Pre-conditions:
+    //    - utterance >= 0
+    // Post-conditions:
+    //    - Returns (utterance, millis) packed into a long, ordered by utterance
+    //      then millis for non-negative times */
+    private static long key(int utterance, int millis) {
+    	return ((long) utterance << 32) | (millis & 0xFFFFFFFFL);
+    } // END key()
+
+    /* decode
+    // Pre-conditions:
+    //    - t is a term number, the arrays have postingCounts[t] entries
+    // Post-conditions:
+    //    - The term's postings block is read from the file and decoded into
+    //      the arrays
+    //    - Throws IOException if the file cannot be read */
+    private void decode(int t, int[] utt, int[] start, int[] end, float[] posterior) throws IOException {
+    	long offset = this.postingOffsets[t];
+    	ByteBuffer block = ByteBuffer.allocate((int) (this.postingOffsets[t + 1] - offset));
+    	while (block.hasRemaining()) {
+    		if (this.channel.read(block, offset + block.position()) < 0) {
+    			throw new EOFException("Error: truncated postings for term " + this.terms[t]);
+    		} // END if
+    	} // END while loop
+    	block.flip();
+
+    	int u = 0;
+    	int s = 0;
+    	try {
+    		for (int k = 0; k < utt.length; k++) {
+    			int du = LatticeBinary.readVarint(block);
+    			if (du != 0) {
+    				s = 0;
+    			} // END if NEW UTTERANCE
+    			u += du;
+    			s += LatticeBinary.unzigzag(LatticeBinary.readVarint(block));
+    			utt[k] = u;
+    			start[k] = s;
+    			end[k] = s + LatticeBinary.readVarint(block);
+    			posterior[k] = Float.intBitsToFloat(block.getInt());
+    		} // END for loop
+    	} // END try
+    	catch (IOException | RuntimeException e) {
+    		throw new IllegalStateException("Error: corrupt postings for term " + this.terms[t]);
+    	} // END catch
+    } // END decode()
+
+    /* toMillis
+    // Pre-conditions:
+    //    - seconds is a node time
+    // Post-conditions:
+    //    - Returns it rounded to whole milliseconds */
+    private static int toMillis(double seconds) {
+    	return (int) Math.round(seconds * 1000);
+    } // END toMillis()
+
+    /* PostingList - the postings of one term while the index is built */
+    private static final class PostingList {
+    	private int[] utt = new int[4];
+    	private int[] start = new int[4];
+    	private int[] end = new int[4];
+    	private double[] posterior = new double[4];
+    	private int count;
+
+    	/* lastUtterance
+    	// Post-conditions:
+    	//    - Returns the utterance of the last posting added */
+    	int lastUtterance() {
+    		return this.utt[this.count - 1];
+    	} // END lastUtterance()
+
+    	/* add
+    	// Post-conditions:
+    	//    - Appends a posting; postings arrive grouped by utterance */
+    	void add(int u, int s, int e, double p) {
+    		if (this.count == this.utt.length) {
+    			int capacity = 2 * this.count;
+    			this.utt = Arrays.copyOf(this.utt, capacity);
+    			this.start = Arrays.copyOf(this.start, capacity);
+    			this.end = Arrays.copyOf(this.end, capacity);
+    			this.posterior = Arrays.copyOf(this.posterior, capacity);
+    		} // END if GROW
+    		this.utt[this.count] = u;
+    		this.start[this.count] = s;
+    		this.end[this.count] = e;
+    		this.posterior[this.count] = p;
+    		this.count++;
+    	} // END add()
+
+    	/* encode
+    	// Post-conditions:
+    	//    - Sorts the postings by (utterance, start, end), folds postings with
+    	//      the same span by summing their posteriors, writes them to out and
+    	//      returns how many were written */
+    	int encode(OutputStream out) throws IOException {
+    		int[] order = new int[this.count];
+    		double[] sortKey = new double[this.count];
+    		for (int k = 0; k < this.count; k++) {
+    			order[k] = k;
+    			sortKey[k] = this.end[k];
+    		} // END for loop
+    		IndexSort.sort(order, sortKey);   // by end, then stably by start
+    		for (int k = 0; k < this.count; k++) {
+    			sortKey[k] = this.start[k];
+    		} // END for loop
+    		IndexSort.sort(order, sortKey);
+    		for (int k = 0; k < this.count; k++) {
+    			sortKey[k] = this.utt[k];
+    		} // END for loop
+    		IndexSort.sort(order, sortKey);   // then stably by utterance
+
+    		int written = 0;
+    		int prevU = 0;
+    		int prevS = 0;
+    		for (int k = 0; k < this.count; k++) {
+    			int p = order[k];
+    			double sum = this.posterior[p];
+    			while (k + 1 < this.count && this.utt[order[k + 1]] == this.utt[p]
+    			       && this.start[order[k + 1]] == this.start[p] && this.end[order[k + 1]] == this.end[p]) {
+    				k++;
+    				sum += this.posterior[order[k]];
+    			} // END while loop SAME SPAN
+    			if (this.utt[p] != prevU) {
+    				prevS = 0;
+    			} // END if NEW UTTERANCE
+    			LatticeBinary.writeVarint(out, this.utt[p] - prevU);
+    			LatticeBinary.writeVarint(out, LatticeBinary.zigzag(this.start[p] - prevS));
+    			LatticeBinary.writeVarint(out, this.end[p] - this.start[p]);
+    			LatticeBinary.writeInt(out, Float.floatToIntBits((float) sum));
+    			prevU = this.utt[p];
+    			prevS = this.start[p];
+    			written++;
+    		} // END for loop
+    		return written;
+    	} // END encode()
+    } // END PostingList class
+
+    /* RunReader - walks the terms of one run file during the merge */
+    private static final class RunReader implements Comparable<RunReader> {
+    	private final ByteBuffer data;   // The mapped run file
+    	private final int run;           // Run number, to keep blocks in run order
+    	private final byte[] copy = new byte[1 << 16];
+    	String term;                     // The current term and its block header
+    	int count;
+    	int lastUtterance;
+    	int length;
+
+    	/* RunReader
+    	// Pre-conditions:
+    	//    - runFile was written by writeRun
+    	// Post-conditions:
+    	//    - The run is mapped; next() moves to its first term */
+    	RunReader(File runFile, int run) throws IOException {
+    		FileInputStream in = new FileInputStream(runFile);
+    		try {
+    			FileChannel channel = in.getChannel();
+    			this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    		} // END try
+    		finally {
+    			in.close();
+    		} // END finally
+    		this.run = run;
+    	} // END RunReader() CONSTRUCTOR
+
+    	/* next
+    	// Pre-conditions:
+    	//    - The current block, if any, has been copied
+    	// Post-conditions:
+    	//    - Reads the next term's header; returns false at the end of the run */
+    	boolean next() throws IOException {
+    		if (!this.data.hasRemaining()) {
+    			return false;
+    		} // END if END OF RUN
+    		this.term = LatticeBinary.readString(this.data);
+    		this.count = LatticeBinary.readVarint(this.data);
+    		this.lastUtterance = LatticeBinary.readVarint(this.data);
+    		this.length = LatticeBinary.readVarint(this.data);
+    		return true;
+    	} // END next()
+
+    	/* copyBlock
+    	// Pre-conditions:
+    	//    - previousUtterance is the term's last utterance in earlier runs
+    	//      (0 if none), less than every utterance in this block
+    	// Post-conditions:
+    	//    - The current block is written to out with its first posting's
+    	//      utterance made relative to previousUtterance; returns the number
+    	//      of bytes written */
+    	long copyBlock(OutputStream out, int previousUtterance) throws IOException {
+    		int blockEnd = this.data.position() + this.length;
+    		int firstUtterance = LatticeBinary.readVarint(this.data);
+    		ByteArrayOutputStream head = new ByteArrayOutputStream(5);
+    		LatticeBinary.writeVarint(head, firstUtterance - previousUtterance);
+    		head.writeTo(out);
+    		long written = head.size();
+    		while (this.data.position() < blockEnd) {
+    			int n = Math.min(this.copy.length, blockEnd - this.data.position());
+    			this.data.get(this.copy, 0, n);
+    			out.write(this.copy, 0, n);
+    			written += n;
+    		} // END while loop
+    		return written;
+    	} // END copyBlock()
+
+    	public int compareTo(RunReader other) {
+    		int c = this.term.compareTo(other.term);
+    		return c != 0 ? c : Integer.compare(this.run, other.run);
+    	} // END compareTo()
+    } // END RunReader class
+
+    public static void main(String[] args) {
+        if( args.length >= 5 && args[0].equals("build") ) {
+            try {
+                build(args[1], Double.parseDouble(args[2]), Double.parseDouble(args[3]), args[4]);
+            } catch( IOException e ) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        } else if( args.length >= 3 && args[0].equals("search") ) {
+            try( SpokenTermIndex index = open(args[1]) ) {
+                for( Hit hit : index.searchPhrase(Arrays.copyOfRange(args, 2, args.length)) ) {
+                    System.out.println(hit);
+                }
+            } catch( IOException e ) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        } else {
+            System.err.println("Error: Wrong number of arguments.");
+            System.exit(2);
+        }
+    }
+} // END SpokenTermIndex class
@@ -0,0 +1,167 @@
+/*
+ * Vocabulary.java
+ *
+ * The symbol table shared by every lattice: each distinct edge label is
+ * interned once and given a dense int id, so edges, hypotheses and WER
+ * work on ints and a label's String exists once per process, however many
+ * edges and lattices carry it.  Strings are only looked up for output.
+ *
+ * Every label also records the ids of the words it contributes to a
+ * hypothesis: none for "-silence-", the "_"-separated parts of a multiword
+ * such as "going_to", or else the label itself.  So building a hypothesis
+ * never splits a String.
+ *
+ * Ids are never reused or removed, so a process that interns labels from
+ * untrusted input (DecodeServer) bounds the vocabulary with the maxSize
+ * form of intern.  intern may be called from several threads; lookups of
+ * ids already handed out need no locking.
+ *
+ */
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class Vocabulary {
+    public static final String SILENCE_LABEL = "-silence-";
+    public static final int SILENCE = 0;  // Id of SILENCE_LABEL
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private static volatile Table table = new Table(new String[64], new int[64][], 0);
+
+    static {
+    	intern(SILENCE_LABEL);
+    } // END static initializer
+
+    private Vocabulary() {
+    } // END Vocabulary() CONSTRUCTOR
+
+    /* Table - the id -> label arrays; replaced, never modified below count */
+    private static final class Table {
+    	final String[] words;       // Id -> label
+    	final int[][] hypothesis;   // Id -> ids of the words it adds to a hypothesis
+    	final int count;            // Number of ids in use
+
+    	Table(String[] words, int[][] hypothesis, int count) {
+    		this.words = words;
+    		this.hypothesis = hypothesis;
+    		this.count = count;
+    	} // END Table() CONSTRUCTOR
+    } // END Table class
+
+    /* intern
+    // Pre-conditions:
+    //    - label is not null
+    // Post-conditions:
+    //    - Returns the id of label, assigning the next free id on first use */
+    public static int intern(String label) {
+    	Integer id = ids.get(label);
+    	if (id != null) {
+    		return id;
+    	} // END if KNOWN
+    	return add(label);
+    } // END intern()
+
+    /* intern - bounded form
+    // Pre-conditions:
+    //    - label is not null
+    // Post-conditions:
+    //    - Returns the id of label as intern(label) does, or -1 (adding
+    //      nothing) if label is new and its ids could take the vocabulary
+    //      past maxSize labels */
+    public static int intern(String label, int maxSize) {
+    	Integer id = ids.get(label);
+    	if (id != null) {
+    		return id;
+    	} // END if KNOWN
+    	synchronized (Vocabulary.class) {
+    		int needed = 1 + (label.indexOf('_') >= 0 ? label.split("_").length : 0);  // at most, with the parts
+    		if (!ids.containsKey(label) && table.count + needed > maxSize) {
+    			return -1;
+    		} // END if FULL
+    		return add(label);
+    	} // END synchronized
+    } // END intern()
+
+    /* add
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - label (and each part of a multiword) has an id; returns label's
+    // Notes:
+    //    - The table is published before the id is put in the map, so any
+    //      thread holding an id can read its entry without locking */
+    private static synchronized int add(String label) {
+    	Integer id = ids.get(label);
+    	if (id != null) {
+    		return id;
+    	} // END if ADDED BY ANOTHER THREAD
+
+    	int[] parts;
+    	if (label.equals(SILENCE_LABEL)) {
+    		parts = new int[0];
+    	} // END if SILENCE
+    	else if (label.indexOf('_') >= 0) {
+    		String[] words = label.split("_");
+    		parts = new int[words.length];
+    		for (int p = 0; p < words.length; p++) {
+    			parts[p] = add(words[p]);
+    		} // END for loop
+    	} // END if MULTIWORD
+    	else {
+    		parts = null;  // the label itself, filled in below
+    	} // END else
+
+    	Table t = table;
+    	int next = t.count;
+    	String[] words = t.words;
+    	int[][] hypothesis = t.hypothesis;
+    	if (next == words.length) {
+    		words = Arrays.copyOf(words, 2 * next);
+    		hypothesis = Arrays.copyOf(hypothesis, 2 * next);
+    	} // END if GROW
+    	words[next] = label;
+    	hypothesis[next] = parts == null ? new int[] {next} : parts;
+    	table = new Table(words, hypothesis, next + 1);
+    	ids.put(label, next);
+    	return next;
+    } // END add()
+
+    /* lookup
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the id of label, or -1 if it has never been interned
+    //      (so no lattice contains it); nothing is added */
+    public static int lookup(String label) {
+    	Integer id = ids.get(label);
+    	return id == null ? -1 : id;
+    } // END lookup()
+
+    /* word
+    // Pre-conditions:
+    //    - id was returned by intern
+    // Post-conditions:
+    //    - Returns the label with that id */
+    public static String word(int id) {
+    	return table.words[id];
+    } // END word()
+
+    /* hypothesisWords
+    // Pre-conditions:
+    //    - id was returned by intern
+    // Post-conditions:
+    //    - Returns the ids of the words the label adds to a hypothesis: none
+    //      for -silence-, the parts of a multiword, else id itself
+    //    - The array is shared and must not be modified */
+    static int[] hypothesisWords(int id) {
+    	return table.hypothesis[id];
+    } // END hypothesisWords()
+
+    /* size
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of interned labels */
+    public static int size() {
+    	return table.count;
+    } // END size()
+} // END Vocabulary class
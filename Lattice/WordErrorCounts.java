@@ -0,0 +1,108 @@
+/*
+ * WordErrorCounts.java
+ *
+ * Defines a new "WordErrorCounts" type: the outcome of aligning a hypothesis
+ * with its reference, as the numbers of substituted, inserted and deleted
+ * words of a minimum edit distance alignment.
+ *
+ * Counts from several utterances can be added together, so a corpus WER is
+ * total errors over total reference words rather than an average of
+ * per-utterance rates.
+ *
+ * Note that the WordErrorCounts type is immutable: after the fields are
+ * initialized in the constructor, they cannot be modified.
+ *
+ */
+
+public class WordErrorCounts {
+    private int substitutions, insertions, deletions; // Errors of each kind
+    private int referenceLength;                      // Number of reference words
+
+    // Constructor
+
+    // WordErrorCounts
+    // Preconditions:
+    //     - All arguments are non-negative
+    // Post-conditions
+    //     - The fields are set to the corresponding arguments
+    public WordErrorCounts(int substitutions, int insertions, int deletions, int referenceLength) {
+        this.substitutions = substitutions;
+        this.insertions = insertions;
+        this.deletions = deletions;
+        this.referenceLength = referenceLength;
+    }
+
+    // Accessors
+
+    // getSubstitutions
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of reference words replaced by another word
+    public int getSubstitutions() {
+        return this.substitutions;
+    }
+
+    // getInsertions
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of hypothesis words with no reference word
+    public int getInsertions() {
+        return this.insertions;
+    }
+
+    // getDeletions
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of reference words missing from the hypothesis
+    public int getDeletions() {
+        return this.deletions;
+    }
+
+    // getErrors
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the edit distance: substitutions + insertions + deletions
+    public int getErrors() {
+        return this.substitutions + this.insertions + this.deletions;
+    }
+
+    // getReferenceLength
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of reference words
+    public int getReferenceLength() {
+        return this.referenceLength;
+    }
+
+    // getWER
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns getErrors() / getReferenceLength()
+    //       (infinite or NaN for an empty reference, as division gives)
+    public double getWER() {
+        return (double) getErrors() / this.referenceLength;
+    }
+
+    // plus
+    // Preconditions:
+    //     - other is not null
+    // Post-conditions
+    //     - Returns the counts of both alignments added together
+    public WordErrorCounts plus(WordErrorCounts other) {
+        return new WordErrorCounts(this.substitutions + other.substitutions,
+                                   this.insertions + other.insertions,
+                                   this.deletions + other.deletions,
+                                   this.referenceLength + other.referenceLength);
+    }
+
+    public String toString() {
+        return "S=" + this.substitutions + " I=" + this.insertions + " D=" + this.deletions
+            + " N=" + this.referenceLength;
+    }
+}
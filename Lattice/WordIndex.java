@@ -0,0 +1,148 @@
+/*
+ * WordIndex.java
+ *
+ * An inverted index from each word (edge label) of a lattice to the
+ * edges carrying it, with their midpoint times in ascending order, so a
+ * keyword lookup costs one binary search instead of a scan over every edge.
+ *
+ * Words are keyed by their Vocabulary id, as the lattice stores them: the
+ * distinct label ids are kept sorted in one int array, and every word's
+ * midpoints and edge ids are consecutive ranges of two flat arrays.  A
+ * lookup by String goes through Vocabulary.lookup first.
+ *
+ * Note that the WordIndex type is immutable: it is built once from a
+ * lattice and only copies of its arrays are handed out.
+ *
+ */
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+public final class WordIndex {
+    private final int[] labelIds;     // Distinct Vocabulary ids, ascending
+    private final int[] first;        // Word k's entries are [first[k], first[k + 1])
+    private final double[] midpoints; // Midpoint times, ascending within each word
+    private final int[] edgeIds;      // Edge ids, same order
+
+    /* WordIndex
+    // Pre-conditions:
+    //    - lattice is a valid Lattice
+    // Post-conditions:
+    //    - Every label of lattice is indexed with its edges' midpoints
+    //      (halfway between the source and target node times), ascending;
+    //      edges with equal midpoints are in edge id order
+    // Notes:
+    //    - One stable sort of all edges by midpoint, then one bucketing pass
+    //      over the edges in that order, so each word's range comes out
+    //      already sorted */
+    public WordIndex(Lattice lattice) {
+    	int edges = lattice.getNumEdges();
+    	double[] mid = new double[edges];
+    	int[] order = new int[edges];
+    	int[] ids = new int[edges];
+    	for (int e = 0; e < edges; e++) {
+    		mid[e] = (lattice.getNodeTime(lattice.getEdgeSource(e)) + lattice.getNodeTime(lattice.getEdgeTarget(e))) / 2;
+    		order[e] = e;
+    		ids[e] = lattice.getEdgeLabelId(e);
+    	} // END for loop
+    	IndexSort.sort(order, mid);
+
+    	// the distinct ids, and how many edges carry each
+    	int[] sorted = ids.clone();
+    	Arrays.sort(sorted);
+    	int distinct = 0;
+    	for (int e = 0; e < edges; e++) {
+    		if (e == 0 || sorted[e] != sorted[e - 1]) {
+    			sorted[distinct++] = sorted[e];
+    		} // END if NEW WORD
+    	} // END for loop
+    	this.labelIds = Arrays.copyOf(sorted, distinct);
+    	int[] word = new int[edges];
+    	this.first = new int[distinct + 1];
+    	for (int e = 0; e < edges; e++) {
+    		word[e] = Arrays.binarySearch(this.labelIds, ids[e]);
+    		this.first[word[e] + 1]++;
+    	} // END for loop
+    	for (int k = 0; k < distinct; k++) {
+    		this.first[k + 1] += this.first[k];
+    	} // END for loop
+
+    	this.midpoints = new double[edges];
+    	this.edgeIds = new int[edges];
+    	int[] fill = Arrays.copyOf(this.first, distinct);
+    	for (int e : order) {
+    		int at = fill[word[e]]++;
+    		this.midpoints[at] = mid[e];
+    		this.edgeIds[at] = e;
+    	} // END for loop
+    } // END WordIndex() CONSTRUCTOR
+
+    /* find
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the position of labelId in labelIds, or -1 if no edge
+    //      carries it */
+    private int find(int labelId) {
+    	int k = Arrays.binarySearch(this.labelIds, labelId);
+    	return k < 0 ? -1 : k;
+    } // END find()
+
+    /* getSortedHits
+    // Pre-conditions:
+    //    - labelId is a Vocabulary id, or word the word (or multiword) to
+    //      look up
+    // Post-conditions:
+    //    - Returns a new array with the midpoint time of each edge with that
+    //      label, ascending (empty if it does not occur) */
+    public double[] getSortedHits(int labelId) {
+    	int k = find(labelId);
+    	return k < 0 ? new double[0] : Arrays.copyOfRange(this.midpoints, this.first[k], this.first[k + 1]);
+    } // END getSortedHits()
+
+    public double[] getSortedHits(String word) {
+    	return getSortedHits(Vocabulary.lookup(word));
+    } // END getSortedHits()
+
+    /* getSortedHits - batch form
+    // Pre-conditions:
+    //    - words holds the words to look up
+    // Post-conditions:
+    //    - Returns a map from each of words to getSortedHits of it */
+    public HashMap<String, double[]> getSortedHits(Collection<String> words) {
+    	HashMap<String, double[]> hits = new HashMap<String, double[]>();
+    	for (String word : words) {
+    		hits.put(word, getSortedHits(word));
+    	} // END for loop
+    	return hits;
+    } // END getSortedHits()
+
+    /* getHitEdges
+    // Pre-conditions:
+    //    - labelId is a Vocabulary id, or word the word (or multiword) to
+    //      look up
+    // Post-conditions:
+    //    - Returns a new array with the ids of the edges with that label, in
+    //      the same order as getSortedHits (empty if it does not occur) */
+    public int[] getHitEdges(int labelId) {
+    	int k = find(labelId);
+    	return k < 0 ? new int[0] : Arrays.copyOfRange(this.edgeIds, this.first[k], this.first[k + 1]);
+    } // END getHitEdges()
+
+    public int[] getHitEdges(String word) {
+    	return getHitEdges(Vocabulary.lookup(word));
+    } // END getHitEdges()
+
+    /* contains
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns true if some edge is labelled labelId (or word) */
+    public boolean contains(int labelId) {
+    	return find(labelId) >= 0;
+    } // END contains()
+
+    public boolean contains(String word) {
+    	return contains(Vocabulary.lookup(word));
+    } // END contains()
+} // END WordIndex class
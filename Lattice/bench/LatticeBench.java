@@ -0,0 +1,293 @@
+/*
+ * LatticeBench.java
+ *
+ * Microbenchmarks for the Lattice subsystem, so a change to Lattice can be
+ * measured instead of guessed at.  Each benchmark runs over synthetic
+ * lattices of every combination of the -nodes, -fanout and -vocab sizes
+ * and reports, in the manner of JMH with its GC profiler:
+ *
+ *     ops/s    throughput, mean +- standard deviation over the iterations
+ *     us/op    average time per operation
+ *     B/op     bytes allocated per operation (gc.alloc.rate.norm)
+ *     MB/s     allocation rate (gc.alloc.rate)
+ *     gc       collections during measurement, and the time they took
+ *
+ * Each benchmark is warmed up for -warmup iterations and then measured for
+ * -iterations iterations of -millis milliseconds each.  Allocation is read
+ * from the benchmark thread's allocated-bytes counter, so it is exact for
+ * the single-threaded operations measured here.
+ *
+ * The benchmarks are
+ *
+ *     construct        new Lattice(file), the constructor parse
+ *     parse            LatticeParser.parse(file)
+ *     topologicalSort  topologicalSort() (a copy of the cached ordering)
+ *     decode           decode(lmScale)
+ *     countAllPaths    countAllPaths()
+ *     uniqueWords      uniqueWordsAtTime(t) over a sweep of times
+ *     sortedHits       printSortedHits(word, out) to a discarding stream
+ *     computeWER       Hypothesis.computeWER(refFile) of the best path
+ *     toString         toString()
+ *     saveAsFile       saveAsFile(file)
+ *
+ * The lattices and references come from LatticeGenerator (fanout is its
+ * mean branching, with uniformly drawn words) and are written to a
+ * temporary directory, which is deleted at exit.
+ *
+ * ----------------------------------------------------------------------------
+ *
+ * usage:
+ *
+ * javac -d classes Lattice/*.java Lattice/bench/*.java
+ * java -cp classes LatticeBench [options] [benchmark ...]
+ *
+ * where the options are
+ *     -nodes n1,n2,...     lattice sizes in nodes           (default 1000,100000)
+ *     -fanout f1,f2,...    mean out-edges per node          (default 3)
+ *     -vocab v1,v2,...     distinct words                   (default 1000)
+ *     -warmup n            warmup iterations                (default 3)
+ *     -iterations n        measured iterations              (default 5)
+ *     -millis n            length of an iteration, in ms    (default 500)
+ *     -seed n              seed for the synthetic lattices  (default 1)
+ * and the benchmarks to run default to all of them
+ *
+*/
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+public final class LatticeBench {
+    private static final double LM_SCALE = 8.0;
+
+    /* Op - one benchmarked operation; its result is consumed so it is not
+    // optimized away */
+    private interface Op {
+    	Object run() throws Exception;
+    } // END Op interface
+
+    /* State - the inputs of one parameter combination */
+    private static final class State {
+    	final String latticeFile, referenceFile, outputFile;
+    	final Lattice lattice;
+    	final Hypothesis best;
+    	final double[] times;          // Query times spread over the lattice
+    	final String[] words;          // Query words, mostly present
+    	int next;                      // Cursor into times and words
+
+    	State(File dir, int nodes, int fanout, int vocab, long seed) throws IOException {
+    		String name = "bench-" + nodes + "-" + fanout + "-" + vocab;
+    		this.latticeFile = new File(dir, name + ".lattice").getPath();
+    		this.referenceFile = new File(dir, name + ".ref").getPath();
+    		this.outputFile = new File(dir, name + ".out").getPath();
+    		LatticeGenerator generator = new LatticeGenerator(seed);
+    		generator.setUtteranceID(name);
+    		generator.setNumNodes(nodes);
+    		generator.setBranching(fanout);
+    		generator.setVocabSize(vocab);
+    		generator.setZipfExponent(0);
+    		generator.save(this.latticeFile);
+    		generator.saveReference(this.referenceFile, nodes / 2);
+
+    		this.lattice = LatticeParser.parse(this.latticeFile);
+    		this.best = this.lattice.decode(LM_SCALE);
+    		Random random = new Random(seed + 2);
+    		this.times = new double[1024];
+    		this.words = new String[1024];
+    		double span = this.lattice.getNodeTime(this.lattice.getEndIdx());
+    		for (int k = 0; k < this.times.length; k++) {
+    			this.times[k] = span * random.nextDouble();
+    			this.words[k] = "w" + random.nextInt(vocab + vocab / 10 + 1);
+    		} // END for loop
+    	} // END State() CONSTRUCTOR
+
+    	int next() {
+    		this.next = (this.next + 1) & (this.times.length - 1);
+    		return this.next;
+    	} // END next()
+    } // END State class
+
+    /* benchmarks
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns every benchmark by name, in the order they are run */
+    private static LinkedHashMap<String, java.util.function.Function<State, Op>> benchmarks() {
+    	PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    	LinkedHashMap<String, java.util.function.Function<State, Op>> all =
+    		new LinkedHashMap<String, java.util.function.Function<State, Op>>();
+    	all.put("construct",       s -> () -> new Lattice(s.latticeFile));
+    	all.put("parse",           s -> () -> LatticeParser.parse(s.latticeFile));
+    	all.put("topologicalSort", s -> () -> s.lattice.topologicalSort());
+    	all.put("decode",          s -> () -> s.lattice.decode(LM_SCALE));
+    	all.put("countAllPaths",   s -> () -> s.lattice.countAllPaths());
+    	all.put("uniqueWords",     s -> () -> s.lattice.uniqueWordsAtTime(s.times[s.next()]));
+    	all.put("sortedHits",      s -> () -> { s.lattice.printSortedHits(s.words[s.next()], discard); return discard; });
+    	all.put("computeWER",      s -> () -> s.best.computeWER(s.referenceFile));
+    	all.put("toString",        s -> () -> s.lattice.toString());
+    	all.put("saveAsFile",      s -> () -> { s.lattice.saveAsFile(s.outputFile); return s; });
+    	return all;
+    } // END benchmarks()
+
+    private static volatile int sink;  // Consumes results
+
+    /* Measurement - the totals of one iteration */
+    private static final class Measurement {
+    	long ops, nanos, bytes, gcCount, gcMillis;
+    } // END Measurement class
+
+    /* iterate
+    // Pre-conditions:
+    //    - millis > 0
+    // Post-conditions:
+    //    - op is run repeatedly for about millis milliseconds and the number
+    //      of operations, elapsed time, bytes allocated and collections are
+    //      returned */
+    private static Measurement iterate(Op op, long millis) throws Exception {
+    	com.sun.management.ThreadMXBean threads =
+    		(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    	long thread = Thread.currentThread().getId();
+    	long gcCount = -gcCount(), gcMillis = -gcMillis();
+    	long bytes = threads.getThreadAllocatedBytes(thread);
+    	long start = System.nanoTime();
+    	long deadline = start + millis * 1000000L;
+    	long ops = 0;
+    	int h = 0;
+    	long now;
+    	do {
+    		h += System.identityHashCode(op.run());
+    		ops++;
+    		now = System.nanoTime();
+    	} while (now < deadline);
+    	Measurement m = new Measurement();
+    	m.bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+    	m.nanos = now - start;
+    	m.ops = ops;
+    	m.gcCount = gcCount + gcCount();
+    	m.gcMillis = gcMillis + gcMillis();
+    	sink += h;
+    	return m;
+    } // END iterate()
+
+    private static long gcCount() {
+    	long n = 0;
+    	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+    		n += Math.max(0, gc.getCollectionCount());
+    	} // END for loop
+    	return n;
+    } // END gcCount()
+
+    private static long gcMillis() {
+    	long n = 0;
+    	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+    		n += Math.max(0, gc.getCollectionTime());
+    	} // END for loop
+    	return n;
+    } // END gcMillis()
+
+    /* run
+    // Pre-conditions:
+    //    - warmup >= 0, iterations >= 1
+    // Post-conditions:
+    //    - op is warmed up, measured, and one result line is printed */
+    private static void run(String name, String params, Op op, int warmup, int iterations, long millis)
+    	                    throws Exception {
+    	for (int k = 0; k < warmup; k++) {
+    		iterate(op, millis);
+    	} // END for loop WARMUP
+    	double[] rates = new double[iterations];
+    	Measurement total = new Measurement();
+    	for (int k = 0; k < iterations; k++) {
+    		Measurement m = iterate(op, millis);
+    		rates[k] = m.ops * 1e9 / m.nanos;
+    		total.ops += m.ops;
+    		total.nanos += m.nanos;
+    		total.bytes += m.bytes;
+    		total.gcCount += m.gcCount;
+    		total.gcMillis += m.gcMillis;
+    	} // END for loop MEASURE
+    	double mean = Arrays.stream(rates).average().orElse(0);
+    	double var = 0;
+    	for (double r : rates) {
+    		var += (r - mean) * (r - mean);
+    	} // END for loop
+    	double sd = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+    	System.out.printf("%-16s %-28s %14.1f +- %-12.1f %14.3f %14.0f %10.1f %6d %8d%n",
+    	                  name, params, mean, sd, total.nanos / 1e3 / total.ops, (double) total.bytes / total.ops,
+    	                  total.bytes / 1048576.0 / (total.nanos / 1e9), total.gcCount, total.gcMillis);
+    } // END run()
+
+    public static void main(String[] args) throws Exception {
+        int[] nodes = {1000, 100000};
+        int[] fanouts = {3};
+        int[] vocabs = {1000};
+        int warmup = 3, iterations = 5;
+        long millis = 500, seed = 1;
+        LinkedHashMap<String, java.util.function.Function<State, Op>> all = benchmarks();
+        ArrayList<String> selected = new ArrayList<String>();
+        try {
+            for( int k=0; k<args.length; k++ ) {
+                switch( args[k] ) {
+                    case "-nodes":      nodes = sizes(args[++k], 2); break;
+                    case "-fanout":     fanouts = sizes(args[++k], 1); break;
+                    case "-vocab":      vocabs = sizes(args[++k], 1); break;
+                    case "-warmup":     warmup = Math.max(0, Integer.parseInt(args[++k])); break;
+                    case "-iterations": iterations = Math.max(1, Integer.parseInt(args[++k])); break;
+                    case "-millis":     millis = Math.max(1, Long.parseLong(args[++k])); break;
+                    case "-seed":       seed = Long.parseLong(args[++k]); break;
+                    default:
+                        if( !all.containsKey(args[k]) ) {
+                            throw new IllegalArgumentException("unknown benchmark " + args[k]);
+                        }
+                        selected.add(args[k]);
+                }
+            }
+        } catch( RuntimeException e ) {
+            System.err.println("Error: bad arguments (" + e.getMessage() + "); benchmarks are " + all.keySet());
+            System.exit(2);
+        }
+        if( selected.isEmpty() ) {
+            selected.addAll(all.keySet());
+        }
+
+        File dir = java.nio.file.Files.createTempDirectory("latticebench").toFile();
+        dir.deleteOnExit();
+        System.out.printf("%-16s %-28s %30s %14s %14s %10s %6s %8s%n",
+                          "Benchmark", "(nodes,fanout,vocab)", "ops/s", "us/op", "B/op", "MB/s", "gc", "gc ms");
+        for( int n : nodes ) {
+            for( int f : fanouts ) {
+                for( int v : vocabs ) {
+                    State state = new State(dir, n, f, v, seed);
+                    String params = "(" + n + "," + f + "," + v + ")";
+                    for( String name : selected ) {
+                        run(name, params, all.get(name).apply(state), warmup, iterations, millis);
+                    }
+                    new File(state.latticeFile).delete();
+                    new File(state.referenceFile).delete();
+                    new File(state.outputFile).delete();
+                }
+            }
+        }
+    }
+
+    // sizes
+    // Preconditions:
+    //     - list is a comma-separated list of integers
+    // Post-conditions
+    //     - The integers are returned; any below min is an error
+    private static int[] sizes(String list, int min) {
+        int[] values = Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+        for( int v : values ) {
+            if( v < min ) {
+                throw new IllegalArgumentException(v + " < " + min);
+            }
+        }
+        return values;
+    }
+} // END LatticeBench class